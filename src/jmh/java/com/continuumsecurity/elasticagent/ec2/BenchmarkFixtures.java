@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.*;
+import software.amazon.awssdk.services.ec2.paginators.DescribeInstancesIterable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Canned data shared by the benchmarks: a cluster profile backed by an in-memory {@link Ec2Client} stub, and the
+ * matching agents and request bodies as the GoCD server would send them.
+ */
+final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    static ClusterProfileProperties clusterProfile(int maxElasticAgents) {
+        ClusterProfileProperties clusterProfileProperties = new ClusterProfileProperties();
+        clusterProfileProperties.setGoServerUrl("https://gocd.example.com/go");
+        clusterProfileProperties.setAutoRegisterTimeout("10");
+        clusterProfileProperties.setMaxElasticAgents(String.valueOf(maxElasticAgents));
+        clusterProfileProperties.setAwsRegion("eu-west-1");
+        return clusterProfileProperties;
+    }
+
+    static String clusterProfileJson(int maxElasticAgents) {
+        return "{" +
+                "\"go_server_url\": \"https://gocd.example.com/go\"," +
+                "\"auto_register_timeout\": \"10\"," +
+                "\"max_elastic_agents\": \"" + maxElasticAgents + "\"," +
+                "\"aws_region\": \"eu-west-1\"" +
+                "}";
+    }
+
+    static String instanceId(int i) {
+        return String.format("i-%017x", i);
+    }
+
+    static JobIdentifier jobIdentifier(int i) {
+        return new JobIdentifier("pipeline-" + (i % 50), (long) i, "label-" + i, "stage", "1", "job-" + (i % 7), (long) i);
+    }
+
+    /**
+     * Registers a stub client for the cluster that describes <code>count</code> running instances, each assigned to
+     * {@link #jobIdentifier(int)} of its index, and answers every other call with an empty response.
+     */
+    static Ec2Client registerStubClient(ClusterProfileProperties clusterProfileProperties, int count) {
+        List<Instance> instances = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            instances.add(Instance.builder()
+                    .instanceId(instanceId(i))
+                    .imageId("ami-123")
+                    .instanceType(InstanceType.T2_MICRO)
+                    .subnetId("subnet-" + (i % 3))
+                    .launchTime(Instant.now())
+                    .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                    .tags(Tag.builder().key("type").value(Constants.ELASTIC_AGENT_TAG).build(),
+                            Tag.builder().key("JsonJobIdentifier").value(jobIdentifier(i).toJson()).build())
+                    .build());
+        }
+
+        Ec2Client ec2 = mock(Ec2Client.class);
+        when(ec2.describeInstancesPaginator(any(DescribeInstancesRequest.class)))
+                .thenAnswer(invocation -> new DescribeInstancesIterable(ec2, invocation.getArgument(0)));
+        when(ec2.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(invocation -> {
+            DescribeInstancesRequest request = invocation.getArgument(0);
+            int from = request.nextToken() == null ? 0 : Integer.parseInt(request.nextToken());
+            int to = Math.min(from + request.maxResults(), instances.size());
+            return DescribeInstancesResponse.builder()
+                    .reservations(Reservation.builder().instances(instances.subList(from, to)).build())
+                    .nextToken(to < instances.size() ? String.valueOf(to) : null)
+                    .build();
+        });
+        when(ec2.terminateInstances(any(TerminateInstancesRequest.class)))
+                .thenReturn(TerminateInstancesResponse.builder().build());
+        when(ec2.createTags(any(CreateTagsRequest.class)))
+                .thenReturn(CreateTagsResponse.builder().build());
+
+        Ec2ClientRegistry.instance().register(clusterProfileProperties, ec2);
+        return ec2;
+    }
+
+    /**
+     * @return the agents the server knows of for the instances of {@link #registerStubClient}, all idle and enabled
+     */
+    static List<Agent> agents(int count) {
+        List<Agent> agents = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            agents.add(new Agent(instanceId(i), Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled));
+        }
+        return agents;
+    }
+}
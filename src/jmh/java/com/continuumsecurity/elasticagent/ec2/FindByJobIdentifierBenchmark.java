@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up the instance of a job, as done for every <code>should-assign-work</code>,
+ * <code>create-agent</code> and agent status report request. The lookup goes through an index, so the time should
+ * not grow with the number of instances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FindByJobIdentifierBenchmark {
+
+    @Param({"50", "5000", "50000"})
+    public int instances;
+
+    private ClusterProfileProperties clusterProfileProperties;
+    private Ec2AgentInstances agentInstances;
+    private JobIdentifier knownJob;
+    private JobIdentifier unknownJob;
+
+    @Setup
+    public void setUp() throws Exception {
+        clusterProfileProperties = BenchmarkFixtures.clusterProfile(instances);
+        BenchmarkFixtures.registerStubClient(clusterProfileProperties, instances);
+
+        // without a journal, so that every run starts from a full refresh
+        agentInstances = new Ec2AgentInstances(null);
+        agentInstances.refreshAll(clusterProfileProperties);
+
+        // a fresh copy, so the lookup cannot short-circuit on identity
+        knownJob = JobIdentifier.fromJson(BenchmarkFixtures.jobIdentifier(instances / 2).toJson());
+        unknownJob = BenchmarkFixtures.jobIdentifier(instances + 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Ec2ClientRegistry.instance().evict(clusterProfileProperties);
+    }
+
+    @Benchmark
+    public Ec2Instance knownJob() {
+        return agentInstances.find(knownJob);
+    }
+
+    @Benchmark
+    public Ec2Instance unknownJob() {
+        return agentInstances.find(unknownJob);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.requests.CreateAgentRequest;
+import com.continuumsecurity.elasticagent.ec2.requests.ServerPingRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding the request and response bodies exchanged with the server, at the sizes of a large GoCD
+ * installation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GsonDecodeBenchmark {
+
+    @Param({"10000"})
+    public int agents;
+
+    @Param({"10"})
+    public int clusters;
+
+    private String createAgentRequestJson;
+    private String serverPingRequestJson;
+    private String agentsJson;
+
+    @Setup
+    public void setUp() {
+        createAgentRequestJson = "{" +
+                "\"auto_register_key\": \"0c9f2a0e-2f0f-4d31-8b6a-6f3e5c7d2b1a\"," +
+                "\"environment\": \"production\"," +
+                "\"elastic_agent_profile_properties\": {" +
+                "\"ec2_ami\": \"ami-123\"," +
+                "\"ec2_instance_type\": \"t2.micro\"," +
+                "\"ec2_subnets\": \"subnet-0,subnet-1,subnet-2\"," +
+                "\"ec2_sg\": \"sg-123\"," +
+                "\"ec2_key\": \"gocd\"," +
+                "\"ec2_user_data\": \"#!/bin/bash\\necho hello\"" +
+                "}," +
+                "\"job_identifier\": " + BenchmarkFixtures.jobIdentifier(42).toJson() + "," +
+                "\"cluster_profile_properties\": " + BenchmarkFixtures.clusterProfileJson(50) +
+                "}";
+
+        StringBuilder ping = new StringBuilder("{\"all_cluster_profile_properties\": [");
+        for (int i = 0; i < clusters; i++) {
+            ping.append(i == 0 ? "" : ",").append(BenchmarkFixtures.clusterProfileJson(50 + i));
+        }
+        serverPingRequestJson = ping.append("]}").toString();
+
+        agentsJson = Agent.toJSONArray(BenchmarkFixtures.agents(agents));
+    }
+
+    @Benchmark
+    public CreateAgentRequest createAgentRequest() {
+        return CreateAgentRequest.fromJSON(createAgentRequestJson);
+    }
+
+    @Benchmark
+    public ServerPingRequest serverPingRequest() {
+        return ServerPingRequest.fromJSON(serverPingRequestJson);
+    }
+
+    @Benchmark
+    public List<Agent> agentList() {
+        return Agent.fromJSONArray(agentsJson);
+    }
+}
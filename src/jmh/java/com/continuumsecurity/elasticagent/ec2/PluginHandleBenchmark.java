@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.thoughtworks.go.plugin.api.GoApplicationAccessor;
+import com.thoughtworks.go.plugin.api.request.DefaultGoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures {@link Ec2Plugin#handle} for the requests the server sends without an AWS round trip, from dispatch to
+ * the rendered response. <code>should-assign-work</code> runs against a cluster of already refreshed instances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PluginHandleBenchmark {
+
+    private static final int INSTANCES = 100;
+
+    @Param({
+            "get-icon",
+            "get-capabilities",
+            "get-elastic-agent-profile-metadata",
+            "get-elastic-agent-profile-view",
+            "validate-elastic-agent-profile",
+            "get-cluster-profile-metadata",
+            "get-cluster-profile-view",
+            "should-assign-work"
+    })
+    public String requestName;
+
+    private Ec2Plugin plugin;
+    private ClusterProfileProperties clusterProfileProperties;
+    private DefaultGoPluginApiRequest request;
+
+    @Setup
+    public void setUp() {
+        clusterProfileProperties = BenchmarkFixtures.clusterProfile(INSTANCES);
+        BenchmarkFixtures.registerStubClient(clusterProfileProperties, INSTANCES);
+
+        plugin = new Ec2Plugin();
+        plugin.initializeGoApplicationAccessor(mock(GoApplicationAccessor.class));
+
+        request = new DefaultGoPluginApiRequest("elastic-agent", "5.0", "cd.go.elastic-agent." + requestName);
+        request.setRequestBody(requestBody());
+    }
+
+    @TearDown
+    public void tearDown() {
+        Ec2ClientRegistry.instance().evict(clusterProfileProperties);
+    }
+
+    @Benchmark
+    public GoPluginApiResponse handle() {
+        return plugin.handle(request);
+    }
+
+    private String requestBody() {
+        switch (requestName) {
+            case "validate-elastic-agent-profile":
+                return "{" +
+                        "\"ec2_ami\": \"ami-123\"," +
+                        "\"ec2_instance_type\": \"t2.micro\"," +
+                        "\"ec2_subnets\": \"subnet-0,subnet-1\"," +
+                        "\"ec2_sg\": \"sg-123\"," +
+                        "\"ec2_key\": \"gocd\"" +
+                        "}";
+            case "should-assign-work":
+                int last = INSTANCES - 1;
+                return "{" +
+                        "\"agent\": {" +
+                        "\"agent_id\": \"" + BenchmarkFixtures.instanceId(last) + "\"," +
+                        "\"agent_state\": \"Idle\"," +
+                        "\"build_state\": \"Idle\"," +
+                        "\"config_state\": \"Enabled\"" +
+                        "}," +
+                        "\"job_identifier\": " + BenchmarkFixtures.jobIdentifier(last).toJson() + "," +
+                        "\"elastic_agent_profile_properties\": {\"ec2_ami\": \"ami-123\"}," +
+                        "\"cluster_profile_properties\": " + BenchmarkFixtures.clusterProfileJson(INSTANCES) +
+                        "}";
+            default:
+                return null;
+        }
+    }
+}
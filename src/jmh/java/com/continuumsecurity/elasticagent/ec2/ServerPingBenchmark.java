@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.requests.ServerPingRequest;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures a steady-state <code>server-ping</code>: every instance has registered as an idle agent, so nothing is
+ * disabled or terminated, and the time goes into listing agents, matching them to instances and refreshing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ServerPingBenchmark {
+
+    @Param({"500", "5000"})
+    public int instances;
+
+    private ClusterProfileProperties clusterProfileProperties;
+    private ServerPingRequest serverPingRequest;
+    private Map<String, Ec2AgentInstances> clusterSpecificAgentInstances;
+    private PluginRequest pluginRequest;
+
+    @Setup
+    public void setUp() throws Exception {
+        clusterProfileProperties = BenchmarkFixtures.clusterProfile(instances);
+        BenchmarkFixtures.registerStubClient(clusterProfileProperties, instances);
+        serverPingRequest = ServerPingRequest.fromJSON(
+                "{\"all_cluster_profile_properties\": [" + BenchmarkFixtures.clusterProfileJson(instances) + "]}");
+
+        // without a journal, so that every run starts from a full refresh
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(null);
+        agentInstances.refreshAll(clusterProfileProperties);
+        clusterSpecificAgentInstances = new HashMap<>();
+        clusterSpecificAgentInstances.put(clusterProfileProperties.uuid(), agentInstances);
+
+        pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.listAgents()).thenAnswer(invocation -> new Agents(BenchmarkFixtures.agents(instances)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        Ec2ClientRegistry.instance().evict(clusterProfileProperties);
+    }
+
+    @Benchmark
+    public GoPluginApiResponse execute() throws Exception {
+        return serverPingRequest.executor(clusterSpecificAgentInstances, pluginRequest).execute();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket whose refill rate follows the throttling of the API it guards: the rate is halved when a call is
+ * throttled, at most once per {@link #DECREASE_INTERVAL_NANOS}, and grows back by a hundredth of the configured rate
+ * with every successful call (additive increase, multiplicative decrease). Callers that find the bucket empty wait in
+ * line for their token, but not for longer than {@link #MAX_WAIT_NANOS}: callers that would have to wait longer do not
+ * get a token, which also bounds how far the bucket goes into debt.
+ */
+class AdaptiveTokenBucket {
+    static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final double MIN_RATE = 0.5;
+    static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final double capacity;
+    private final double maxRate;
+    private final Ticker ticker;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong throttles = new AtomicLong();
+    private double rate;
+    private double tokens;
+    private long refilledAt;
+    private long decreasedAt;
+
+    AdaptiveTokenBucket(double capacity, double ratePerSecond) {
+        this(capacity, ratePerSecond, Ticker.systemTicker());
+    }
+
+    AdaptiveTokenBucket(double capacity, double ratePerSecond, Ticker ticker) {
+        this.capacity = capacity;
+        this.maxRate = ratePerSecond;
+        this.rate = ratePerSecond;
+        this.tokens = capacity;
+        this.ticker = ticker;
+        this.refilledAt = ticker.read();
+        this.decreasedAt = refilledAt - DECREASE_INTERVAL_NANOS;
+    }
+
+    /**
+     * Waits until a token is available and takes it.
+     *
+     * @throws TimeoutException if the token would only be available after {@link #MAX_WAIT_NANOS}
+     */
+    void acquire() throws InterruptedException, TimeoutException {
+        long waitNanos = reserve();
+        if (waitNanos < 0) {
+            throw new TimeoutException("No token within " + TimeUnit.NANOSECONDS.toSeconds(MAX_WAIT_NANOS) + "s");
+        }
+        if (waitNanos == 0) {
+            return;
+        }
+
+        waiting.incrementAndGet();
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes a token, possibly one that is only refilled in the future.
+     *
+     * @return how long to wait until the token is available, in nanoseconds, or <code>-1</code> if no token was taken
+     * because that would take longer than {@link #MAX_WAIT_NANOS}
+     */
+    synchronized long reserve() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+
+        long waitNanos = (long) ((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+        if (waitNanos > MAX_WAIT_NANOS) {
+            return -1;
+        }
+        tokens -= 1;
+        return waitNanos;
+    }
+
+    synchronized void throttled() {
+        throttles.incrementAndGet();
+        long now = ticker.read();
+        if (now - decreasedAt >= DECREASE_INTERVAL_NANOS) {
+            refill();
+            rate = Math.max(MIN_RATE, rate / 2);
+            decreasedAt = now;
+        }
+    }
+
+    synchronized void succeeded() {
+        refill();
+        rate = Math.min(maxRate, rate + maxRate / 100);
+    }
+
+    synchronized double rate() {
+        return rate;
+    }
+
+    /**
+     * @return the number of callers waiting for a token
+     */
+    int queueDepth() {
+        return waiting.get();
+    }
+
+    long throttles() {
+        return throttles.get();
+    }
+
+    private void refill() {
+        long now = ticker.read();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free count of the agent slots of a cluster, taken either by known instances or by launches in progress.
+ * <p>
+ * A launch {@link #tryReserve reserves} a slot before talking to AWS, and afterwards either {@link #commit commits}
+ * it for the launched instance or {@link #rollback rolls it back}. Slots are only ever taken with a compare-and-set
+ * against the limit, so concurrent launches never exceed it.
+ */
+class AgentCapacity {
+    private final AtomicInteger used = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @return <code>true</code> if a slot was reserved, <code>false</code> if all <code>maxAllowed</code> slots are taken
+     */
+    boolean tryReserve(int maxAllowed) {
+        while (true) {
+            int current = used.get();
+            if (current >= maxAllowed) {
+                return false;
+            }
+            if (used.compareAndSet(current, current + 1)) {
+                pending.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Keeps a reserved slot for the instance that was launched with it.
+     */
+    void commit() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Gives back a reserved slot whose launch did not produce a new instance.
+     */
+    void rollback() {
+        pending.decrementAndGet();
+        used.decrementAndGet();
+    }
+
+    /**
+     * Takes a slot for an instance that was not launched through a reservation (e.g. found when refreshing), even if
+     * that exceeds the limit.
+     */
+    void occupy() {
+        used.incrementAndGet();
+    }
+
+    /**
+     * Frees the slots of instances that are gone.
+     */
+    void release(int slots) {
+        used.addAndGet(-slots);
+    }
+
+    /**
+     * @return the number of slots taken, including those of launches in progress
+     */
+    int used() {
+        return used.get();
+    }
+
+    /**
+     * @return the number of launches in progress
+     */
+    int pending() {
+        return pending.get();
+    }
+}
@@ -24,6 +24,11 @@ import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
 import com.continuumsecurity.elasticagent.ec2.models.StatusReport;
 import com.continuumsecurity.elasticagent.ec2.requests.CreateAgentRequest;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
 
 /**
  * Plugin implementors should implement these methods to interface to your cloud. This interface is merely a suggestion for a very simple plugin. You may change
@@ -42,6 +47,17 @@ public interface AgentInstances<T> {
      */
     T create(CreateAgentRequest request, PluginRequest pluginRequest, ConsoleLogAppender consoleLogAppender) throws Exception;
 
+    /**
+     * Same as {@link #create(CreateAgentRequest, PluginRequest, ConsoleLogAppender)}, but only decides synchronously
+     * whether an agent instance will be created, and leaves the actual creation to a background worker so that the
+     * calling thread is not blocked on the cloud provider.
+     * @param request   the request object
+     * @param pluginRequest  the plugin request object
+     * @param consoleLogAppender appender for console log, also used by the background worker to report progress
+     * @return a future holding the agent instance, or <code>null</code> if no instance was created
+     */
+    Future<T> createAsync(CreateAgentRequest request, PluginRequest pluginRequest, ConsoleLogAppender consoleLogAppender) throws Exception;
+
     /**
      * This message is sent when the plugin needs to terminate the agent instance.
      *
@@ -50,6 +66,16 @@ public interface AgentInstances<T> {
      */
     void terminate(String agentId, ClusterProfileProperties clusterProfileProperties) throws Exception;
 
+    /**
+     * This message is sent when the plugin needs to terminate several agent instances at once. Implementations should
+     * terminate them with as few calls to the cloud provider as possible.
+     *
+     * @param agentIds the elastic agent ids
+     * @param clusterProfileProperties the plugin cluster profile properties object
+     * @return the ids of the agent instances that could not be terminated
+     */
+    Set<String> terminateAll(Collection<String> agentIds, ClusterProfileProperties clusterProfileProperties) throws Exception;
+
     /**
      * This message is sent from the {@link ServerPingRequestExecutor}
      * to terminate instances that did not register with the server after a timeout. The timeout may be configurable and
@@ -96,6 +122,34 @@ public interface AgentInstances<T> {
      */
     T find(JobIdentifier jobIdentifier);
 
+    /**
+     * Assigns an agent instance that is not assigned to any job yet (e.g. a pre-launched one) to the given job, if it
+     * was launched for the same elastic profile.
+     * @param agentInstance The agent instance
+     * @param jobIdentifier The Job Identifier
+     * @param profileProperties the elastic profile properties of the job
+     * @param clusterProfileProperties the cluster profile properties object
+     * @return <code>true</code> if the agent instance is now assigned to the job
+     */
+    boolean assign(T agentInstance, JobIdentifier jobIdentifier, Map<String, String> profileProperties, ClusterProfileProperties clusterProfileProperties);
+
+    /**
+     * This message is sent whenever the plugin agreed to have a job run on an agent instance, so that implementations
+     * can tell how long jobs waited for their agents.
+     * @param agentInstance The agent instance
+     * @param jobIdentifier The Job Identifier
+     */
+    void workAssigned(T agentInstance, JobIdentifier jobIdentifier);
+
+    /**
+     * This message is sent when an agent instance has completed its job. Implementations may keep the agent instance
+     * for other jobs of the same elastic profile instead of having it terminated.
+     * @param agentId  the elastic agent id
+     * @param profileProperties the elastic profile properties of the completed job
+     * @return <code>true</code> if the agent instance is kept, <code>false</code> if it should be terminated
+     */
+    boolean release(String agentId, Map<String, String> profileProperties);
+
     /**
      * Get the status report from the agents
      * @param clusterProfileProperties the cluster properties object
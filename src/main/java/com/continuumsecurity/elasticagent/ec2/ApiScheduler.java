@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.core.exception.AbortedException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Paces the EC2 calls of all clusters that share an {@link Ec2ClientRegistry client}, i.e. one AWS account and region,
+ * so that they stay within the EC2 request rate limits instead of being throttled. Describe calls and mutating calls
+ * are limited by separate {@link AdaptiveTokenBucket token buckets}, like EC2 does, sized after the default EC2 limits.
+ * <p>
+ * Every attempt of a call, including the retries of the SDK, takes a token before it is sent. A throttled attempt
+ * (HTTP 503, which EC2 answers <code>RequestLimitExceeded</code> with) slows down its bucket. An attempt that would have
+ * to wait longer than {@link AdaptiveTokenBucket#MAX_WAIT_NANOS} for its token fails right away with a
+ * {@link QueueTimeoutException}, which counts as throttling.
+ */
+public class ApiScheduler implements ExecutionInterceptor {
+    static final double DESCRIBE_BURST = 100;
+    static final double DESCRIBE_RATE = 20;
+    static final double MUTATING_BURST = 50;
+    static final double MUTATING_RATE = 5;
+    private static final int THROTTLED = 503;
+
+    private final String account;
+    private final AdaptiveTokenBucket describeCalls;
+    private final AdaptiveTokenBucket mutatingCalls;
+
+    ApiScheduler(String account) {
+        this(account, new AdaptiveTokenBucket(DESCRIBE_BURST, DESCRIBE_RATE), new AdaptiveTokenBucket(MUTATING_BURST, MUTATING_RATE));
+    }
+
+    ApiScheduler(String account, AdaptiveTokenBucket describeCalls, AdaptiveTokenBucket mutatingCalls) {
+        this.account = account;
+        this.describeCalls = describeCalls;
+        this.mutatingCalls = mutatingCalls;
+    }
+
+    @Override
+    public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+        try {
+            bucketFor(context.request()).acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw AbortedException.builder().message("Interrupted while waiting to call EC2").cause(e).build();
+        } catch (TimeoutException e) {
+            throw new QueueTimeoutException(SdkClientException.builder()
+                    .message("Too many EC2 calls of " + account + " are queued, not calling " + context.request().getClass().getSimpleName())
+                    .cause(e));
+        }
+    }
+
+    @Override
+    public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes) {
+        AdaptiveTokenBucket bucket = bucketFor(context.request());
+        if (context.httpResponse().statusCode() == THROTTLED) {
+            bucket.throttled();
+        } else if (context.httpResponse().isSuccessful()) {
+            bucket.succeeded();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the call failed because EC2 throttled it, rather than because of the call itself
+     */
+    static boolean isThrottling(Exception e) {
+        return e instanceof QueueTimeoutException || e instanceof AwsServiceException && ((AwsServiceException) e).isThrottlingException();
+    }
+
+    private AdaptiveTokenBucket bucketFor(SdkRequest request) {
+        String call = request.getClass().getSimpleName();
+        return call.startsWith("Describe") || call.startsWith("Get") ? describeCalls : mutatingCalls;
+    }
+
+    /**
+     * @return the region, and the access key or profile, whose calls are scheduled
+     */
+    public String account() {
+        return account;
+    }
+
+    public int describeQueueDepth() {
+        return describeCalls.queueDepth();
+    }
+
+    public int mutatingQueueDepth() {
+        return mutatingCalls.queueDepth();
+    }
+
+    public double describeRate() {
+        return describeCalls.rate();
+    }
+
+    public double mutatingRate() {
+        return mutatingCalls.rate();
+    }
+
+    public long throttles() {
+        return describeCalls.throttles() + mutatingCalls.throttles();
+    }
+
+    /**
+     * Thrown instead of calling EC2 when the call would have to wait too long for its turn.
+     */
+    public static class QueueTimeoutException extends SdkClientException {
+        QueueTimeoutException(Builder builder) {
+            super(builder);
+        }
+    }
+}
@@ -29,9 +29,13 @@ import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.*;
 
 import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 import static com.continuumsecurity.elasticagent.ec2.Ec2Plugin.LOG;
@@ -40,40 +44,270 @@ import static java.util.Arrays.asList;
 public class Ec2AgentInstances implements AgentInstances<Ec2Instance> {
 
     private final ConcurrentHashMap<String, Ec2Instance> instances = new ConcurrentHashMap<>();
-    private List<JobIdentifier> jobsWaitingForAgentCreation = new ArrayList<>();
-    private boolean refreshed;
+    // instances by JobIdentifier#key of their job, kept in sync with instances and with the jobs they are assigned
+    private final ConcurrentHashMap<String, Ec2Instance> instancesByJob = new ConcurrentHashMap<>();
+    private final Set<JobIdentifier> jobsWaitingForAgentCreation = ConcurrentHashMap.newKeySet();
+    private volatile boolean refreshed;
     public Clock clock = Clock.DEFAULT;
 
-    private final Semaphore semaphore = new Semaphore(0, true);
+    private final AgentCapacity capacity = new AgentCapacity();
+    private final SubnetScheduler subnetScheduler = new SubnetScheduler();
+    private final LaunchBatcher launchBatcher = new LaunchBatcher(subnetScheduler);
+    // also guards handing out agents, so that a job never gets more than one
+    private final Set<JobIdentifier> jobsBeingLaunched = new HashSet<>();
+    private final InstanceStateCache instanceStateCache = new InstanceStateCache();
+    private final WarmPool warmPool = new WarmPool();
+    private final JobLatencies jobLatencies = new JobLatencies();
+    private final File journalDirectory;
+    // only set once the instances of a cluster are refreshed, so that throwaway instances never write to it
+    private volatile InstanceJournal journal;
+
+    public Ec2AgentInstances() {
+        this(InstanceJournal.defaultDirectory());
+    }
+
+    /**
+     * @param journalDirectory where to keep the journal of the instances, or <code>null</code> to keep none
+     */
+    Ec2AgentInstances(File journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
     @Override
-    public Ec2Instance create(CreateAgentRequest request, PluginRequest pluginRequest, ConsoleLogAppender consoleLogAppender) {
+    public Ec2Instance create(CreateAgentRequest request, PluginRequest pluginRequest, ConsoleLogAppender consoleLogAppender) throws InterruptedException {
 
         LOG.info(String.format("[Create Agent] Processing create agent request for %s", request.jobIdentifier()));
-        ClusterProfileProperties clusterProfileProperties = request.getClusterProfileProperties();
-        Ec2Instance ec2AgentForJob = agentAssignedFor(request.jobIdentifier(), request.getClusterProfileProperties());
-        if (ec2AgentForJob != null) {
-            String agentAlreadyAssignedMsg = String.format("Agent not created as an ec2-agent with id %s was already launched for the job %s.",
-                    ec2AgentForJob.id(), request.jobIdentifier());
-            consoleLogAppender.accept(agentAlreadyAssignedMsg);
-            LOG.warn(agentAlreadyAssignedMsg);
-            return ec2AgentForJob;
+        jobLatencies.createRequested(request.jobIdentifier(), request.properties(), clock.now().getMillis());
+        try {
+            Ec2Instance warmAgent = takeWarmAgent(request, consoleLogAppender);
+            if (warmAgent != null) {
+                return warmAgent;
+            }
+
+            if (!reserve(request, pluginRequest, consoleLogAppender)) {
+                return null;
+            }
+            return launchReserved(request, consoleLogAppender);
+        } finally {
+            replenishWarmPool();
         }
+    }
 
-        final Integer maxAllowedAgents = clusterProfileProperties.getMaxElasticAgents();
-        synchronized (instances) {
-            if (!jobsWaitingForAgentCreation.contains(request.jobIdentifier())) {
-                jobsWaitingForAgentCreation.add(request.jobIdentifier());
+    @Override
+    public Future<Ec2Instance> createAsync(CreateAgentRequest request, PluginRequest pluginRequest, ConsoleLogAppender consoleLogAppender) {
+
+        LOG.info(String.format("[Create Agent] Queueing create agent request for %s", request.jobIdentifier()));
+        jobLatencies.createRequested(request.jobIdentifier(), request.properties(), clock.now().getMillis());
+        try {
+            Ec2Instance warmAgent = takeWarmAgent(request, consoleLogAppender);
+            if (warmAgent != null) {
+                return CompletableFuture.completedFuture(warmAgent);
             }
-            doWithLockOnSemaphore(new SetupSemaphore(maxAllowedAgents, instances, semaphore));
-            List<Map<String, String>> messages = new ArrayList<>();
-            if (semaphore.tryAcquire()) {
-                pluginRequest.addServerHealthMessage(messages);
-                Ec2Instance instance = Ec2Instance.create(request, clusterProfileProperties, consoleLogAppender);
-                register(instance);
-                jobsWaitingForAgentCreation.remove(request.jobIdentifier());
-                return instance;
-            } else {
-                String maxLimitExceededMessage = String.format("The number of instances currently running is currently at the maximum permissible limit, \"%d\". Not creating more instances for jobs: %s.", instances.size(), jobsWaitingForAgentCreation.stream().map(JobIdentifier::getRepresentation)
+
+            if (!reserve(request, pluginRequest, consoleLogAppender)) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            try {
+                return LaunchExecutor.instance().submit(() -> {
+                    try {
+                        return launchReserved(request, consoleLogAppender);
+                    } catch (Exception e) {
+                        consoleLogAppender.accept(String.format("Failed while creating instance: %s", e.getMessage()));
+                        LOG.error("[Create Agent] Failed while creating instance for " + request.jobIdentifier(), e);
+                        throw e;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                releaseReservation(request, null);
+                String launchQueueFullMessage = String.format("Too many instances are being launched already. Not creating an instance for job %s now.", request.jobIdentifier().getRepresentation());
+                consoleLogAppender.accept(launchQueueFullMessage);
+                LOG.warn(launchQueueFullMessage);
+                return CompletableFuture.completedFuture(null);
+            }
+        } finally {
+            // the job itself gets the free capacity first
+            replenishWarmPool();
+        }
+    }
+
+    /**
+     * Assigns a warm agent of the job's elastic profile to the job, if there is one. Its agent registers with the
+     * auto-register key of the job once the instance is tagged with it.
+     */
+    private Ec2Instance takeWarmAgent(CreateAgentRequest request, ConsoleLogAppender consoleLogAppender) {
+        warmPool.demand(request, clock.now());
+
+        Ec2Instance warmAgent;
+        synchronized (jobsBeingLaunched) {
+            if (jobsBeingLaunched.contains(request.jobIdentifier()) || find(request.jobIdentifier()) != null) {
+                return null;
+            }
+
+            String warmAgentId = warmPool.take(request);
+            warmAgent = warmAgentId == null ? null : instances.get(warmAgentId);
+            if (warmAgent == null || !warmAgent.assignTo(request.jobIdentifier(), clock.now())) {
+                return null;
+            }
+            index(warmAgent);
+            journalAssignment(warmAgent);
+        }
+
+        try {
+            warmAgent.tagWithRegistration(request, request.getClusterProfileProperties());
+        } catch (Exception e) {
+            // the agent could never register, a new instance is launched for the job instead
+            LOG.warn("[Create Agent] Could not tag warm instance " + warmAgent.id() + " with the auto-register key of the job " + request.jobIdentifier().getRepresentation() + ", terminating it", e);
+            terminateAll(Collections.singleton(warmAgent.id()), request.getClusterProfileProperties());
+            return null;
+        }
+
+        String assignedMessage = String.format("Assigned warm agent %s to the job %s.", warmAgent.id(), request.jobIdentifier().getRepresentation());
+        consoleLogAppender.accept(assignedMessage);
+        LOG.info("[Create Agent] " + assignedMessage);
+        return warmAgent;
+    }
+
+    @Override
+    public boolean assign(Ec2Instance agent, JobIdentifier jobIdentifier, Map<String, String> profileProperties, ClusterProfileProperties clusterProfileProperties) {
+        synchronized (jobsBeingLaunched) {
+            // a job never gets a second agent
+            if (jobsBeingLaunched.contains(jobIdentifier) || find(jobIdentifier) != null) {
+                return false;
+            }
+            if (!warmPool.take(agent.id(), profileProperties)) {
+                return false;
+            }
+            if (!agent.assignTo(jobIdentifier, clock.now())) {
+                // assigned meanwhile; given back agents were last unassigned when they were given back
+                warmPool.putBack(agent.id(), profileProperties, agent.environment(), agent.completedJobs() > 0 ? agent.assignedAt() : null);
+                return false;
+            }
+            index(agent);
+            journalAssignment(agent);
+        }
+
+        LOG.info(String.format("[Should Assign Work] Assigned warm agent %s to the job %s", agent.id(), jobIdentifier));
+        tagWithJobInBackground(agent, clusterProfileProperties);
+        replenishWarmPool();
+        return true;
+    }
+
+    @Override
+    public void workAssigned(Ec2Instance agent, JobIdentifier jobIdentifier) {
+        jobLatencies.assigned(jobIdentifier, clock.now().getMillis());
+    }
+
+    /**
+     * Notes when the agents of jobs were first listed by the server.
+     */
+    public void agentsListed(Agents agents) {
+        long now = clock.now().getMillis();
+        for (Agent agent : agents.agents()) {
+            Ec2Instance instance = instances.get(agent.elasticAgentId());
+            if (instance != null && instance.getJobIdentifier() != null) {
+                jobLatencies.listed(instance.getJobIdentifier(), now);
+            }
+        }
+    }
+
+    @Override
+    public boolean release(String agentId, Map<String, String> profileProperties) {
+        Ec2Instance instance = instances.get(agentId);
+        if (instance == null || instance.completedJobs() + 1 >= WarmPool.reuseMaxJobs(profileProperties)) {
+            return false;
+        }
+
+        unindex(instance);
+        instance.jobCompleted(clock.now());
+        journalAssignment(instance);
+        warmPool.giveBack(agentId, profileProperties, instance.environment(), clock.now());
+        LOG.info(String.format("[Job Completion] Keeping agent %s for another job, it has completed %d jobs so far", agentId, instance.completedJobs()));
+        return true;
+    }
+
+    private void tagWithJobInBackground(Ec2Instance agent, ClusterProfileProperties clusterProfileProperties) {
+        try {
+            LaunchExecutor.instance().execute(() -> {
+                try {
+                    agent.tagWithJob(clusterProfileProperties);
+                } catch (Exception e) {
+                    LOG.warn("[Warm Pool] Could not tag instance " + agent.id() + " with its job, it will not be recognised after a restart", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("[Warm Pool] Could not tag instance " + agent.id() + " with its job, it will not be recognised after a restart");
+        }
+    }
+
+    /**
+     * Tops up the warm pools of all elastic profiles that recently requested agents. Warm agents count against the
+     * maximum number of agents of the cluster like any other agent, and are launched in the background.
+     */
+    public void replenishWarmPool() {
+        for (WarmPool.Replenishment replenishment : warmPool.replenishments(clock.now())) {
+            ClusterProfileProperties clusterProfileProperties = replenishment.template().getClusterProfileProperties();
+            int reserved = 0;
+            while (reserved < replenishment.count() && capacity.tryReserve(clusterProfileProperties.getMaxElasticAgents())) {
+                reserved++;
+            }
+
+            if (reserved == 0) {
+                warmPool.launched(replenishment, Collections.emptyList());
+                continue;
+            }
+            LOG.info(String.format("[Warm Pool] Launching %d of %d missing warm agents", reserved, replenishment.count()));
+            launchWarmAgents(replenishment, reserved, clusterProfileProperties);
+        }
+    }
+
+    private void launchWarmAgents(WarmPool.Replenishment replenishment, int count, ClusterProfileProperties clusterProfileProperties) {
+        try {
+            LaunchExecutor.instance().execute(() -> {
+                List<Ec2Instance> launched = Collections.emptyList();
+                try {
+                    launched = Ec2Instance.createWarm(replenishment.template(), count, clusterProfileProperties, subnetScheduler);
+                } catch (Exception e) {
+                    LOG.error("[Warm Pool] Could not launch warm agents", e);
+                } finally {
+                    completeWarmLaunch(replenishment, count, launched);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("[Warm Pool] Too many instances are being launched already, not launching warm agents now");
+            completeWarmLaunch(replenishment, count, Collections.emptyList());
+        }
+    }
+
+    private void completeWarmLaunch(WarmPool.Replenishment replenishment, int reserved, List<Ec2Instance> launched) {
+        for (Ec2Instance instance : launched) {
+            commit(instance);
+        }
+        for (int i = launched.size(); i < reserved; i++) {
+            capacity.rollback();
+        }
+        warmPool.launched(replenishment, launched.stream().map(Ec2Instance::id).collect(Collectors.toList()));
+    }
+
+    /**
+     * Reserves capacity for one more instance without talking to AWS. Every successful reservation must be followed
+     * by {@link #launchReserved}, which gives it back.
+     */
+    private boolean reserve(CreateAgentRequest request, PluginRequest pluginRequest, ConsoleLogAppender consoleLogAppender) {
+        final Integer maxAllowedAgents = request.getClusterProfileProperties().getMaxElasticAgents();
+        List<Map<String, String>> messages = new ArrayList<>();
+        synchronized (jobsBeingLaunched) {
+            if (jobsBeingLaunched.contains(request.jobIdentifier())) {
+                String alreadyLaunchingMessage = String.format("Agent not created as an ec2-agent is already being launched for the job %s.", request.jobIdentifier());
+                consoleLogAppender.accept(alreadyLaunchingMessage);
+                LOG.warn(alreadyLaunchingMessage);
+                return false;
+            }
+
+            jobsWaitingForAgentCreation.add(request.jobIdentifier());
+            // launches in progress are not in the instances map yet, but already hold a slot
+            if (!capacity.tryReserve(maxAllowedAgents)) {
+                String maxLimitExceededMessage = String.format("The number of instances currently running is currently at the maximum permissible limit, \"%d\". Not creating more instances for jobs: %s.", capacity.used(), jobsWaitingForAgentCreation.stream().map(JobIdentifier::getRepresentation)
                         .collect(Collectors.joining(", ")));
                 Map<String, String> messageToBeAdded = new HashMap<>();
                 messageToBeAdded.put("type", "warning");
@@ -82,14 +316,48 @@ public class Ec2AgentInstances implements AgentInstances<Ec2Instance> {
                 pluginRequest.addServerHealthMessage(messages);
                 consoleLogAppender.accept(maxLimitExceededMessage);
                 LOG.warn(maxLimitExceededMessage);
-                return null;
+                return false;
             }
+            jobsBeingLaunched.add(request.jobIdentifier());
         }
+
+        pluginRequest.addServerHealthMessage(messages);
+        return true;
     }
 
-    private void doWithLockOnSemaphore(Runnable runnable) {
-        synchronized (semaphore) {
-            runnable.run();
+    private Ec2Instance launchReserved(CreateAgentRequest request, ConsoleLogAppender consoleLogAppender) throws InterruptedException {
+        ClusterProfileProperties clusterProfileProperties = request.getClusterProfileProperties();
+        Ec2Instance instance = null;
+        try {
+            Ec2Instance ec2AgentForJob = agentAssignedFor(request.jobIdentifier(), clusterProfileProperties);
+            if (ec2AgentForJob != null) {
+                String agentAlreadyAssignedMsg = String.format("Agent not created as an ec2-agent with id %s was already launched for the job %s.",
+                        ec2AgentForJob.id(), request.jobIdentifier());
+                consoleLogAppender.accept(agentAlreadyAssignedMsg);
+                LOG.warn(agentAlreadyAssignedMsg);
+                return ec2AgentForJob;
+            }
+
+            // the lock is not held while talking to AWS, so that concurrent requests can be batched into one launch
+            instance = launchBatcher.launch(request, clusterProfileProperties, consoleLogAppender);
+            if (instance != null) {
+                jobLatencies.launched(request.jobIdentifier(), clock.now().getMillis());
+            }
+            return instance;
+        } finally {
+            releaseReservation(request, instance);
+        }
+    }
+
+    private void releaseReservation(CreateAgentRequest request, Ec2Instance instance) {
+        if (instance != null) {
+            commit(instance);
+        } else {
+            capacity.rollback();
+        }
+        jobsWaitingForAgentCreation.remove(request.jobIdentifier());
+        synchronized (jobsBeingLaunched) {
+            jobsBeingLaunched.remove(request.jobIdentifier());
         }
     }
 
@@ -102,35 +370,46 @@ public class Ec2AgentInstances implements AgentInstances<Ec2Instance> {
             LOG.warn("Requested to terminate an instance that does not exist " + agentId);
         }
 
-        doWithLockOnSemaphore(new Runnable() {
-            @Override
-            public void run() {
-                semaphore.release();
-            }
-        });
+        unregister(Collections.singleton(agentId));
+        warmPool.remove(Collections.singleton(agentId));
+    }
 
-        synchronized (instances) {
-            instances.remove(agentId);
+    @Override
+    public Set<String> terminateAll(Collection<String> agentIds, ClusterProfileProperties clusterProfileProperties) {
+        List<String> known = new ArrayList<>();
+        for (String agentId : agentIds) {
+            if (instances.containsKey(agentId)) {
+                known.add(agentId);
+            } else {
+                LOG.warn("Requested to terminate an instance that does not exist " + agentId);
+            }
         }
+
+        Set<String> failed = known.isEmpty() ? Collections.emptySet() : Ec2Instance.terminateAll(known, clusterProfileProperties);
+
+        List<String> terminated = new ArrayList<>(known);
+        terminated.removeAll(failed);
+        unregister(terminated);
+        warmPool.remove(terminated);
+
+        return failed;
     }
 
     @Override
     public void terminateUnregisteredInstances(ClusterProfileProperties clusterProfileProperties, Agents agents) throws Exception {
 
-        Ec2AgentInstances toTerminate = unregisteredAfterTimeout(clusterProfileProperties, agents);
-        if (toTerminate.instances.isEmpty()) {
+        List<String> toTerminate = unregisteredAfterTimeout(clusterProfileProperties, agents);
+        if (toTerminate.isEmpty()) {
             return;
         }
 
-        LOG.warn("Terminating instances that did not register " + toTerminate.instances.keySet());
-        for (Ec2Instance instance : toTerminate.instances.values()) {
-            terminate(instance.id(), clusterProfileProperties);
-        }
+        LOG.warn("Terminating instances that did not register " + toTerminate);
+        terminateAll(toTerminate, clusterProfileProperties);
     }
 
-    private Ec2AgentInstances unregisteredAfterTimeout(PluginSettings settings, Agents knownAgents) throws Exception {
+    private List<String> unregisteredAfterTimeout(PluginSettings settings, Agents knownAgents) {
         Period period = settings.getAutoRegisterPeriod();
-        Ec2AgentInstances unregisteredContainers = new Ec2AgentInstances();
+        List<String> unregisteredContainers = new ArrayList<>();
 
         for (String instanceId : instances.keySet()) {
             if (knownAgents.containsAgentWithId(instanceId)) {
@@ -138,9 +417,20 @@ public class Ec2AgentInstances implements AgentInstances<Ec2Instance> {
             }
 
             Ec2Instance instance = instances.get(instanceId);
+            if (instance == null) {
+                continue;
+            }
 
-            if (clock.now().isAfter(instance.createdAt().plus(period))) {
-                unregisteredContainers.register(instance);
+            // warm instances only register once a job takes them
+            if (warmPool.isWarm(instanceId)) {
+                if (warmPool.removeIfIdle(instanceId, clock.now())) {
+                    unregisteredContainers.add(instanceId);
+                }
+                continue;
+            }
+
+            if (clock.now().isAfter(instance.assignedAt().plus(period))) {
+                unregisteredContainers.add(instanceId);
             }
         }
         return unregisteredContainers;
@@ -155,7 +445,15 @@ public class Ec2AgentInstances implements AgentInstances<Ec2Instance> {
                 continue;
             }
 
-            if (clock.now().isAfter(instance.createdAt().plus(clusterProfileProperties.getAutoRegisterPeriod()))) {
+            // warm agents wait for jobs until they have been idle for too long
+            if (warmPool.isWarm(instance.id())) {
+                if (warmPool.removeIfIdle(instance.id(), clock.now())) {
+                    oldAgents.add(agent);
+                }
+                continue;
+            }
+
+            if (clock.now().isAfter(instance.assignedAt().plus(clusterProfileProperties.getAutoRegisterPeriod()))) {
                 oldAgents.add(agent);
             }
         }
@@ -163,27 +461,126 @@ public class Ec2AgentInstances implements AgentInstances<Ec2Instance> {
     }
 
     @Override
-    public void refreshAll(ClusterProfileProperties clusterProfileProperties) throws Exception {
+    public synchronized void refreshAll(ClusterProfileProperties clusterProfileProperties) throws Exception {
         if (!refreshed) {
-    
-            Ec2Client ec2 = Ec2Instance.createEc2Client(clusterProfileProperties);
+            List<Ec2Instance> journaled = openJournal(clusterProfileProperties);
+            if (journaled.isEmpty()) {
+                LOG.info("[Refresh] Refreshed " + registerDescribedInstances(clusterProfileProperties) + " instances");
+            } else {
+                restore(journaled, clusterProfileProperties);
+                discoverInBackground(clusterProfileProperties);
+            }
+            refreshed = true;
+        }
+    }
 
-            DescribeInstancesResponse response = ec2.describeInstances(
-                    DescribeInstancesRequest.builder()
-                            .filters(
-                                    Filter.builder()
-                                            .name("instance-state-name")
-                                            .values("pending", "running")
-                                            .build(),
-                                    Filter.builder()
-                                            .name("tag:type")
-                                            .values(Constants.ELASTIC_AGENT_TAG)
-                                            .build()
-                            )
-                            .build()
-            );
+    private List<Ec2Instance> openJournal(ClusterProfileProperties clusterProfileProperties) {
+        if (journalDirectory == null || journal != null) {
+            return Collections.emptyList();
+        }
 
-            for (Reservation reservation : response.reservations()) {
+        InstanceJournal clusterJournal = new InstanceJournal(journalDirectory, clusterProfileProperties.uuid());
+        try {
+            List<Ec2Instance> journaled = clusterJournal.replay();
+            journal = clusterJournal;
+            return journaled;
+        } catch (IOException e) {
+            LOG.warn("[Journal] Could not read the journal of cluster " + clusterProfileProperties.uuid() + ", refreshing all instances instead", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Takes over the journal of a cluster whose profile changed, as the id of a cluster changes with its settings.
+     * The journal of the previous instances of the cluster is closed first, so that they no longer write to it.
+     *
+     * @param previous the instances of the cluster before the change, or <code>null</code> if there were none
+     */
+    public void takeOverJournal(Ec2AgentInstances previous, ClusterProfileProperties oldCluster, ClusterProfileProperties newCluster) {
+        if (previous != null) {
+            previous.closeJournal();
+        }
+        if (journalDirectory == null || oldCluster.uuid().equals(newCluster.uuid())) {
+            return;
+        }
+
+        try {
+            InstanceJournal.move(journalDirectory, oldCluster.uuid(), newCluster.uuid());
+        } catch (IOException e) {
+            LOG.warn("[Journal] Could not move the journal of cluster " + oldCluster.uuid() + " to " + newCluster.uuid() + ", refreshing all instances instead", e);
+        }
+    }
+
+    /**
+     * Closes and deletes the journal of a deleted cluster.
+     */
+    public void deleteJournal(ClusterProfileProperties clusterProfileProperties) {
+        closeJournal();
+        if (journalDirectory == null) {
+            return;
+        }
+
+        try {
+            InstanceJournal.delete(journalDirectory, clusterProfileProperties.uuid());
+        } catch (IOException e) {
+            LOG.warn("[Journal] Could not delete the journal of cluster " + clusterProfileProperties.uuid(), e);
+        }
+    }
+
+    private void closeJournal() {
+        InstanceJournal clusterJournal = journal;
+        if (clusterJournal != null) {
+            clusterJournal.close();
+        }
+    }
+
+    /**
+     * Registers the journaled instances that still exist, and forgets the others.
+     */
+    private void restore(List<Ec2Instance> journaled, ClusterProfileProperties clusterProfileProperties) {
+        Set<String> existing = Ec2Instance.findExisting(journaled.stream().map(Ec2Instance::id).collect(Collectors.toList()), clusterProfileProperties);
+
+        List<String> gone = new ArrayList<>();
+        for (Ec2Instance instance : journaled) {
+            if (existing.contains(instance.id())) {
+                // already journaled
+                register(instance);
+            } else {
+                gone.add(instance.id());
+            }
+        }
+        journal.terminated(gone);
+        LOG.info(String.format("[Refresh] Restored %d instances from the journal, %d journaled instances are gone", existing.size(), gone.size()));
+    }
+
+    /**
+     * Looks for instances that are missing from the journal, e.g. because they were launched right before a crash,
+     * without delaying the request that triggered the refresh. Journaled instances keep their journaled properties.
+     */
+    private void discoverInBackground(ClusterProfileProperties clusterProfileProperties) {
+        try {
+            LaunchExecutor.instance().execute(() -> {
+                try {
+                    int before = instances.size();
+                    registerDescribedInstances(clusterProfileProperties);
+                    LOG.info("[Refresh] Found " + (instances.size() - before) + " instances that were not journaled");
+                } catch (Exception e) {
+                    LOG.warn("[Refresh] Could not look for instances that were not journaled", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("[Refresh] Too many instances are being launched already, not looking for instances that were not journaled");
+        }
+    }
+
+    private int registerDescribedInstances(ClusterProfileProperties clusterProfileProperties) {
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+
+            // pages are fetched lazily while iterating, so only one page is held in memory at a time
+            int refreshedInstances = 0;
+            List<Ec2Instance> registered = new ArrayList<>();
+            for (Reservation reservation : ec2.describeInstancesPaginator(Ec2Instance.describeElasticAgents(clusterProfileProperties, "pending", "running")).reservations()) {
                 for (Instance instance : reservation.instances()) {
                     Map<String, String> properties = new HashMap<>();
                     properties.put("ec2_ami", instance.imageId());
@@ -191,17 +588,62 @@ public class Ec2AgentInstances implements AgentInstances<Ec2Instance> {
                     properties.put("ec2_sg", StringUtils.join(instance.securityGroups(), ","));
                     properties.put("ec2_subnets", instance.subnetId());
                     properties.put("ec2_key", instance.keyName());
+                    if (instance.instanceLifecycle() == InstanceLifecycleType.SPOT) {
+                        properties.put(Ec2Instance.SPOT_PROPERTY, "true");
+                    }
 
-                    register(new Ec2Instance(instance.instanceId(),
+                    Ec2Instance ec2Instance = new Ec2Instance(instance.instanceId(),
                             Date.from(instance.launchTime()),
                             properties,
-                            JobIdentifier.fromJson(getTag(instance.tags(), "JsonJobIdentifier")))
-                    );
+                            getTag(instance.tags(), Ec2Instance.ENVIRONMENT_TAG),
+                            instance.subnetId(),
+                            JobIdentifier.fromJson(getTag(instance.tags(), "JsonJobIdentifier")));
+                    if (register(ec2Instance)) {
+                        registered.add(ec2Instance);
+                    }
+                    refreshedInstances++;
                     LOG.debug("Refreshed instance " + instance.instanceId());
                 }
             }
-            refreshed = true;
+
+            InstanceJournal clusterJournal = journal;
+            if (clusterJournal != null) {
+                clusterJournal.launched(registered);
+            }
+            return refreshedInstances;
+        }
+    }
+
+    /**
+     * Forgets the spot instances that EC2 is interrupting, so that the capacity they took is available for the agents
+     * replacing them, and so that their jobs are no longer considered to have an agent. EC2 terminates the instances
+     * itself.
+     *
+     * @return the interrupted instances
+     */
+    public List<Ec2Instance> removeInterruptedSpotInstances(ClusterProfileProperties clusterProfileProperties) {
+        List<String> spotInstanceIds = new ArrayList<>();
+        for (Ec2Instance instance : instances.values()) {
+            // instances that fell back to on-demand have no spot request, and are left out by the lookup
+            if ("true".equalsIgnoreCase(instance.properties().get(Ec2Instance.SPOT_PROPERTY))) {
+                spotInstanceIds.add(instance.id());
+            }
+        }
+        if (spotInstanceIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Ec2Instance> interrupted = new ArrayList<>();
+        for (String instanceId : SpotInterruptionMonitor.findInterrupted(spotInstanceIds, clusterProfileProperties)) {
+            Ec2Instance instance = instances.get(instanceId);
+            if (instance != null) {
+                interrupted.add(instance);
+            }
         }
+        List<String> interruptedIds = interrupted.stream().map(Ec2Instance::id).collect(Collectors.toList());
+        unregister(interruptedIds);
+        warmPool.remove(interruptedIds);
+        return interrupted;
     }
 
     @Override
@@ -211,51 +653,32 @@ public class Ec2AgentInstances implements AgentInstances<Ec2Instance> {
 
     @Override
     public Ec2Instance find(JobIdentifier jobIdentifier) {
-        return instances.values()
-                .stream()
-                .filter(x -> x.getJobIdentifier().equals(jobIdentifier))
-                .findFirst()
-                .orElse(null);
+        return jobIdentifier == null ? null : instancesByJob.get(jobIdentifier.key());
     }
 
     @Override
     public StatusReport getStatusReport(ClusterProfileProperties clusterProfileProperties) throws Exception {
-            Ec2Client ec2 = Ec2Instance.createEc2Client(clusterProfileProperties);
-
-        DescribeInstancesResponse response = ec2.describeInstances(
-                DescribeInstancesRequest.builder()
-                        .filters(
-                                Filter.builder()
-                                        .name("instance-state-name")
-                                        .values("pending", "running", "shutting-down", "stopping", "stopped")
-                                        .build(),
-                                Filter.builder()
-                                        .name("tag:type")
-                                        .values(Constants.ELASTIC_AGENT_TAG)
-                                        .build()
-                        )
-                        .build()
-        );
+        if (!instanceStateCache.isFresh(clusterProfileProperties)) {
+            instanceStateCache.refresh(clusterProfileProperties);
+        }
 
         List<InstanceStatusReport> instanceStatusReportList = new ArrayList<>();
 
-        for (Reservation reservation : response.reservations()) {
-            for (Instance instance : reservation.instances()) {
-                instanceStatusReportList.add(new InstanceStatusReport(
-                        instance.instanceId(),
-                        instance.instanceTypeAsString(),
-                        instance.imageId(),
-                        instance.state().nameAsString(),
-                        instance.privateIpAddress(),
-                        Date.from(instance.launchTime()).getTime(),
-                        extractPipelineNameFromTags(instance.tags())
-                ));
-            }
+        for (Instance instance : instanceStateCache.all()) {
+            instanceStatusReportList.add(new InstanceStatusReport(
+                    instance.instanceId(),
+                    instance.instanceTypeAsString(),
+                    instance.imageId(),
+                    instance.state().nameAsString(),
+                    instance.privateIpAddress(),
+                    Date.from(instance.launchTime()).getTime(),
+                    extractPipelineNameFromTags(instance.tags())
+            ));
         }
 
         LOG.info("Status report " + instanceStatusReportList.size() + " instances");
 
-        return new StatusReport(instanceStatusReportList.size(), instanceStatusReportList);
+        return new StatusReport(instanceStatusReportList.size(), instanceStatusReportList, jobLatencies.report());
     }
 
     private Ec2Instance agentAssignedFor(JobIdentifier jobIdentifier, ClusterProfileProperties clusterProfileProperties) {
@@ -278,30 +701,42 @@ public class Ec2AgentInstances implements AgentInstances<Ec2Instance> {
 
     @Override
     public AgentStatusReport getAgentStatusReport(ClusterProfileProperties clusterProfileProperties, Ec2Instance agentInstance) {
-            Ec2Client ec2 = Ec2Instance.createEc2Client(clusterProfileProperties);
-
-        DescribeInstancesResponse response = ec2.describeInstances(
-                DescribeInstancesRequest.builder()
-                        .filters(
-                                Filter.builder()
-                                        .name("instance-id")
-                                        .values(agentInstance.id())
-                                        .build(),
-                                Filter.builder()
-                                        .name("tag:type")
-                                        .values(Constants.ELASTIC_AGENT_TAG)
-                                        .build()
-                        )
-                        .build()
-        );
-
-        Instance instance = response.reservations().get(0).instances().get(0);
-
-        return new AgentStatusReport(
-                agentInstance.getJobIdentifier(),
-                instance,
-                agentInstance.createdAt().getMillis()
-        );
+        Instance cached = instanceStateCache.isFresh(clusterProfileProperties) ? instanceStateCache.get(agentInstance.id()) : null;
+        if (cached != null) {
+            return new AgentStatusReport(agentInstance.getJobIdentifier(), cached, agentInstance.createdAt().getMillis());
+        }
+
+        // instances launched after the last poll are not cached yet
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+
+            DescribeInstancesResponse response = ec2.describeInstances(
+                    DescribeInstancesRequest.builder()
+                            .filters(
+                                    Filter.builder()
+                                            .name("instance-id")
+                                            .values(agentInstance.id())
+                                            .build(),
+                                    Filter.builder()
+                                            .name("tag:type")
+                                            .values(Constants.ELASTIC_AGENT_TAG)
+                                            .build()
+                            )
+                            .build()
+            );
+
+            Instance instance = response.reservations().get(0).instances().get(0);
+
+            return new AgentStatusReport(
+                    agentInstance.getJobIdentifier(),
+                    instance,
+                    agentInstance.createdAt().getMillis()
+            );
+        }
+    }
+
+    InstanceStateCache instanceStateCache() {
+        return instanceStateCache;
     }
 
     // used by tests
@@ -309,8 +744,102 @@ public class Ec2AgentInstances implements AgentInstances<Ec2Instance> {
         return instances.containsKey(agentId);
     }
 
-    private void register(Ec2Instance instance) {
-        instances.put(instance.id(), instance);
+    // used by tests
+    boolean isWarm(String agentId) {
+        return warmPool.isWarm(agentId);
+    }
+
+    /**
+     * Registers an instance that was not launched with a reserved slot, and gives it a slot of its own.
+     *
+     * @return <code>false</code> if the instance was registered already
+     */
+    private boolean register(Ec2Instance instance) {
+        if (instances.putIfAbsent(instance.id(), instance) == null) {
+            index(instance);
+            subnetScheduler.agentAdded(instance.subnetId());
+            capacity.occupy();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Registers an instance that was launched with a reserved slot.
+     */
+    private void commit(Ec2Instance instance) {
+        if (instances.putIfAbsent(instance.id(), instance) == null) {
+            index(instance);
+            subnetScheduler.agentAdded(instance.subnetId());
+            journalLaunch(instance);
+            capacity.commit();
+        } else {
+            // the job already had this instance, the reserved slot was not needed
+            capacity.rollback();
+        }
+    }
+
+    private void unregister(Collection<String> agentIds) {
+        int removed = 0;
+        for (String agentId : agentIds) {
+            Ec2Instance instance = instances.remove(agentId);
+            if (instance != null) {
+                unindex(instance);
+                subnetScheduler.agentRemoved(instance.subnetId());
+                removed++;
+            }
+        }
+        capacity.release(removed);
+
+        InstanceJournal clusterJournal = journal;
+        if (clusterJournal != null) {
+            clusterJournal.terminated(agentIds);
+        }
+    }
+
+    private void journalLaunch(Ec2Instance instance) {
+        InstanceJournal clusterJournal = journal;
+        if (clusterJournal != null) {
+            clusterJournal.launched(Collections.singletonList(instance));
+        }
+    }
+
+    private void journalAssignment(Ec2Instance instance) {
+        InstanceJournal clusterJournal = journal;
+        if (clusterJournal != null) {
+            clusterJournal.assigned(instance.id(), instance.getJobIdentifier());
+        }
+    }
+
+    private void index(Ec2Instance instance) {
+        JobIdentifier jobIdentifier = instance.getJobIdentifier();
+        if (jobIdentifier != null) {
+            instancesByJob.put(jobIdentifier.key(), instance);
+        }
+    }
+
+    private void unindex(Ec2Instance instance) {
+        JobIdentifier jobIdentifier = instance.getJobIdentifier();
+        if (jobIdentifier != null) {
+            // another instance may have been indexed for the job since
+            instancesByJob.remove(jobIdentifier.key(), instance);
+        }
+    }
+
+    SubnetScheduler subnetScheduler() {
+        return subnetScheduler;
+    }
+
+    int liveInstances() {
+        return instances.size();
+    }
+
+    int pendingInstances() {
+        return capacity.pending();
+    }
+
+    AgentCapacity capacity() {
+        return capacity;
     }
 
     @Nullable
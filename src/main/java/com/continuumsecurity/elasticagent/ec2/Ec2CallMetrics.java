@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+
+/**
+ * Records how long every EC2 call takes in {@link Metrics#AWS_CALL_DURATION}, from the point of view of its caller,
+ * i.e. including the time spent waiting for the {@link ApiScheduler} and the retries of the SDK.
+ */
+class Ec2CallMetrics implements ExecutionInterceptor {
+    private static final ExecutionAttribute<Long> STARTED_AT = new ExecutionAttribute<>("Ec2CallStartedAt");
+
+    @Override
+    public void beforeExecution(Context.BeforeExecution context, ExecutionAttributes executionAttributes) {
+        executionAttributes.putAttribute(STARTED_AT, System.nanoTime());
+    }
+
+    @Override
+    public void afterExecution(Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+        record(executionAttributes);
+    }
+
+    @Override
+    public void onExecutionFailure(Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+        record(executionAttributes);
+    }
+
+    private void record(ExecutionAttributes executionAttributes) {
+        Long startedAt = executionAttributes.getAttribute(STARTED_AT);
+        if (startedAt != null) {
+            Metrics.AWS_CALL_DURATION.observe(Metrics.seconds(System.nanoTime() - startedAt),
+                    executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME));
+        }
+    }
+}
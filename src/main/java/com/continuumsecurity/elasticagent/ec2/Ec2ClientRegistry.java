@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import software.amazon.awssdk.services.ec2.Ec2Client;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.continuumsecurity.elasticagent.ec2.Ec2Plugin.LOG;
+
+/**
+ * Keeps one long-lived {@link Ec2Client} per distinct set of AWS credentials, region and endpoint.
+ * <p>
+ * Every client owns an HTTP connection pool, so clients are shared between all cluster profiles that resolve to the same
+ * {@link Key} and are only closed once the last of those cluster profiles is evicted, and no {@link Lease} on them is
+ * open anymore.
+ */
+public class Ec2ClientRegistry {
+    private static final Ec2ClientRegistry REGISTRY = new Ec2ClientRegistry();
+
+    private final ConcurrentHashMap<Key, Entry> clients = new ConcurrentHashMap<>();
+    // by account and region, so that clients of the same account with e.g. rotated secrets share their rate limits.
+    // Clients are created and schedulers removed while holding its lock, so that no new client gets a scheduler that
+    // is being removed
+    private final ConcurrentHashMap<String, ApiScheduler> schedulers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Key, Set<String>> clustersUsingClient = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // used by tests
+    Ec2ClientRegistry() {
+    }
+
+    public static Ec2ClientRegistry instance() {
+        return REGISTRY;
+    }
+
+    /**
+     * Leases the client of the given cluster profile. The client stays open until the lease is closed, even if the
+     * cluster profile is evicted in the meantime, so use it with try-with-resources.
+     */
+    public Lease acquire(ClusterProfileProperties clusterProfileProperties) {
+        Key key = Key.of(clusterProfileProperties);
+        clustersUsingClient.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(clusterProfileProperties.uuid());
+
+        while (true) {
+            boolean[] created = {false};
+            Entry entry = clients.get(key);
+            if (entry == null) {
+                synchronized (schedulers) {
+                    entry = clients.computeIfAbsent(key, k -> {
+                        created[0] = true;
+                        ApiScheduler scheduler = schedulers.computeIfAbsent(k.account(), ApiScheduler::new);
+                        return new Entry(k, Ec2Instance.createEc2Client(clusterProfileProperties, scheduler));
+                    });
+                }
+            }
+
+            if (entry.lease()) {
+                if (created[0]) {
+                    misses.incrementAndGet();
+                    LOG.debug(String.format("[EC2 Client] Created client for %s (hits: %d, misses: %d)", key, hits.get(), misses.get()));
+                } else {
+                    hits.incrementAndGet();
+                }
+                return new Lease(entry);
+            }
+            // evicted between the lookup and the lease, the next lookup creates a new client
+        }
+    }
+
+    /**
+     * Releases the client used by the given cluster profile. The client is closed once no other known cluster profile
+     * shares it and the last lease on it is closed.
+     */
+    public void evict(ClusterProfileProperties clusterProfileProperties) {
+        Key key = Key.of(clusterProfileProperties);
+        Set<String> clusters = clustersUsingClient.get(key);
+        if (clusters != null) {
+            clusters.remove(clusterProfileProperties.uuid());
+            if (!clusters.isEmpty()) {
+                return;
+            }
+            clustersUsingClient.remove(key);
+        }
+
+        Entry entry;
+        synchronized (schedulers) {
+            entry = clients.remove(key);
+            if (clients.keySet().stream().noneMatch(k -> k.account().equals(key.account()))) {
+                schedulers.remove(key.account());
+            }
+        }
+        if (entry != null) {
+            entry.retire();
+        }
+    }
+
+    // used by tests
+    void register(ClusterProfileProperties clusterProfileProperties, Ec2Client client) {
+        Key key = Key.of(clusterProfileProperties);
+        clustersUsingClient.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(clusterProfileProperties.uuid());
+        clients.put(key, new Entry(key, client));
+    }
+
+    public boolean sharesClient(ClusterProfileProperties one, ClusterProfileProperties other) {
+        return Key.of(one).equals(Key.of(other));
+    }
+
+    /**
+     * @return the schedulers of the EC2 calls of each account and region a client is kept for
+     */
+    public Collection<ApiScheduler> apiSchedulers() {
+        return schedulers.values();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * A client in use by the holder of the lease. Closing the lease gives the client back.
+     */
+    public static class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean released;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public Ec2Client client() {
+            return entry.client;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                entry.release();
+            }
+        }
+    }
+
+    /**
+     * A client and the number of leases on it. A retired client is closed as soon as it has no leases left.
+     */
+    private static class Entry {
+        private final Key key;
+        private final Ec2Client client;
+        private int leases;
+        private boolean retired;
+
+        private Entry(Key key, Ec2Client client) {
+            this.key = key;
+            this.client = client;
+        }
+
+        synchronized boolean lease() {
+            if (retired) {
+                return false;
+            }
+            leases++;
+            return true;
+        }
+
+        synchronized void release() {
+            leases--;
+            closeIfUnused();
+        }
+
+        synchronized void retire() {
+            retired = true;
+            closeIfUnused();
+        }
+
+        private void closeIfUnused() {
+            if (retired && leases == 0) {
+                LOG.info(String.format("[EC2 Client] Closing client for %s", key));
+                client.close();
+            }
+        }
+    }
+
+    static class Key {
+        private final String region;
+        private final String accessKeyId;
+        private final String secretAccessKey;
+        private final String profile;
+        private final String endpointUrl;
+
+        private Key(String region, String accessKeyId, String secretAccessKey, String profile, String endpointUrl) {
+            this.region = region;
+            this.accessKeyId = accessKeyId;
+            this.secretAccessKey = secretAccessKey;
+            this.profile = profile;
+            this.endpointUrl = endpointUrl;
+        }
+
+        static Key of(ClusterProfileProperties clusterProfileProperties) {
+            return new Key(clusterProfileProperties.getAwsRegion().id(),
+                    clusterProfileProperties.getAwsAccessKeyId(),
+                    clusterProfileProperties.getAwsSecretAccessKey(),
+                    clusterProfileProperties.getAwsProfile(),
+                    clusterProfileProperties.getAwsEndpointUrl());
+        }
+
+        /**
+         * @return the region, and the access key or profile, of the client
+         */
+        String account() {
+            String account = region;
+            if (accessKeyId != null) {
+                account += "/" + accessKeyId;
+            } else if (profile != null) {
+                account += "/" + profile;
+            }
+            return account;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return Objects.equals(region, that.region) &&
+                    Objects.equals(accessKeyId, that.accessKeyId) &&
+                    Objects.equals(secretAccessKey, that.secretAccessKey) &&
+                    Objects.equals(profile, that.profile) &&
+                    Objects.equals(endpointUrl, that.endpointUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(region, accessKeyId, secretAccessKey, profile, endpointUrl);
+        }
+
+        @Override
+        public String toString() {
+            return "Key{" +
+                    "region='" + region + '\'' +
+                    ", accessKeyId='" + accessKeyId + '\'' +
+                    ", profile='" + profile + '\'' +
+                    ", endpointUrl='" + endpointUrl + '\'' +
+                    '}';
+        }
+    }
+}
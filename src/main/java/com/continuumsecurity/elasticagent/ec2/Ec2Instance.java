@@ -26,31 +26,54 @@ import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
 import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.Ec2ClientBuilder;
 import software.amazon.awssdk.services.ec2.model.*;
 
-import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.*;
+import java.util.stream.Collectors;
 
 import static com.continuumsecurity.elasticagent.ec2.Ec2Plugin.LOG;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 public class Ec2Instance {
+    static final String AUTO_REGISTER_KEY_TAG = "GoCDAutoRegisterKey";
+    static final String ENVIRONMENT_TAG = "GoCDEnvironment";
+    private static final int MAX_INSTANCES_PER_TERMINATE_REQUEST = 1000;
+    private static final int MAX_VALUES_PER_FILTER = 200;
+    static final String SPOT_PROPERTY = "ec2_spot";
+    static final String PREBAKED_PROPERTY = "ec2_prebaked";
+
     private final DateTime createdAt;
     private final Map<String, String> properties;
-    private final JobIdentifier jobIdentifier;
+    private final String environment;
+    private final String subnetId;
+    private volatile JobIdentifier jobIdentifier;
+    private volatile DateTime assignedAt;
+    private int completedJobs;
     private String id;
 
     public Ec2Instance(String id, Date createdAt, Map<String, String> properties, JobIdentifier jobIdentifier) {
+        this(id, createdAt, properties, null, jobIdentifier);
+    }
+
+    public Ec2Instance(String id, Date createdAt, Map<String, String> properties, String environment, JobIdentifier jobIdentifier) {
+        this(id, createdAt, properties, environment, null, jobIdentifier);
+    }
+
+    public Ec2Instance(String id, Date createdAt, Map<String, String> properties, String environment, String subnetId, JobIdentifier jobIdentifier) {
         this.id = id;
         this.createdAt = new DateTime(createdAt);
+        this.assignedAt = this.createdAt;
         this.properties = properties;
+        this.environment = environment;
+        this.subnetId = subnetId;
         this.jobIdentifier = jobIdentifier;
     }
 
@@ -70,166 +93,556 @@ public class Ec2Instance {
         return jobIdentifier;
     }
 
+    /**
+     * @return the environment the agent registered for, or <code>null</code>
+     */
+    public String environment() {
+        return environment;
+    }
+
+    /**
+     * @return the subnet the instance was launched in, or <code>null</code> if it is not known
+     */
+    public String subnetId() {
+        return subnetId;
+    }
+
+    public synchronized int completedJobs() {
+        return completedJobs;
+    }
+
+    /**
+     * @return when the instance was last assigned to a job, or when it was created if it never was
+     */
+    public DateTime assignedAt() {
+        return assignedAt;
+    }
+
+    /**
+     * Assigns an instance that was launched without a job (see {@link #createWarm}) to the given job.
+     *
+     * @return <code>false</code> if the instance is already assigned to a job
+     */
+    synchronized boolean assignTo(JobIdentifier jobIdentifier, DateTime now) {
+        if (this.jobIdentifier != null) {
+            return false;
+        }
+        this.jobIdentifier = jobIdentifier;
+        this.assignedAt = now;
+        return true;
+    }
+
+    /**
+     * Unassigns the instance from the job it has completed, so that it can be assigned to another one.
+     */
+    synchronized void jobCompleted(DateTime now) {
+        this.jobIdentifier = null;
+        this.assignedAt = now;
+        this.completedJobs++;
+    }
+
+    /**
+     * Replaces the tags of the instance with the ones of the job it is assigned to, so that the assignment survives a
+     * restart of the plugin (see {@link Ec2AgentInstances#refreshAll}).
+     */
+    void tagWithJob(ClusterProfileProperties clusterProfileProperties) {
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+            createTags(ec2, id, attachments(ec2, id), InstanceTags.builder().job(jobIdentifier).build());
+        }
+    }
+
+    /**
+     * Tags a warm instance with the auto-register key and environment of the job that takes it, which its user data
+     * waits for before starting the agent, and with the job itself.
+     */
+    void tagWithRegistration(CreateAgentRequest request, ClusterProfileProperties clusterProfileProperties) {
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+            createTags(ec2, id, attachments(ec2, id), InstanceTags.builder().job(request.jobIdentifier()).registration(request).build());
+        }
+    }
+
     public static Ec2Instance create(CreateAgentRequest request, ClusterProfileProperties clusterProfileProperties, ConsoleLogAppender consoleLogAppender) {
+        return create(request, clusterProfileProperties, new SubnetScheduler(), consoleLogAppender);
+    }
+
+    static Ec2Instance create(CreateAgentRequest request, ClusterProfileProperties clusterProfileProperties, SubnetScheduler subnetScheduler, ConsoleLogAppender consoleLogAppender) {
 
         LOG.debug("Creating new instance for " + request.jobIdentifier().getRepresentation());
-        Ec2Client ec2 = createEc2Client(clusterProfileProperties);
-
-        String agentWorkDir = request.properties().get("go_agent_work_dir") != null ?
-                request.properties().get("go_agent_work_dir") :
-                "/var/lib/go-agent/";
-        String configDir = new File(agentWorkDir, "config").getAbsolutePath();
-        String autoRegisterPropertiesFile = new File(configDir, "autoregister.properties").getAbsolutePath();
-
-        String userdata = "#!/bin/bash\n" +
-                "sed -ri \"s,http[s]?://localhost:[0-9]+/go," + clusterProfileProperties.getGoServerUrl() + ",g\" /usr/share/go-agent/wrapper-config/wrapper-properties.conf\n" +
-                "mkdir -p " + configDir + "\n" +
-                "echo \"agent.auto.register.key=" + request.autoRegisterKey() + "\" > " + autoRegisterPropertiesFile + "\n" +
-                "echo \"agent.auto.register.hostname=EA_$(ec2-metadata --instance-id | cut -d \" \" -f 2)\" >> " + autoRegisterPropertiesFile + "\n" +
-                "echo \"agent.auto.register.elasticAgent.agentId=$(ec2-metadata --instance-id | cut -d \" \" -f 2)\" >> " + autoRegisterPropertiesFile + "\n" +
-                "echo \"agent.auto.register.elasticAgent.pluginId=" + Constants.PLUGIN_ID + "\" >> " + autoRegisterPropertiesFile + "\n" +
-                "chown -R go:go /var/log/go-agent/\n" +
-                "chown -R go:go " + agentWorkDir + "\n" +
-                "chown -R go:go /usr/share/go-agent/\n";
-        if (request.environment() != null) {
-            userdata += "echo \"agent.auto.register.environments=" + request.environment() + "\" >> " + autoRegisterPropertiesFile + "\n";
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+            LaunchTemplateSpecification launchTemplate = LaunchTemplates.instance().specificationFor(request.properties(), clusterProfileProperties);
+            // launch templates and pre-baked AMIs read the auto-register key from the tags
+            boolean readsTags = launchTemplate != null || isPrebaked(request.properties());
+            RunInstancesRequest launchSettings;
+            if (launchTemplate != null) {
+                launchSettings = launchSettingsFrom(launchTemplate, request.properties(), clusterProfileProperties).build();
+            } else if (readsTags) {
+                launchSettings = launchSettingsReadingTags(request.properties(), clusterProfileProperties).build();
+            } else {
+                launchSettings = launchSettings(request.properties(), userData(request, clusterProfileProperties)).build();
+            }
+
+            InstanceTags.Builder tags = InstanceTags.builder()
+                    .custom(request.properties())
+                    .job(request.jobIdentifier());
+            if (readsTags) {
+                tags.registration(request);
+            } else {
+                tags.environment(request.environment());
+            }
+            List<TagSpecification> tagSpecifications = tags.build().specifications();
+
+            List<String> subnets = subnetScheduler.order(LaunchAttempt.subnets(request.properties()), 1, clusterProfileProperties);
+
+            RunInstancesResponse response = null;
+            LaunchAttempt previous = null;
+            boolean noSpot = false;
+            int failedAttempts = 0;
+            // try each instance type in each AZ if error, on spot first if enabled and then on-demand
+            for (LaunchAttempt attempt : LaunchAttempt.plan(request.properties(), subnets)) {
+                if (attempt.isSpot() && noSpot) {
+                    continue;
+                }
+                if (previous != null && previous.isSpot() && !attempt.isSpot()) {
+                    consoleLogAppender.accept("Could not create spot instance, falling back to on-demand");
+                    LOG.warn("Could not create spot instance, falling back to on-demand");
+                }
+                previous = attempt;
+                try {
+                    RunInstancesRequest runInstancesRequest = launchSettings.toBuilder()
+                            .instanceType(attempt.instanceType())
+                            .maxCount(1)
+                            .minCount(1)
+                            .subnetId(attempt.subnet())
+                            .instanceMarketOptions(attempt.market())
+                            .tagSpecifications(tagSpecifications)
+                            .build();
+
+                    response = ec2.runInstances(runInstancesRequest);
+
+                    consoleLogAppender.accept("Successfully created new instance " + response.instances().get(0).instanceId() + " (" + attempt + ")");
+                    LOG.info("Successfully created new instance " + response.instances().get(0).instanceId() + " (" + attempt + ")");
+                    subnetScheduler.launched(attempt.subnet(), 1, failedAttempts);
+                    break;
+                } catch (AwsServiceException | SdkClientException e) {
+                    consoleLogAppender.accept("Could not create instance (" + attempt + "). " + e.getMessage());
+                    LOG.error("Could not create instance (" + attempt + ")", e);
+                    response = null;
+                    noSpot |= attempt.failed(e);
+                    if (!ApiScheduler.isThrottling(e)) {
+                        subnetScheduler.failed(attempt.subnet());
+                    }
+                    failedAttempts++;
+                }
+            }
+
+            if (response != null) {
+                Instance instance = response.instances().get(0);
+
+                return new Ec2Instance(instance.instanceId(), Date.from(instance.launchTime()), request.properties(), request.environment(), instance.subnetId(), request.jobIdentifier());
+            } else {
+                subnetScheduler.notLaunched(failedAttempts);
+                consoleLogAppender.accept("Could not create instance of any provided type in any provided subnet!");
+                LOG.error("Could not create instance of any provided type in any provided subnet!");
+            }
+
+            return null;
         }
+    }
+
+    /**
+     * Launches one instance for each of the given requests with a single <code>RunInstances</code> call. All requests
+     * must share the same launch shape (see {@link LaunchBatcher}).
+     * <p>
+     * User data is identical for every instance of a <code>RunInstances</code> call, so the job specific values
+     * (auto-register key and environment) are written as instance tags once the instances are known, and read by the
+     * user data script from the instance metadata service.
+     *
+     * @return the launched instances, positionally matching the requests they were assigned to. Requests without an
+     * entry, or with a <code>null</code> entry, did not get an instance.
+     */
+    public static List<Ec2Instance> createAll(List<CreateAgentRequest> requests, ClusterProfileProperties clusterProfileProperties, SubnetScheduler subnetScheduler) {
+        LOG.debug("Creating " + requests.size() + " new instances for " + requests.stream()
+                .map(request -> request.jobIdentifier().getRepresentation())
+                .collect(Collectors.joining(", ")));
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+
+            List<Ec2Instance> created = new ArrayList<>();
+            RunInstancesResponse response = runInstancesReadingTags(ec2, requests.get(0), requests.size(), "GoCD EA pending", clusterProfileProperties, subnetScheduler);
+            if (response == null) {
+                return created;
+            }
 
-        if (request.properties().get("ec2_user_data") != null) {
-            userdata += request.properties().get("ec2_user_data") + "\n";
+            for (int i = 0; i < response.instances().size(); i++) {
+                Instance instance = response.instances().get(i);
+                CreateAgentRequest request = requests.get(i);
+
+                InstanceTags tags = InstanceTags.builder().job(request.jobIdentifier()).registration(request).build();
+
+                if (tagOrTerminate(ec2, instance, tags)) {
+                    created.add(new Ec2Instance(instance.instanceId(), Date.from(instance.launchTime()), request.properties(), request.environment(), instance.subnetId(), request.jobIdentifier()));
+                } else {
+                    created.add(null);
+                }
+            }
+
+            return created;
         }
-        userdata += "systemctl start go-agent.service\n";
+    }
+
+    /**
+     * Launches instances for the elastic profile of the given request that are not assigned to any job yet. They boot,
+     * but are not tagged with an auto-register key, so their agents only register once a job takes them and
+     * {@link #tagWithRegistration} writes the key of that job. Auto-register keys can only be used once.
+     *
+     * @return the launched instances, which may be less than requested
+     */
+    public static List<Ec2Instance> createWarm(CreateAgentRequest template, int count, ClusterProfileProperties clusterProfileProperties, SubnetScheduler subnetScheduler) {
+        LOG.debug("Creating " + count + " new warm instances");
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+
+            List<Ec2Instance> created = new ArrayList<>();
+            RunInstancesResponse response = runInstancesReadingTags(ec2, template, count, "GoCD EA warm", clusterProfileProperties, subnetScheduler);
+            if (response == null) {
+                return created;
+            }
 
-        List<String> securityGroups = Arrays.asList(request.properties().get("ec2_sg").split("\\s*,\\s*"));
-        List<String> subnets = Arrays.asList(request.properties().get("ec2_subnets").split("\\s*,\\s*"));
-        // subnet is assigned randomly from all the subnets configured
-        Collections.shuffle(subnets);
+            for (Instance instance : response.instances()) {
+                created.add(new Ec2Instance(instance.instanceId(), Date.from(instance.launchTime()), template.properties(), template.environment(), instance.subnetId(), null));
+            }
+
+            return created;
+        }
+    }
 
-        int i = 0;
-        RunInstancesResponse response = null;
-        // try create instance for each AZ if error
-        while (response == null && i < subnets.size()) {
+    /**
+     * Runs up to <code>count</code> instances whose user data reads the auto-register key and environment from the
+     * instance tags.
+     *
+     * @return the response, or <code>null</code> if no instance could be launched in any subnet
+     */
+    private static RunInstancesResponse runInstancesReadingTags(Ec2Client ec2, CreateAgentRequest template, int count, String name, ClusterProfileProperties clusterProfileProperties, SubnetScheduler subnetScheduler) {
+        LaunchTemplateSpecification launchTemplate = LaunchTemplates.instance().specificationFor(template.properties(), clusterProfileProperties);
+
+        // instances are only tagged as elastic agents until they are assigned to a job
+        List<TagSpecification> tagSpecifications = InstanceTags.builder()
+                .custom(template.properties())
+                .tag("type", Constants.ELASTIC_AGENT_TAG)
+                .tag("Name", name)
+                .build()
+                .specifications();
+        RunInstancesRequest launchSettings = launchTemplate != null
+                ? launchSettingsFrom(launchTemplate, template.properties(), clusterProfileProperties).build()
+                : launchSettingsReadingTags(template.properties(), clusterProfileProperties).build();
+
+        List<String> subnets = subnetScheduler.order(LaunchAttempt.subnets(template.properties()), count, clusterProfileProperties);
+
+        LaunchAttempt previous = null;
+        boolean noSpot = false;
+        int failedAttempts = 0;
+        for (LaunchAttempt attempt : LaunchAttempt.plan(template.properties(), subnets)) {
+            if (attempt.isSpot() && noSpot) {
+                continue;
+            }
+            if (previous != null && previous.isSpot() && !attempt.isSpot()) {
+                LOG.warn("Could not create spot instances, falling back to on-demand");
+            }
+            previous = attempt;
             try {
-                Tag tagName = Tag.builder()
-                        .key("Name")
-                        .value("GoCD EA "
-                                + request.jobIdentifier().getPipelineName()
-                                + "-" + request.jobIdentifier().getPipelineCounter().toString()
-                                + "-" + request.jobIdentifier().getStageName()
-                                + "-" + request.jobIdentifier().getJobName())
-                        .build();
-                Tag tagType = Tag.builder()
-                        .key("type")
-                        .value(Constants.ELASTIC_AGENT_TAG)
-                        .build();
-                Tag tagPipelineName = Tag.builder()
-                        .key("pipelineName")
-                        .value(request.jobIdentifier().getPipelineName())
-                        .build();
-                Tag tagPipelineCounter = Tag.builder()
-                        .key("pipelineCounter")
-                        .value(request.jobIdentifier().getPipelineCounter().toString())
-                        .build();
-                Tag tagPipelineLabel = Tag.builder()
-                        .key("pipelineLabel")
-                        .value(request.jobIdentifier().getPipelineLabel())
-                        .build();
-                Tag tagStageName = Tag.builder()
-                        .key("stageName")
-                        .value(request.jobIdentifier().getStageName())
-                        .build();
-                Tag tagStageCounter = Tag.builder()
-                        .key("stageCounter")
-                        .value(request.jobIdentifier().getStageCounter())
-                        .build();
-                Tag tagJobName = Tag.builder()
-                        .key("jobName")
-                        .value(request.jobIdentifier().getJobName())
-                        .build();
-                Tag tagJobId = Tag.builder()
-                        .key("jobId")
-                        .value(request.jobIdentifier().getJobId().toString())
-                        .build();
-                Tag tagJsonJobIdentifier = Tag.builder()
-                        .key("JsonJobIdentifier")
-                        .value(request.jobIdentifier().toJson())
+                RunInstancesRequest runInstancesRequest = launchSettings.toBuilder()
+                        .instanceType(attempt.instanceType())
+                        .maxCount(count)
+                        .minCount(1)
+                        .subnetId(attempt.subnet())
+                        .instanceMarketOptions(attempt.market())
+                        .tagSpecifications(tagSpecifications)
                         .build();
 
-                TagSpecification tagSpecification = TagSpecification.builder()
-                        .tags(
-                                tagName,
-                                tagType,
-                                tagPipelineName,
-                                tagPipelineCounter,
-                                tagPipelineLabel,
-                                tagStageName,
-                                tagStageCounter,
-                                tagJobName,
-                                tagJobId,
-                                tagJsonJobIdentifier
-                        )
-                        .resourceType("instance")
-                        .build();
+                RunInstancesResponse response = ec2.runInstances(runInstancesRequest);
+                LOG.info("Successfully created " + response.instances().size() + " new instances (" + attempt + ")");
+                subnetScheduler.launched(attempt.subnet(), response.instances().size(), failedAttempts);
+                return response;
+            } catch (AwsServiceException | SdkClientException e) {
+                LOG.error("Could not create instances (" + attempt + ")", e);
+                noSpot |= attempt.failed(e);
+                if (!ApiScheduler.isThrottling(e)) {
+                    subnetScheduler.failed(attempt.subnet());
+                }
+                failedAttempts++;
+            }
+        }
 
-                String iamProfileName = (request.properties().get("ec2_instance_profile") == null) ? "" : request.properties().get("ec2_instance_profile");
+        subnetScheduler.notLaunched(failedAttempts);
+        LOG.error("Could not create instances of any provided type in any provided subnet!");
+        return null;
+    }
 
-                RunInstancesRequest runInstancesRequest = RunInstancesRequest.builder()
-                        .imageId(request.properties().get("ec2_ami"))
-                        .instanceType(InstanceType.fromValue(request.properties().get("ec2_instance_type")))
-                        .maxCount(1)
-                        .minCount(1)
-                        .keyName(request.properties().get("ec2_key"))
-                        .securityGroupIds(securityGroups)
-                        .subnetId(subnets.get(i))
-                        .iamInstanceProfile(IamInstanceProfileSpecification.builder().name(iamProfileName).build())
-                        .userData(Base64.getEncoder().encodeToString(userdata.getBytes()))
-                        .tagSpecifications(tagSpecification)
-                        .build();
+    /**
+     * @return the settings of the given profile that are the same for every instance launched with it
+     */
+    private static RunInstancesRequest.Builder launchSettings(Map<String, String> properties, String base64UserData) {
+        List<String> securityGroups = Arrays.asList(properties.get("ec2_sg").split("\\s*,\\s*"));
+        String iamProfileName = (properties.get("ec2_instance_profile") == null) ? "" : properties.get("ec2_instance_profile");
+
+        RunInstancesRequest.Builder settings = RunInstancesRequest.builder()
+                .imageId(properties.get("ec2_ami"))
+                .keyName(properties.get("ec2_key"))
+                .securityGroupIds(securityGroups)
+                .iamInstanceProfile(IamInstanceProfileSpecification.builder().name(iamProfileName).build());
+        if (!base64UserData.isEmpty()) {
+            settings.userData(base64UserData);
+        }
+        return settings;
+    }
 
-                response = ec2.runInstances(runInstancesRequest);
+    /**
+     * @return the settings of the given profile for instances that read their auto-register key and environment from
+     * the instance tags
+     */
+    private static RunInstancesRequest.Builder launchSettingsReadingTags(Map<String, String> properties, ClusterProfileProperties clusterProfileProperties) {
+        return launchSettings(properties, UserDataTemplates.instance().readingTags(properties, clusterProfileProperties).renderBase64(Collections.emptyMap()))
+                .metadataOptions(InstanceMetadataOptionsRequest.builder()
+                        .instanceMetadataTags(InstanceMetadataTagsState.ENABLED)
+                        .build());
+    }
 
-                consoleLogAppender.accept("Successfully created new instance " + response.instances().get(0).instanceId() + " in " + response.instances().get(0).subnetId());
-                LOG.info("Successfully created new instance " + response.instances().get(0).instanceId() + " in " + response.instances().get(0).subnetId());
-            } catch (AwsServiceException | SdkClientException e) {
-                consoleLogAppender.accept("Could not create instance. " + e.getMessage());
-                LOG.error("Could not create instance", e);
-                response = null;
-            } finally {
-                i++;
+    /**
+     * @return the settings for instances launched from the given launch template. Templates the plugin does not manage
+     * are launched from as they are, but do not know how to register the agent, so they get the user data of the
+     * profile, and instance tags in the instance metadata, on top.
+     */
+    private static RunInstancesRequest.Builder launchSettingsFrom(LaunchTemplateSpecification launchTemplate, Map<String, String> properties, ClusterProfileProperties clusterProfileProperties) {
+        RunInstancesRequest.Builder settings = RunInstancesRequest.builder().launchTemplate(launchTemplate);
+        if (!LaunchTemplates.DEFAULT_VERSION.equals(launchTemplate.version())) {
+            return settings;
+        }
+
+        String base64UserData = UserDataTemplates.instance().readingTags(properties, clusterProfileProperties).renderBase64(Collections.emptyMap());
+        if (!base64UserData.isEmpty()) {
+            settings.userData(base64UserData);
+        }
+        return settings.metadataOptions(InstanceMetadataOptionsRequest.builder()
+                .instanceMetadataTags(InstanceMetadataTagsState.ENABLED)
+                .build());
+    }
+
+    /**
+     * @return <code>true</code> if the AMI of the given profile bootstraps the agent itself, and only needs the
+     * contents of <code>autoregister.properties</code> from the instance tags
+     */
+    static boolean isPrebaked(Map<String, String> properties) {
+        return "true".equalsIgnoreCase(properties.get(PREBAKED_PROPERTY));
+    }
+
+    /**
+     * @return user data that registers the agent with the auto-register key and environment of the given request,
+     * base64 encoded
+     */
+    private static String userData(CreateAgentRequest request, ClusterProfileProperties clusterProfileProperties) {
+        Map<String, String> jobValues = new HashMap<>();
+        jobValues.put(UserDataTemplates.AUTO_REGISTER_KEY, request.autoRegisterKey());
+        jobValues.put(UserDataTemplates.ENVIRONMENT, request.environment());
+        return UserDataTemplates.instance().forJob(request.properties(), clusterProfileProperties).renderBase64(jobValues);
+    }
+
+    /**
+     * @return user data that reads the auto-register key and environment of the agent from the instance tags, and is
+     * therefore the same for every instance launched with the given profile. Pre-baked AMIs read the tags themselves,
+     * so they only get the custom user data of the profile.
+     */
+    static String userDataReadingTags(Map<String, String> properties, ClusterProfileProperties clusterProfileProperties) {
+        return UserDataTemplates.instance().readingTags(properties, clusterProfileProperties).render(Collections.emptyMap());
+    }
+
+    /**
+     * Builds a request describing the elastic agent instances in the given states, one page of
+     * {@link PluginSettings#getDescribePageSize()} instances at a time. Use it with
+     * {@link Ec2Client#describeInstancesPaginator(DescribeInstancesRequest)} to follow all pages.
+     */
+    static DescribeInstancesRequest describeElasticAgents(ClusterProfileProperties clusterProfileProperties, String... states) {
+        return DescribeInstancesRequest.builder()
+                .filters(
+                        Filter.builder()
+                                .name("instance-state-name")
+                                .values(states)
+                                .build(),
+                        Filter.builder()
+                                .name("tag:type")
+                                .values(Constants.ELASTIC_AGENT_TAG)
+                                .build()
+                )
+                .maxResults(clusterProfileProperties.getDescribePageSize())
+                .build();
+    }
+
+    private static boolean tagOrTerminate(Ec2Client ec2, Instance instance, InstanceTags tags) {
+        try {
+            createTags(ec2, instance.instanceId(), attachments(instance), tags);
+            return true;
+        } catch (AwsServiceException | SdkClientException e) {
+            // an untagged instance would wait for its auto-register key forever
+            LOG.error("Could not tag instance " + instance.instanceId() + ", terminating it", e);
+            try {
+                ec2.terminateInstances(TerminateInstancesRequest.builder().instanceIds(instance.instanceId()).build());
+            } catch (AwsServiceException | SdkClientException terminateException) {
+                LOG.error("Could not terminate instance " + instance.instanceId(), terminateException);
             }
+            return false;
         }
+    }
 
-        if (response != null) {
-            Instance instance = response.instances().get(0);
+    private static void createTags(Ec2Client ec2, String instanceId, List<String> attachmentIds, InstanceTags tags) {
+        for (CreateTagsRequest request : tags.createTagsRequests(instanceId, attachmentIds)) {
+            ec2.createTags(request);
+        }
+    }
 
-            return new Ec2Instance(instance.instanceId(), Date.from(instance.launchTime()), request.properties(), request.jobIdentifier());
-        } else {
-            consoleLogAppender.accept("Could not create instance in any provided subnet!");
-            LOG.error("Could not create instance in any provided subnet!");
+    /**
+     * @return the ids of the volumes and network interfaces attached to the given instance, so that they are tagged
+     * with it
+     */
+    private static List<String> attachments(Instance instance) {
+        List<String> attachmentIds = new ArrayList<>();
+        for (InstanceBlockDeviceMapping mapping : instance.blockDeviceMappings()) {
+            if (mapping.ebs() != null && mapping.ebs().volumeId() != null) {
+                attachmentIds.add(mapping.ebs().volumeId());
+            }
         }
+        for (InstanceNetworkInterface networkInterface : instance.networkInterfaces()) {
+            attachmentIds.add(networkInterface.networkInterfaceId());
+        }
+        return attachmentIds;
+    }
 
-        return null;
+    private static List<String> attachments(Ec2Client ec2, String instanceId) {
+        try {
+            DescribeInstancesResponse response = ec2.describeInstances(DescribeInstancesRequest.builder().instanceIds(instanceId).build());
+            List<String> attachmentIds = new ArrayList<>();
+            for (Reservation reservation : response.reservations()) {
+                for (Instance instance : reservation.instances()) {
+                    if (instance.instanceId().equals(instanceId)) {
+                        attachmentIds.addAll(attachments(instance));
+                    }
+                }
+            }
+            return attachmentIds;
+        } catch (AwsServiceException | SdkClientException e) {
+            LOG.warn("Could not look up the volumes and network interfaces of instance " + instanceId + ", only tagging the instance", e);
+            return Collections.emptyList();
+        }
     }
 
     public void terminate(ClusterProfileProperties clusterProfileProperties) {
 
         LOG.debug("Terminating instance " + this.id());
 
-        Ec2Client ec2 = createEc2Client(clusterProfileProperties);
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
 
-        TerminateInstancesRequest request = TerminateInstancesRequest.builder()
-                .instanceIds(this.id).build();
+            TerminateInstancesRequest request = TerminateInstancesRequest.builder()
+                    .instanceIds(this.id).build();
 
-        try {
-            ec2.terminateInstances(request);
+            try {
+                ec2.terminateInstances(request);
 
-            LOG.info("Successfully terminated EC2 instance " + this.id + " in region " + clusterProfileProperties.getAwsRegion());
-        } catch (AwsServiceException | SdkClientException e) {
-            LOG.error("Could not terminate instance", e);
-            System.exit(1);
-        } finally {
-            ec2.close();
+                LOG.info("Successfully terminated EC2 instance " + this.id + " in region " + clusterProfileProperties.getAwsRegion());
+            } catch (AwsServiceException | SdkClientException e) {
+                // the instance stays known, so that terminating its disabled agent is retried on the next server ping
+                LOG.error("Could not terminate instance " + this.id, e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Looks up which of the given ids are pending or running elastic agent instances, describing only those ids
+     * instead of all instances of the cluster. The ids are matched with a filter rather than passed as instance ids, so
+     * that ids unknown to EC2 are left out of the result instead of failing the whole call.
+     *
+     * @return the ids of the instances that exist
+     */
+    public static Set<String> findExisting(Collection<String> instanceIds, ClusterProfileProperties clusterProfileProperties) {
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+            List<String> ids = new ArrayList<>(instanceIds);
+            Set<String> existing = new HashSet<>();
+
+            for (int from = 0; from < ids.size(); from += MAX_VALUES_PER_FILTER) {
+                List<String> chunk = ids.subList(from, Math.min(from + MAX_VALUES_PER_FILTER, ids.size()));
+                DescribeInstancesRequest request = describeElasticAgents(clusterProfileProperties, "pending", "running");
+                List<Filter> filters = new ArrayList<>(request.filters());
+                filters.add(Filter.builder().name("instance-id").values(chunk).build());
+
+                for (Reservation reservation : ec2.describeInstancesPaginator(request.toBuilder().filters(filters).build()).reservations()) {
+                    for (Instance instance : reservation.instances()) {
+                        existing.add(instance.instanceId());
+                    }
+                }
+            }
+            return existing;
+        }
+    }
+
+    /**
+     * Terminates the given instances with as few <code>TerminateInstances</code> calls as the API allows. If a call is
+     * rejected as a whole (e.g. because one of the instances does not exist anymore), its instances are terminated one
+     * by one so that a single bad id does not keep the others running.
+     *
+     * @return the ids of the instances that could not be terminated
+     */
+    public static Set<String> terminateAll(Collection<String> instanceIds, ClusterProfileProperties clusterProfileProperties) {
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+            List<String> ids = new ArrayList<>(instanceIds);
+            Set<String> failed = new HashSet<>();
+
+            for (int from = 0; from < ids.size(); from += MAX_INSTANCES_PER_TERMINATE_REQUEST) {
+                List<String> chunk = ids.subList(from, Math.min(from + MAX_INSTANCES_PER_TERMINATE_REQUEST, ids.size()));
+                try {
+                    TerminateInstancesResponse response = ec2.terminateInstances(TerminateInstancesRequest.builder().instanceIds(chunk).build());
+
+                    Set<String> terminating = response.terminatingInstances().stream()
+                            .map(InstanceStateChange::instanceId)
+                            .collect(Collectors.toSet());
+                    for (String id : chunk) {
+                        if (!terminating.contains(id)) {
+                            LOG.warn("EC2 did not report instance " + id + " as terminating");
+                            failed.add(id);
+                        }
+                    }
+                    LOG.info("Successfully terminated " + terminating.size() + " EC2 instances in region " + clusterProfileProperties.getAwsRegion());
+                } catch (AwsServiceException | SdkClientException e) {
+                    LOG.warn("Could not terminate " + chunk.size() + " instances in one request, terminating them one by one", e);
+                    for (String id : chunk) {
+                        if (!terminateOne(ec2, id)) {
+                            failed.add(id);
+                        }
+                    }
+                }
+            }
+
+            return failed;
+        }
+    }
+
+    private static boolean terminateOne(Ec2Client ec2, String instanceId) {
+        try {
+            ec2.terminateInstances(TerminateInstancesRequest.builder().instanceIds(instanceId).build());
+            return true;
+        } catch (AwsServiceException e) {
+            if (e.awsErrorDetails() != null && "InvalidInstanceID.NotFound".equals(e.awsErrorDetails().errorCode())) {
+                LOG.warn("Instance " + instanceId + " does not exist anymore");
+                return true;
+            }
+            LOG.error("Could not terminate instance " + instanceId, e);
+        } catch (SdkClientException e) {
+            LOG.error("Could not terminate instance " + instanceId, e);
         }
+        return false;
     }
 
     private static AwsCredentialsProvider getCredentialsProvider(ClusterProfileProperties clusterProfileProperties) {
@@ -247,10 +660,14 @@ public class Ec2Instance {
         }
     }
 
-    protected static Ec2Client createEc2Client(ClusterProfileProperties clusterProfileProperties) {
+    protected static Ec2Client createEc2Client(ClusterProfileProperties clusterProfileProperties, ApiScheduler apiScheduler) {
         Ec2ClientBuilder builder = Ec2Client.builder()
                 .region(clusterProfileProperties.getAwsRegion())
-                .credentialsProvider(getCredentialsProvider(clusterProfileProperties));
+                .credentialsProvider(getCredentialsProvider(clusterProfileProperties))
+                .overrideConfiguration(ClientOverrideConfiguration.builder()
+                        .addExecutionInterceptor(new Ec2CallMetrics())
+                        .addExecutionInterceptor(apiScheduler)
+                        .build());
 
         if (isNotBlank(clusterProfileProperties.getAwsEndpointUrl())) {
             try {
@@ -20,6 +20,7 @@ package com.continuumsecurity.elasticagent.ec2;
 
 import com.continuumsecurity.elasticagent.ec2.executors.*;
 import com.continuumsecurity.elasticagent.ec2.requests.*;
+import com.continuumsecurity.elasticagent.ec2.views.ViewBuilder;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -58,6 +59,15 @@ public class Ec2Plugin implements GoPlugin {
 
     @Override
     public GoPluginApiResponse handle(GoPluginApiRequest request) {
+        long startedAt = System.nanoTime();
+        try {
+            return handleRequest(request);
+        } finally {
+            Metrics.REQUEST_DURATION.observe(Metrics.seconds(System.nanoTime() - startedAt), request.requestName());
+        }
+    }
+
+    private GoPluginApiResponse handleRequest(GoPluginApiRequest request) {
         ClusterProfileProperties clusterProfileProperties;
         try {
             switch (Request.fromString(request.requestName())) {
@@ -111,10 +121,10 @@ public class Ec2Plugin implements GoPlugin {
                     refreshInstancesForCluster(clusterProfileProperties);
                     return clusterStatusReportRequest.executor(clusterSpecificAgentInstances.get(clusterProfileProperties.uuid())).execute();
 
-//                case REQUEST_PLUGIN_STATUS_REPORT:
-//                    PluginStatusReportRequest pluginStatusReportRequest = PluginStatusReportRequest.fromJSON(request.requestBody());
-//                    refreshInstancesForAllClusters(pluginStatusReportRequest.allClusterProfileProperties());
-//                    return pluginStatusReportRequest.executor(clusterSpecificAgentInstances, ViewBuilder.instance()).execute();
+                case REQUEST_PLUGIN_STATUS_REPORT:
+                    PluginStatusReportRequest pluginStatusReportRequest = PluginStatusReportRequest.fromJSON(request.requestBody());
+                    refreshInstancesForAllClusters(pluginStatusReportRequest.allClusterProfileProperties());
+                    return pluginStatusReportRequest.executor(clusterSpecificAgentInstances, ViewBuilder.instance()).execute();
 
                 case REQUEST_GET_CLUSTER_PROFILE_METADATA:
                     return new GetClusterProfileMetadataExecutor().execute();
@@ -149,6 +159,7 @@ public class Ec2Plugin implements GoPlugin {
         Ec2AgentInstances agentInstances = clusterSpecificAgentInstances.getOrDefault(clusterProfileProperties.uuid(), new Ec2AgentInstances());
         agentInstances.refreshAll(clusterProfileProperties);
         clusterSpecificAgentInstances.put(clusterProfileProperties.uuid(), agentInstances);
+        InstanceStatePoller.instance().watch(clusterProfileProperties, agentInstances);
     }
 
     private Ec2AgentInstances getAgentInstancesForCluster(ClusterProfileProperties clusterProfileProperties) {
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static com.continuumsecurity.elasticagent.ec2.Ec2Plugin.GSON;
+import static com.continuumsecurity.elasticagent.ec2.Ec2Plugin.LOG;
+
+/**
+ * Append-only local record of the instances of one cluster, so that a restart of the GoCD server can restore them,
+ * including the elastic profile properties they were launched with, without describing every instance of the cluster.
+ * <p>
+ * Every change is appended as one JSON line and synced to disk before the call returns. A crash can therefore only
+ * tear the last line, which is skipped when replaying. Once the journal holds many more records than live instances
+ * it is compacted: the live instances are written to a temporary file that then atomically replaces the journal, so a
+ * crash while compacting leaves the previous journal intact.
+ * <p>
+ * Failures to write are logged and otherwise ignored; the journal is an optimisation, and an incomplete journal is
+ * corrected when the cluster is reconciled with EC2.
+ */
+class InstanceJournal {
+    static final String DATA_DIR_PROPERTY = "gocd.ec2.elastic-agent.data.dir";
+    static final int MIN_RECORDS_BEFORE_COMPACTION = 1000;
+
+    private static final String LAUNCHED = "launched";
+    private static final String ASSIGNED = "assigned";
+    private static final String TERMINATED = "terminated";
+
+    private final Path file;
+    private final Path compactionFile;
+    private final Map<String, Record> liveInstances = new LinkedHashMap<>();
+    private FileChannel channel;
+    private int records;
+
+    InstanceJournal(File directory, String clusterId) {
+        this.file = new File(directory, clusterId + ".journal").toPath();
+        this.compactionFile = new File(directory, clusterId + ".journal.compacting").toPath();
+    }
+
+    /**
+     * @return the directory journals are kept in, by default <code>plugins/data/ec2-elastic-agent</code> below the
+     * working directory of the GoCD server
+     */
+    static File defaultDirectory() {
+        return new File(System.getProperty(DATA_DIR_PROPERTY, "plugins/data/ec2-elastic-agent"));
+    }
+
+    /**
+     * Renames the journal of a cluster, e.g. because the cluster profile changed and with it the id of the cluster.
+     * An existing journal of the new cluster id is replaced.
+     */
+    static void move(File directory, String fromClusterId, String toClusterId) throws IOException {
+        InstanceJournal from = new InstanceJournal(directory, fromClusterId);
+        InstanceJournal to = new InstanceJournal(directory, toClusterId);
+        Files.deleteIfExists(from.compactionFile);
+        if (Files.exists(from.file)) {
+            Files.move(from.file, to.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void delete(File directory, String clusterId) throws IOException {
+        InstanceJournal journal = new InstanceJournal(directory, clusterId);
+        Files.deleteIfExists(journal.compactionFile);
+        Files.deleteIfExists(journal.file);
+    }
+
+    /**
+     * Reads the journal and opens it for appending.
+     *
+     * @return the instances that were live when the journal was last written, or an empty list if there is no journal
+     */
+    synchronized List<Ec2Instance> replay() throws IOException {
+        Files.createDirectories(file.getParent());
+        // left over from a crash while compacting, the journal itself is still complete
+        Files.deleteIfExists(compactionFile);
+
+        liveInstances.clear();
+        records = 0;
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Record record = parse(line);
+                    if (record != null) {
+                        apply(record);
+                    }
+                }
+            }
+        }
+
+        compact();
+
+        List<Ec2Instance> instances = new ArrayList<>();
+        for (Record record : liveInstances.values()) {
+            instances.add(record.toInstance());
+        }
+        return instances;
+    }
+
+    /**
+     * Records new instances with a single sync. Instances that are journaled already are skipped.
+     */
+    synchronized void launched(Collection<Ec2Instance> instances) {
+        List<Record> launched = new ArrayList<>();
+        for (Ec2Instance instance : instances) {
+            if (!liveInstances.containsKey(instance.id())) {
+                launched.add(Record.launched(instance));
+            }
+        }
+        append(launched);
+    }
+
+    synchronized void assigned(String instanceId, JobIdentifier jobIdentifier) {
+        if (liveInstances.containsKey(instanceId)) {
+            Record record = new Record(ASSIGNED, instanceId);
+            record.jobIdentifier = jobIdentifier == null ? null : jobIdentifier.toJson();
+            append(Collections.singletonList(record));
+        }
+    }
+
+    synchronized void terminated(Collection<String> instanceIds) {
+        List<Record> terminated = new ArrayList<>();
+        for (String instanceId : instanceIds) {
+            if (liveInstances.containsKey(instanceId)) {
+                terminated.add(new Record(TERMINATED, instanceId));
+            }
+        }
+        append(terminated);
+    }
+
+    synchronized void close() {
+        closeChannel();
+    }
+
+    // used by tests
+    synchronized int records() {
+        return records;
+    }
+
+    private Record parse(String line) {
+        try {
+            Record record = GSON.fromJson(line, Record.class);
+            return record == null || record.id == null ? null : record;
+        } catch (JsonParseException e) {
+            LOG.warn("[Journal] Skipping unreadable record in " + file + ", it was probably torn by a crash");
+            return null;
+        }
+    }
+
+    private void apply(Record record) {
+        records++;
+
+        switch (String.valueOf(record.op)) {
+            case LAUNCHED:
+                liveInstances.put(record.id, record);
+                break;
+            case ASSIGNED:
+                Record launched = liveInstances.get(record.id);
+                if (launched != null) {
+                    launched.jobIdentifier = record.jobIdentifier;
+                }
+                break;
+            case TERMINATED:
+                liveInstances.remove(record.id);
+                break;
+            default:
+                LOG.warn("[Journal] Skipping record of unknown type " + record.op + " in " + file);
+        }
+    }
+
+    private void append(List<Record> newRecords) {
+        if (newRecords.isEmpty()) {
+            return;
+        }
+
+        StringBuilder lines = new StringBuilder();
+        for (Record record : newRecords) {
+            lines.append(GSON.toJson(record)).append('\n');
+            apply(record);
+        }
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            LOG.warn("[Journal] Could not write to " + file + ", it is not used until the plugin restarts", e);
+            closeChannel();
+            return;
+        }
+
+        if (records > Math.max(MIN_RECORDS_BEFORE_COMPACTION, 2 * liveInstances.size())) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        closeChannel();
+        try {
+            try (FileChannel compacted = FileChannel.open(compactionFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                StringBuilder lines = new StringBuilder();
+                for (Record record : liveInstances.values()) {
+                    lines.append(GSON.toJson(record)).append('\n');
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    compacted.write(buffer);
+                }
+                compacted.force(true);
+            }
+            Files.move(compactionFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            records = liveInstances.size();
+
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            LOG.warn("[Journal] Could not compact " + file + ", it is not used until the plugin restarts", e);
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("[Journal] Could not close " + file, e);
+            }
+            channel = null;
+        }
+    }
+
+    private static class Record {
+        private String op;
+        private String id;
+        private Long createdAt;
+        private Map<String, String> properties;
+        private String environment;
+        private String subnetId;
+        private String jobIdentifier;
+
+        private Record(String op, String id) {
+            this.op = op;
+            this.id = id;
+        }
+
+        static Record launched(Ec2Instance instance) {
+            Record record = new Record(LAUNCHED, instance.id());
+            record.createdAt = instance.createdAt().getMillis();
+            record.properties = instance.properties();
+            record.environment = instance.environment();
+            record.subnetId = instance.subnetId();
+            record.jobIdentifier = instance.getJobIdentifier() == null ? null : instance.getJobIdentifier().toJson();
+            return record;
+        }
+
+        Ec2Instance toInstance() {
+            return new Ec2Instance(id,
+                    new Date(createdAt == null ? 0 : createdAt),
+                    properties == null ? new HashMap<>() : properties,
+                    environment,
+                    subnetId,
+                    jobIdentifier == null ? null : JobIdentifier.fromJson(jobIdentifier));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.Reservation;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last known EC2 state of the elastic agent instances of one cluster, as seen by a single paginated
+ * <code>DescribeInstances</code> call whose pages are consumed as they arrive. Read paths use it instead of describing instances on every request, as long as
+ * it is not older than the cluster's {@link PluginSettings#getInstanceStateTtlSeconds()}.
+ */
+class InstanceStateCache {
+    private volatile Map<String, Instance> instances = Collections.emptyMap();
+    private volatile long refreshedAt;
+
+    void refresh(ClusterProfileProperties clusterProfileProperties) {
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+            long startedAt = System.currentTimeMillis();
+
+            Map<String, Instance> described = new HashMap<>();
+            DescribeInstancesRequest request = Ec2Instance.describeElasticAgents(clusterProfileProperties,
+                    "pending", "running", "shutting-down", "stopping", "stopped");
+            for (Reservation reservation : ec2.describeInstancesPaginator(request).reservations()) {
+                for (Instance instance : reservation.instances()) {
+                    described.put(instance.instanceId(), instance);
+                }
+            }
+
+            instances = Collections.unmodifiableMap(described);
+            refreshedAt = startedAt;
+        }
+    }
+
+    boolean isFresh(ClusterProfileProperties clusterProfileProperties) {
+        return ageMillis() <= clusterProfileProperties.getInstanceStateTtlSeconds() * 1000L;
+    }
+
+    long ageMillis() {
+        return refreshedAt == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - refreshedAt;
+    }
+
+    Instance get(String instanceId) {
+        return instances.get(instanceId);
+    }
+
+    Collection<Instance> all() {
+        return instances.values();
+    }
+}
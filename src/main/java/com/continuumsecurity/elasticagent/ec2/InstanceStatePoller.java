@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.continuumsecurity.elasticagent.ec2.Ec2Plugin.LOG;
+
+/**
+ * Single background thread keeping the {@link InstanceStateCache} of every known cluster fresh. A cache is refreshed
+ * once it is older than half of its cluster's TTL, so that read paths normally never see a stale cache.
+ * <p>
+ * Clusters without live or pending instances are not described. Clusters are watched again on every request for
+ * them, and are no longer watched once they have had no instances and no requests for longer than their TTL.
+ */
+public class InstanceStatePoller {
+    static final long POLL_INTERVAL_SECONDS = 5;
+
+    private static InstanceStatePoller poller;
+
+    private final Map<String, WatchedCluster> clusters = new ConcurrentHashMap<>();
+
+    // used by tests
+    InstanceStatePoller() {
+    }
+
+    public static synchronized InstanceStatePoller instance() {
+        if (poller == null) {
+            poller = new InstanceStatePoller();
+            poller.start();
+        }
+        return poller;
+    }
+
+    private void start() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("ec2-instance-state-poller").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(() -> poll(System.currentTimeMillis()), POLL_INTERVAL_SECONDS, POLL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void watch(ClusterProfileProperties clusterProfileProperties, Ec2AgentInstances agentInstances) {
+        clusters.put(clusterProfileProperties.uuid(), new WatchedCluster(clusterProfileProperties, agentInstances, System.currentTimeMillis()));
+    }
+
+    public void unwatch(ClusterProfileProperties clusterProfileProperties) {
+        clusters.remove(clusterProfileProperties.uuid());
+    }
+
+    boolean isWatching(ClusterProfileProperties clusterProfileProperties) {
+        return clusters.containsKey(clusterProfileProperties.uuid());
+    }
+
+    void poll(long now) {
+        for (WatchedCluster cluster : clusters.values()) {
+            long ttlMillis = cluster.clusterProfileProperties.getInstanceStateTtlSeconds() * 1000L;
+            if (cluster.agentInstances.liveInstances() == 0 && cluster.agentInstances.pendingInstances() == 0) {
+                if (now - cluster.watchedAt > ttlMillis) {
+                    // watched again with the next request for the cluster
+                    clusters.remove(cluster.clusterProfileProperties.uuid(), cluster);
+                }
+                continue;
+            }
+
+            InstanceStateCache cache = cluster.agentInstances.instanceStateCache();
+            if (cache.ageMillis() < ttlMillis / 2) {
+                continue;
+            }
+
+            try {
+                cache.refresh(cluster.clusterProfileProperties);
+            } catch (Exception e) {
+                // keep polling the other clusters, read paths fall back to AWS once the cache is stale
+                LOG.warn("[Instance State] Could not refresh instance states for cluster " + cluster.clusterProfileProperties.uuid(), e);
+            }
+        }
+    }
+
+    private static class WatchedCluster {
+        private final ClusterProfileProperties clusterProfileProperties;
+        private final Ec2AgentInstances agentInstances;
+        private final long watchedAt;
+
+        private WatchedCluster(ClusterProfileProperties clusterProfileProperties, Ec2AgentInstances agentInstances, long watchedAt) {
+            this.clusterProfileProperties = clusterProfileProperties;
+            this.agentInstances = agentInstances;
+            this.watchedAt = watchedAt;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import com.continuumsecurity.elasticagent.ec2.requests.CreateAgentRequest;
+import software.amazon.awssdk.services.ec2.model.CreateTagsRequest;
+import software.amazon.awssdk.services.ec2.model.ResourceType;
+import software.amazon.awssdk.services.ec2.model.Tag;
+import software.amazon.awssdk.services.ec2.model.TagSpecification;
+
+import java.util.*;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * The tags of an instance, computed once per launch request and reused for every <code>RunInstances</code> attempt.
+ * Apart from the auto-register key, the tags are also put on the volumes and network interfaces launched with the
+ * instance, so that they can be attributed to the job and profile later.
+ */
+public final class InstanceTags {
+    static final String CUSTOM_TAGS_PROPERTY = "ec2_tags";
+    // EC2 allows 50 tags per resource, the plugin uses up to 12 of them
+    static final int MAX_CUSTOM_TAGS = 38;
+    private static final int MAX_KEY_LENGTH = 128;
+    private static final int MAX_VALUE_LENGTH = 256;
+    private static final Set<String> RESERVED_KEYS = new HashSet<>(Arrays.asList(
+            "Name", "type", "pipelineName", "pipelineCounter", "pipelineLabel", "stageName", "stageCounter", "jobName",
+            "jobId", "JsonJobIdentifier", Ec2Instance.AUTO_REGISTER_KEY_TAG, Ec2Instance.ENVIRONMENT_TAG
+    ));
+
+    private final List<Tag> tags;
+    private final List<Tag> attachmentTags;
+    private final List<TagSpecification> specifications;
+
+    private InstanceTags(List<Tag> tags, List<Tag> attachmentTags) {
+        this.tags = tags;
+        this.attachmentTags = attachmentTags;
+        this.specifications = Arrays.asList(
+                TagSpecification.builder().resourceType(ResourceType.INSTANCE).tags(tags).build(),
+                TagSpecification.builder().resourceType(ResourceType.VOLUME).tags(attachmentTags).build(),
+                TagSpecification.builder().resourceType(ResourceType.NETWORK_INTERFACE).tags(attachmentTags).build()
+        );
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the tags of the instance
+     */
+    List<Tag> tags() {
+        return tags;
+    }
+
+    /**
+     * @return the tag specifications of the instance, its volumes and its network interfaces
+     */
+    List<TagSpecification> specifications() {
+        return specifications;
+    }
+
+    /**
+     * @return the requests that put the tags on an instance that is already running, and on the volumes and network
+     * interfaces attached to it. <code>CreateTags</code> puts the same tags on all resources of a request, so the
+     * auto-register key is written to the instance on its own, and last, as the agent starts once it is there.
+     */
+    List<CreateTagsRequest> createTagsRequests(String instanceId, Collection<String> attachmentIds) {
+        List<String> resources = new ArrayList<>();
+        resources.add(instanceId);
+        resources.addAll(attachmentIds);
+
+        List<CreateTagsRequest> requests = new ArrayList<>();
+        requests.add(CreateTagsRequest.builder().resources(resources).tags(attachmentTags).build());
+        List<Tag> instanceOnly = new ArrayList<>(tags);
+        instanceOnly.removeAll(attachmentTags);
+        if (!instanceOnly.isEmpty()) {
+            requests.add(CreateTagsRequest.builder().resources(instanceId).tags(instanceOnly).build());
+        }
+        return requests;
+    }
+
+    /**
+     * Parses the custom tags of an elastic profile, one <code>key=value</code> pair per line.
+     *
+     * @throws IllegalArgumentException if a line is not a valid tag
+     */
+    static Map<String, String> parse(String input) {
+        Map<String, String> tags = new LinkedHashMap<>();
+        if (isBlank(input)) {
+            return tags;
+        }
+        for (String line : input.split("\\r?\\n")) {
+            if (isBlank(line)) {
+                continue;
+            }
+            int separator = line.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Tag '" + line.trim() + "' must be of the form key=value.");
+            }
+            String key = line.substring(0, separator).trim();
+            String value = line.substring(separator + 1).trim();
+            if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+                throw new IllegalArgumentException("Tag key '" + key + "' must be 1 to " + MAX_KEY_LENGTH + " characters.");
+            }
+            if (value.length() > MAX_VALUE_LENGTH) {
+                throw new IllegalArgumentException("Value of tag '" + key + "' must not exceed " + MAX_VALUE_LENGTH + " characters.");
+            }
+            if (key.toLowerCase(Locale.ROOT).startsWith("aws:") || RESERVED_KEYS.contains(key)) {
+                throw new IllegalArgumentException("Tag key '" + key + "' is reserved.");
+            }
+            if (tags.put(key, value) != null) {
+                throw new IllegalArgumentException("Tag '" + key + "' is given more than once.");
+            }
+        }
+        if (tags.size() > MAX_CUSTOM_TAGS) {
+            throw new IllegalArgumentException("At most " + MAX_CUSTOM_TAGS + " tags can be given.");
+        }
+        return tags;
+    }
+
+    /**
+     * @return why the given custom tags of an elastic profile are not valid, or <code>null</code> if they are
+     */
+    public static String validate(String input) {
+        try {
+            parse(input);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    static class Builder {
+        private final Map<String, String> tags = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Adds the custom tags of the given elastic profile, which are validated when the profile is saved.
+         */
+        Builder custom(Map<String, String> properties) {
+            tags.putAll(parse(properties.get(CUSTOM_TAGS_PROPERTY)));
+            return this;
+        }
+
+        /**
+         * Adds the tags that identify the job the instance is assigned to.
+         */
+        Builder job(JobIdentifier jobIdentifier) {
+            tags.put("Name", "GoCD EA "
+                    + jobIdentifier.getPipelineName()
+                    + "-" + jobIdentifier.getPipelineCounter().toString()
+                    + "-" + jobIdentifier.getStageName()
+                    + "-" + jobIdentifier.getJobName());
+            tags.put("type", Constants.ELASTIC_AGENT_TAG);
+            tags.put("pipelineName", jobIdentifier.getPipelineName());
+            tags.put("pipelineCounter", jobIdentifier.getPipelineCounter().toString());
+            tags.put("pipelineLabel", jobIdentifier.getPipelineLabel());
+            tags.put("stageName", jobIdentifier.getStageName());
+            tags.put("stageCounter", jobIdentifier.getStageCounter());
+            tags.put("jobName", jobIdentifier.getJobName());
+            tags.put("jobId", jobIdentifier.getJobId().toString());
+            tags.put("JsonJobIdentifier", jobIdentifier.toJson());
+            return this;
+        }
+
+        /**
+         * Adds the auto-register key and environment (if any) the agent registers with.
+         */
+        Builder registration(CreateAgentRequest request) {
+            tags.put(Ec2Instance.AUTO_REGISTER_KEY_TAG, request.autoRegisterKey());
+            return environment(request.environment());
+        }
+
+        Builder environment(String environment) {
+            if (environment != null) {
+                tags.put(Ec2Instance.ENVIRONMENT_TAG, environment);
+            }
+            return this;
+        }
+
+        Builder tag(String key, String value) {
+            tags.put(key, value);
+            return this;
+        }
+
+        InstanceTags build() {
+            List<Tag> instanceTags = new ArrayList<>();
+            List<Tag> attachmentTags = new ArrayList<>();
+            tags.forEach((key, value) -> {
+                Tag tag = Tag.builder().key(key).value(value).build();
+                instanceTags.add(tag);
+                // the auto-register key stays on the instance, which is the only resource that reads it
+                if (!Ec2Instance.AUTO_REGISTER_KEY_TAG.equals(key)) {
+                    attachmentTags.add(tag);
+                }
+            });
+            return new InstanceTags(Collections.unmodifiableList(instanceTags), Collections.unmodifiableList(attachmentTags));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import com.continuumsecurity.elasticagent.ec2.models.JobLatencyReport;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Remembers when the last {@link #CAPACITY} jobs of a cluster went through the steps of getting an agent, in a ring
+ * buffer, and reports percentiles of the time between the steps per elastic profile:
+ * <ol>
+ * <li>the first create agent request for the job was received</li>
+ * <li>EC2 returned the instance launched for the job, which warm and reused agents skip</li>
+ * <li>the agent of the job was first listed by the server during a server ping</li>
+ * <li>the agent was first assigned the job by a should assign work request</li>
+ * </ol>
+ * An agent that is assigned its job before a server ping lists it counts as listed when it is assigned, since the
+ * server only asks to assign work to registered agents.
+ * <p>
+ * Profiles are told apart by a hash of all their properties, so that profiles with the same AMI and instance types are
+ * not reported together, and labelled with their AMI and instance types for readability.
+ */
+class JobLatencies {
+    static final int CAPACITY = 1000;
+    private static final String[] STAGES = {"Launch", "Boot", "Assign", "Total"};
+
+    private final Job[] ring;
+    private final Map<String, Job> jobs = new HashMap<>();
+    private int next;
+
+    JobLatencies() {
+        this(CAPACITY);
+    }
+
+    JobLatencies(int capacity) {
+        this.ring = new Job[capacity];
+    }
+
+    synchronized void createRequested(JobIdentifier jobIdentifier, Map<String, String> profileProperties, long now) {
+        if (jobs.containsKey(jobIdentifier.key())) {
+            return;
+        }
+
+        Job evicted = ring[next];
+        if (evicted != null) {
+            jobs.remove(evicted.key);
+        }
+        Job job = new Job(jobIdentifier.key(), profile(profileProperties), now);
+        ring[next] = job;
+        jobs.put(job.key, job);
+        next = (next + 1) % ring.length;
+    }
+
+    synchronized void launched(JobIdentifier jobIdentifier, long now) {
+        Job job = jobs.get(jobIdentifier.key());
+        if (job != null && job.launchedAt == 0) {
+            job.launchedAt = now;
+        }
+    }
+
+    synchronized void listed(JobIdentifier jobIdentifier, long now) {
+        Job job = jobs.get(jobIdentifier.key());
+        if (job != null && job.listedAt == 0) {
+            job.listedAt = now;
+        }
+    }
+
+    synchronized void assigned(JobIdentifier jobIdentifier, long now) {
+        Job job = jobs.get(jobIdentifier.key());
+        if (job != null && job.assignedAt == 0) {
+            if (job.listedAt == 0) {
+                job.listedAt = now;
+            }
+            job.assignedAt = now;
+        }
+    }
+
+    /**
+     * @return the percentiles of each stage, by profile, for the stages at least one job went through
+     */
+    synchronized List<JobLatencyReport> report() {
+        Map<String, List<Job>> byProfile = new TreeMap<>();
+        for (Job job : ring) {
+            if (job != null) {
+                byProfile.computeIfAbsent(job.profile, profile -> new ArrayList<>()).add(job);
+            }
+        }
+
+        List<JobLatencyReport> reports = new ArrayList<>();
+        for (Map.Entry<String, List<Job>> profile : byProfile.entrySet()) {
+            List<ToLongFunction<Job>> stages = Arrays.asList(
+                    job -> between(job.createRequestedAt, job.launchedAt),
+                    job -> between(job.launchedAt, job.listedAt),
+                    job -> between(job.listedAt, job.assignedAt),
+                    job -> between(job.createRequestedAt, job.assignedAt));
+            for (int i = 0; i < STAGES.length; i++) {
+                long[] durations = profile.getValue().stream().mapToLong(stages.get(i)).filter(duration -> duration >= 0).sorted().toArray();
+                if (durations.length > 0) {
+                    reports.add(new JobLatencyReport(profile.getKey(), STAGES[i], durations.length,
+                            seconds(percentile(durations, 50)), seconds(percentile(durations, 95)), seconds(percentile(durations, 99))));
+                }
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * @return the nearest-rank percentile of the given sorted values
+     */
+    static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static long between(long from, long to) {
+        return from == 0 || to == 0 ? -1 : to - from;
+    }
+
+    private static long seconds(long millis) {
+        return TimeUnit.MILLISECONDS.toSeconds(millis);
+    }
+
+    private static String profile(Map<String, String> profileProperties) {
+        String ami = StringUtils.defaultIfBlank(profileProperties.get("ec2_ami"), "-");
+        String instanceTypes = StringUtils.defaultIfBlank(profileProperties.get("ec2_instance_type"), "-");
+        String settings = new TreeMap<>(profileProperties).entrySet().stream()
+                .map(property -> property.getKey() + "=" + property.getValue())
+                .collect(Collectors.joining("\0"));
+        String hash = Hashing.sha256().hashString(settings, StandardCharsets.UTF_8).toString().substring(0, 8);
+        return ami + " (" + instanceTypes + ") " + hash;
+    }
+
+    private static class Job {
+        private final String key;
+        private final String profile;
+        private final long createRequestedAt;
+        private long launchedAt;
+        private long listedAt;
+        private long assignedAt;
+
+        private Job(String key, String profile, long createRequestedAt) {
+            this.key = key;
+            this.profile = profile;
+            this.createRequestedAt = createRequestedAt;
+        }
+    }
+}
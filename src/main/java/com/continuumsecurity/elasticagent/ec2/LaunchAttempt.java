@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.ec2.model.InstanceInterruptionBehavior;
+import software.amazon.awssdk.services.ec2.model.InstanceMarketOptionsRequest;
+import software.amazon.awssdk.services.ec2.model.MarketType;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceType;
+import software.amazon.awssdk.services.ec2.model.SpotMarketOptions;
+
+import java.util.*;
+
+/**
+ * One combination of market, instance type and subnet an elastic profile can be launched with.
+ */
+final class LaunchAttempt {
+    static final String INSTANCE_TYPE_PROPERTY = "ec2_instance_type";
+    // the instance type can not be launched in the subnet right now, another type or subnet may work
+    private static final Set<String> NO_CAPACITY_ERRORS = new HashSet<>(Arrays.asList(
+            "InsufficientInstanceCapacity", "Unsupported"));
+    // a spot launch failing with one of these fails in every subnet, so on-demand is tried right away
+    private static final Set<String> SPOT_LIMIT_ERRORS = new HashSet<>(Arrays.asList(
+            "MaxSpotInstanceCountExceeded", "SpotMaxPriceTooLow"));
+
+    private final InstanceMarketOptionsRequest market;
+    private final String instanceType;
+    private final String subnet;
+
+    private LaunchAttempt(InstanceMarketOptionsRequest market, String instanceType, String subnet) {
+        this.market = market;
+        this.instanceType = instanceType;
+        this.subnet = subnet;
+    }
+
+    /**
+     * @return the subnets configured in the given profile
+     */
+    static List<String> subnets(Map<String, String> properties) {
+        return Arrays.asList(properties.get("ec2_subnets").split("\\s*,\\s*"));
+    }
+
+    /**
+     * Orders the launch attempts of a profile: spot before on-demand if spot is enabled, then the instance types in
+     * the order they are configured, each in all subnets in the given order (see {@link SubnetScheduler#order}).
+     * Combinations that recently had no capacity are tried last.
+     */
+    static List<LaunchAttempt> plan(Map<String, String> properties, List<String> subnets) {
+        List<String> instanceTypes = Arrays.asList(properties.get(INSTANCE_TYPE_PROPERTY).split("\\s*,\\s*"));
+
+        List<LaunchAttempt> attempts = new ArrayList<>();
+        List<LaunchAttempt> noCapacity = new ArrayList<>();
+        for (InstanceMarketOptionsRequest market : marketOptions(properties)) {
+            for (String instanceType : instanceTypes) {
+                for (String subnet : subnets) {
+                    LaunchAttempt attempt = new LaunchAttempt(market, instanceType, subnet);
+                    if (NoCapacityCache.instance().hasNoCapacity(attempt)) {
+                        noCapacity.add(attempt);
+                    } else {
+                        attempts.add(attempt);
+                    }
+                }
+            }
+        }
+        attempts.addAll(noCapacity);
+        return attempts;
+    }
+
+    /**
+     * @return the markets to launch instances of the given profile in, in the order they are tried. A
+     * <code>null</code> entry stands for on-demand.
+     */
+    private static List<InstanceMarketOptionsRequest> marketOptions(Map<String, String> properties) {
+        if (!"true".equalsIgnoreCase(properties.get(Ec2Instance.SPOT_PROPERTY))) {
+            return Collections.singletonList(null);
+        }
+
+        // interrupted instances are replaced by new agents, so they are terminated rather than stopped
+        InstanceMarketOptionsRequest spot = InstanceMarketOptionsRequest.builder()
+                .marketType(MarketType.SPOT)
+                .spotOptions(SpotMarketOptions.builder()
+                        .spotInstanceType(SpotInstanceType.ONE_TIME)
+                        .instanceInterruptionBehavior(InstanceInterruptionBehavior.TERMINATE)
+                        .build())
+                .build();
+        return Arrays.asList(spot, null);
+    }
+
+    /**
+     * Remembers the combination if it failed for lack of capacity.
+     *
+     * @return <code>true</code> if no other spot attempt can succeed either
+     */
+    boolean failed(Exception e) {
+        String errorCode = errorCode(e);
+        Metrics.LAUNCH_FAILURES.increment(errorCode != null ? errorCode : e.getClass().getSimpleName());
+        if (NO_CAPACITY_ERRORS.contains(errorCode)) {
+            NoCapacityCache.instance().remember(this);
+        }
+        return isSpot() && SPOT_LIMIT_ERRORS.contains(errorCode);
+    }
+
+    private static String errorCode(Exception e) {
+        if (e instanceof AwsServiceException && ((AwsServiceException) e).awsErrorDetails() != null) {
+            return ((AwsServiceException) e).awsErrorDetails().errorCode();
+        }
+        return null;
+    }
+
+    /**
+     * @return the market options of the attempt, or <code>null</code> for on-demand
+     */
+    InstanceMarketOptionsRequest market() {
+        return market;
+    }
+
+    boolean isSpot() {
+        return market != null;
+    }
+
+    String instanceType() {
+        return instanceType;
+    }
+
+    String subnet() {
+        return subnet;
+    }
+
+    String key() {
+        return (isSpot() ? "spot" : "on-demand") + "/" + instanceType + "/" + subnet;
+    }
+
+    @Override
+    public String toString() {
+        return instanceType + (isSpot() ? " spot" : "") + " in " + subnet;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.requests.CreateAgentRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static com.continuumsecurity.elasticagent.ec2.Ec2Plugin.LOG;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Coalesces concurrent create agent requests with an identical launch shape into a single <code>RunInstances</code> call.
+ * <p>
+ * Only profiles whose agents already read their auto-register key from the instance tags (pre-baked AMIs and launch
+ * templates) are batched, all others are launched one by one through {@link Ec2Instance#create}. A request for a shape
+ * that is not being launched yet is launched right away. Otherwise it opens a batch and waits for
+ * {@link #BATCH_WINDOW_MILLIS}; every request with the same shape arriving in the meantime joins it. A batch of one is
+ * launched exactly as before through {@link Ec2Instance#create}, larger batches go through {@link Ec2Instance#createAll}.
+ */
+class LaunchBatcher {
+    static final long BATCH_WINDOW_MILLIS = 200;
+
+    private final Map<LaunchShape, List<PendingLaunch>> openBatches = new HashMap<>();
+    // requests of each shape between entering and leaving launch(), guarded by openBatches
+    private final Map<LaunchShape, Integer> launching = new HashMap<>();
+    private final SubnetScheduler subnetScheduler;
+    private final long batchWindowMillis;
+
+    LaunchBatcher(SubnetScheduler subnetScheduler) {
+        this(subnetScheduler, BATCH_WINDOW_MILLIS);
+    }
+
+    LaunchBatcher(SubnetScheduler subnetScheduler, long batchWindowMillis) {
+        this.subnetScheduler = subnetScheduler;
+        this.batchWindowMillis = batchWindowMillis;
+    }
+
+    Ec2Instance launch(CreateAgentRequest request, ClusterProfileProperties clusterProfileProperties, ConsoleLogAppender consoleLogAppender) throws InterruptedException {
+        if (!isBatchable(request.properties())) {
+            return Ec2Instance.create(request, clusterProfileProperties, subnetScheduler, consoleLogAppender);
+        }
+
+        LaunchShape shape = LaunchShape.of(request);
+        PendingLaunch pendingLaunch = new PendingLaunch(request, consoleLogAppender);
+
+        boolean leader;
+        boolean alone;
+        synchronized (openBatches) {
+            alone = launching.merge(shape, 1, Integer::sum) == 1;
+            List<PendingLaunch> batch = openBatches.get(shape);
+            leader = batch == null;
+            if (leader) {
+                batch = new ArrayList<>();
+                // nothing else of this shape is being launched, so there is nothing to wait for
+                if (!alone) {
+                    openBatches.put(shape, batch);
+                }
+            }
+            batch.add(pendingLaunch);
+        }
+
+        try {
+            if (leader && alone) {
+                launch(Collections.singletonList(pendingLaunch), clusterProfileProperties);
+            } else if (leader) {
+                try {
+                    Thread.sleep(batchWindowMillis);
+                } catch (InterruptedException e) {
+                    // the other requests of the batch are waiting on us, so launch right away
+                    Thread.currentThread().interrupt();
+                }
+
+                List<PendingLaunch> batch;
+                synchronized (openBatches) {
+                    batch = openBatches.remove(shape);
+                }
+                launch(batch, clusterProfileProperties);
+            }
+
+            try {
+                return pendingLaunch.result.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        } finally {
+            synchronized (openBatches) {
+                launching.computeIfPresent(shape, (s, count) -> count == 1 ? null : count - 1);
+            }
+        }
+    }
+
+    /**
+     * @return whether agents of the given elastic profile read their auto-register key from the instance tags, and can
+     * therefore share the user data of a <code>RunInstances</code> call
+     */
+    static boolean isBatchable(Map<String, String> properties) {
+        return Ec2Instance.isPrebaked(properties) || isNotBlank(properties.get(LaunchTemplates.LAUNCH_TEMPLATE_PROPERTY));
+    }
+
+    private void launch(List<PendingLaunch> batch, ClusterProfileProperties clusterProfileProperties) {
+        try {
+            if (batch.size() == 1) {
+                PendingLaunch pendingLaunch = batch.get(0);
+                pendingLaunch.result.complete(Ec2Instance.create(pendingLaunch.request, clusterProfileProperties, subnetScheduler, pendingLaunch.consoleLogAppender));
+                return;
+            }
+
+            List<CreateAgentRequest> requests = new ArrayList<>();
+            for (PendingLaunch pendingLaunch : batch) {
+                requests.add(pendingLaunch.request);
+                pendingLaunch.consoleLogAppender.accept("Launching instance together with " + (batch.size() - 1) + " other jobs of the same elastic profile");
+            }
+
+            List<Ec2Instance> instances = Ec2Instance.createAll(requests, clusterProfileProperties, subnetScheduler);
+            LOG.info(String.format("[Create Agent] Batched launch created %d of %d requested instances", instances.stream().filter(Objects::nonNull).count(), batch.size()));
+
+            for (int i = 0; i < batch.size(); i++) {
+                PendingLaunch pendingLaunch = batch.get(i);
+                Ec2Instance instance = i < instances.size() ? instances.get(i) : null;
+                if (instance != null) {
+                    pendingLaunch.consoleLogAppender.accept("Successfully created new instance " + instance.id());
+                } else {
+                    pendingLaunch.consoleLogAppender.accept("Could not create instance in any provided subnet!");
+                }
+                pendingLaunch.result.complete(instance);
+            }
+        } catch (Throwable e) {
+            // the other requests of the batch block on their result, so they must always get one
+            for (PendingLaunch pendingLaunch : batch) {
+                pendingLaunch.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class PendingLaunch {
+        private final CreateAgentRequest request;
+        private final ConsoleLogAppender consoleLogAppender;
+        private final CompletableFuture<Ec2Instance> result = new CompletableFuture<>();
+
+        private PendingLaunch(CreateAgentRequest request, ConsoleLogAppender consoleLogAppender) {
+            this.request = request;
+            this.consoleLogAppender = consoleLogAppender;
+        }
+    }
+
+    /**
+     * The elastic profile properties of a request. Requests with equal shapes come from equal elastic profiles, and
+     * only differ in job specific values.
+     */
+    static class LaunchShape {
+        private final Map<String, String> properties;
+
+        private LaunchShape(Map<String, String> properties) {
+            this.properties = properties;
+        }
+
+        static LaunchShape of(CreateAgentRequest request) {
+            return new LaunchShape(new HashMap<>(request.properties()));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            LaunchShape that = (LaunchShape) o;
+            return properties.equals(that.properties);
+        }
+
+        @Override
+        public int hashCode() {
+            return properties.hashCode();
+        }
+    }
+}
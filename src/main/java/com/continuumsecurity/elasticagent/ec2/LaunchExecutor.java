@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded worker pool running agent instance launches off the GoCD plugin invocation thread.
+ * <p>
+ * Launches that do not fit in the queue are rejected with a {@link java.util.concurrent.RejectedExecutionException}
+ * instead of piling up. The pool is large enough for concurrent launches of the same profile to meet in a
+ * {@link LaunchBatcher} batch.
+ */
+class LaunchExecutor {
+    static final int LAUNCH_THREADS = 25;
+    static final int MAX_QUEUED_LAUNCHES = 500;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            LAUNCH_THREADS, LAUNCH_THREADS,
+            60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_LAUNCHES),
+            new ThreadFactoryBuilder().setNameFormat("ec2-agent-launcher-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    static ExecutorService instance() {
+        return EXECUTOR;
+    }
+
+    static int queuedLaunches() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    static int activeLaunches() {
+        return EXECUTOR.getActiveCount();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.google.common.hash.Hashing;
+import org.joda.time.DateTime;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.continuumsecurity.elasticagent.ec2.Ec2Plugin.LOG;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Keeps the launch templates of the elastic profiles that set {@link #LAUNCH_TEMPLATE_PROPERTY} in sync with the
+ * profiles, so that launches only send what differs between instances. A template is created when it does not exist
+ * yet, and every distinct set of launch settings gets its own template version, identified by a hash of the settings
+ * in the version description. Changing a profile therefore adds a version, and changing it back reuses the old one.
+ * <p>
+ * Only templates tagged as elastic agent templates, as the templates created here are, get new versions. Other
+ * templates belong to the user and are launched from with their default version, see {@link #DEFAULT_VERSION}.
+ */
+class LaunchTemplates {
+    static final String LAUNCH_TEMPLATE_PROPERTY = "ec2_launch_template";
+    static final long RETRY_AFTER_FAILURE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final String DEFAULT_VERSION = "$Default";
+    private static final String VERSION_DESCRIPTION_PREFIX = "GoCD elastic agent profile ";
+    private static final String NOT_FOUND = "InvalidLaunchTemplateName.NotFoundException";
+
+    private static final LaunchTemplates INSTANCE = new LaunchTemplates();
+
+    private final Map<String, String> versions = new ConcurrentHashMap<>();
+    private final Map<String, DateTime> failedAt = new ConcurrentHashMap<>();
+    Clock clock = Clock.DEFAULT;
+
+    static LaunchTemplates instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the template version to launch instances of the given profile with, or <code>null</code> if the profile
+     * does not use a launch template, or its template could not be set up
+     */
+    LaunchTemplateSpecification specificationFor(Map<String, String> properties, ClusterProfileProperties clusterProfileProperties) {
+        String name = properties.get(LAUNCH_TEMPLATE_PROPERTY);
+        if (isBlank(name)) {
+            return null;
+        }
+
+        String userdata = Ec2Instance.userDataReadingTags(properties, clusterProfileProperties);
+        String hash = hash(properties, userdata);
+        String key = clusterProfileProperties.uuid() + "/" + name + "/" + hash;
+
+        String version = versions.get(key);
+        if (version == null) {
+            DateTime lastFailure = failedAt.get(key);
+            if (lastFailure != null && clock.now().isBefore(lastFailure.plus(RETRY_AFTER_FAILURE_MILLIS))) {
+                return null;
+            }
+            synchronized (this) {
+                version = versions.get(key);
+                if (version == null) {
+                    try {
+                        version = ensureVersion(name, hash, templateData(properties, userdata), clusterProfileProperties);
+                        versions.put(key, version);
+                        failedAt.remove(key);
+                    } catch (AwsServiceException | SdkClientException e) {
+                        LOG.warn("[Launch Template] Could not set up launch template " + name + ", launching without it", e);
+                        failedAt.put(key, clock.now());
+                        return null;
+                    }
+                }
+            }
+        }
+
+        return LaunchTemplateSpecification.builder()
+                .launchTemplateName(name)
+                .version(version)
+                .build();
+    }
+
+    private String ensureVersion(String name, String hash, RequestLaunchTemplateData data, ClusterProfileProperties clusterProfileProperties) {
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+            String description = VERSION_DESCRIPTION_PREFIX + hash;
+
+            try {
+                DescribeLaunchTemplateVersionsRequest request = DescribeLaunchTemplateVersionsRequest.builder()
+                        .launchTemplateName(name)
+                        .build();
+                for (LaunchTemplateVersion version : ec2.describeLaunchTemplateVersionsPaginator(request).launchTemplateVersions()) {
+                    if (description.equals(version.versionDescription())) {
+                        return String.valueOf(version.versionNumber());
+                    }
+                }
+            } catch (AwsServiceException e) {
+                if (e.awsErrorDetails() == null || !NOT_FOUND.equals(e.awsErrorDetails().errorCode())) {
+                    throw e;
+                }
+
+                CreateLaunchTemplateResponse created = ec2.createLaunchTemplate(CreateLaunchTemplateRequest.builder()
+                        .launchTemplateName(name)
+                        .versionDescription(description)
+                        .launchTemplateData(data)
+                        .tagSpecifications(TagSpecification.builder()
+                                .resourceType(ResourceType.LAUNCH_TEMPLATE)
+                                .tags(Tag.builder().key("type").value(Constants.ELASTIC_AGENT_TAG).build())
+                                .build())
+                        .build());
+                LOG.info("[Launch Template] Created launch template " + name);
+                return String.valueOf(created.launchTemplate().latestVersionNumber());
+            }
+
+            if (!isManaged(ec2, name)) {
+                LOG.info("[Launch Template] Launch template " + name + " is not managed by the plugin, launching from its default version");
+                return DEFAULT_VERSION;
+            }
+
+            CreateLaunchTemplateVersionResponse created = ec2.createLaunchTemplateVersion(CreateLaunchTemplateVersionRequest.builder()
+                    .launchTemplateName(name)
+                    .versionDescription(description)
+                    .launchTemplateData(data)
+                    .build());
+            LOG.info("[Launch Template] Created version " + created.launchTemplateVersion().versionNumber() + " of launch template " + name);
+            return String.valueOf(created.launchTemplateVersion().versionNumber());
+        }
+    }
+
+    private static boolean isManaged(Ec2Client ec2, String name) {
+        DescribeLaunchTemplatesResponse response = ec2.describeLaunchTemplates(DescribeLaunchTemplatesRequest.builder()
+                .launchTemplateNames(name)
+                .build());
+        Tag managed = Tag.builder().key("type").value(Constants.ELASTIC_AGENT_TAG).build();
+        return response.launchTemplates().stream().anyMatch(template -> template.tags().contains(managed));
+    }
+
+    private static RequestLaunchTemplateData templateData(Map<String, String> properties, String userdata) {
+        RequestLaunchTemplateData.Builder data = RequestLaunchTemplateData.builder()
+                .imageId(properties.get("ec2_ami"))
+                .keyName(properties.get("ec2_key"))
+                .securityGroupIds(securityGroups(properties))
+                .metadataOptions(LaunchTemplateInstanceMetadataOptionsRequest.builder()
+                        .instanceMetadataTags(LaunchTemplateInstanceMetadataTagsState.ENABLED)
+                        .build());
+        if (!userdata.isEmpty()) {
+            data.userData(Base64.getEncoder().encodeToString(userdata.getBytes()));
+        }
+        if (isNotBlank(properties.get("ec2_instance_profile"))) {
+            data.iamInstanceProfile(LaunchTemplateIamInstanceProfileSpecificationRequest.builder()
+                    .name(properties.get("ec2_instance_profile"))
+                    .build());
+        }
+        return data.build();
+    }
+
+    private static List<String> securityGroups(Map<String, String> properties) {
+        return Arrays.asList(properties.get("ec2_sg").split("\\s*,\\s*"));
+    }
+
+    private static String hash(Map<String, String> properties, String userdata) {
+        String settings = String.join("\0",
+                String.valueOf(properties.get("ec2_ami")),
+                String.valueOf(properties.get("ec2_key")),
+                String.join(",", securityGroups(properties)),
+                String.valueOf(properties.get("ec2_instance_profile")),
+                userdata);
+        return Hashing.sha256().hashString(settings, StandardCharsets.UTF_8).toString();
+    }
+
+    // used by tests
+    void clear() {
+        versions.clear();
+        failedAt.clear();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The metrics of the plugin, rendered in the Prometheus text exposition format by {@link #render(Map)}.
+ * <p>
+ * Counters and histograms are recorded as things happen. Gauges, and the counters other parts of the plugin keep
+ * anyway, are read from the clusters, the {@link ApiScheduler API schedulers} and the {@link Ec2ClientRegistry} when
+ * the metrics are rendered.
+ */
+public class Metrics {
+    static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    private static final String PREFIX = "gocd_ec2_elastic_agent_";
+
+    public static final Histogram REQUEST_DURATION = new Histogram("plugin_request_duration_seconds",
+            "Time taken to handle a request of the GoCD server, by request", "request");
+    public static final Histogram AWS_CALL_DURATION = new Histogram("aws_call_duration_seconds",
+            "Time taken by an EC2 API call, including waiting for the API scheduler and retries, by operation", "operation");
+    public static final Counter LAUNCH_FAILURES = new Counter("launch_failures_total",
+            "Failed attempts to launch instances, by AWS error code", "code");
+
+    private static final List<Metric<?>> RECORDED = Arrays.asList(REQUEST_DURATION, AWS_CALL_DURATION, LAUNCH_FAILURES);
+
+    private Metrics() {
+    }
+
+    /**
+     * @param clusterSpecificAgentInstances the instances of each cluster, by cluster profile uuid
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public static String render(Map<String, Ec2AgentInstances> clusterSpecificAgentInstances) {
+        StringBuilder text = new StringBuilder();
+        for (Metric<?> metric : RECORDED) {
+            metric.render(text);
+        }
+
+        Map<String, Ec2AgentInstances> clusters = new TreeMap<>(clusterSpecificAgentInstances);
+        Gauge live = new Gauge("live_instances", "Instances the plugin knows about, by cluster profile", "cluster");
+        Gauge pending = new Gauge("pending_instances", "Instances being launched, by cluster profile", "cluster");
+        Gauge launches = new ReadCounter("launches_total", "Successful launches, by cluster profile", "cluster");
+        Gauge firstAttemptLaunches = new ReadCounter("first_attempt_launches_total",
+                "Launches that succeeded in the first subnet and instance type tried, by cluster profile", "cluster");
+        Gauge failedLaunches = new ReadCounter("failed_launches_total",
+                "Launches that failed in every subnet and instance type, by cluster profile", "cluster");
+        for (Map.Entry<String, Ec2AgentInstances> cluster : clusters.entrySet()) {
+            Ec2AgentInstances agentInstances = cluster.getValue();
+            SubnetScheduler subnetScheduler = agentInstances.subnetScheduler();
+            live.set(agentInstances.liveInstances(), cluster.getKey());
+            pending.set(agentInstances.pendingInstances(), cluster.getKey());
+            launches.set(subnetScheduler.launches(), cluster.getKey());
+            firstAttemptLaunches.set(subnetScheduler.firstAttemptLaunches(), cluster.getKey());
+            failedLaunches.set(subnetScheduler.failedLaunches(), cluster.getKey());
+        }
+
+        Gauge queueDepth = new Gauge("aws_call_queue_depth", "EC2 API calls waiting for the API scheduler", "account", "calls");
+        Gauge rate = new Gauge("aws_call_rate", "Current EC2 API call rate of the API scheduler, in calls per second", "account", "calls");
+        Gauge throttles = new ReadCounter("aws_call_throttles_total", "EC2 API calls throttled by AWS", "account");
+        List<ApiScheduler> schedulers = new ArrayList<>(Ec2ClientRegistry.instance().apiSchedulers());
+        schedulers.sort((one, other) -> one.account().compareTo(other.account()));
+        for (ApiScheduler scheduler : schedulers) {
+            queueDepth.set(scheduler.describeQueueDepth(), scheduler.account(), "describe");
+            queueDepth.set(scheduler.mutatingQueueDepth(), scheduler.account(), "mutating");
+            rate.set(scheduler.describeRate(), scheduler.account(), "describe");
+            rate.set(scheduler.mutatingRate(), scheduler.account(), "mutating");
+            throttles.set(scheduler.throttles(), scheduler.account());
+        }
+
+        Gauge clients = new Gauge("aws_clients", "EC2 clients kept open");
+        clients.set(Ec2ClientRegistry.instance().size());
+
+        for (Metric<?> metric : Arrays.<Metric<?>>asList(live, pending, launches, firstAttemptLaunches, failedLaunches, queueDepth, rate, throttles, clients)) {
+            metric.render(text);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Forgets everything recorded so far. Used by tests.
+     */
+    static void reset() {
+        for (Metric<?> metric : RECORDED) {
+            metric.series.clear();
+        }
+    }
+
+    static double seconds(long nanos) {
+        return (double) nanos / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private abstract static class Metric<T> {
+        final String name;
+        final String help;
+        final String type;
+        final List<String> labelNames;
+        final Map<List<String>, T> series = new ConcurrentHashMap<>();
+
+        Metric(String name, String help, String type, String... labelNames) {
+            this.name = PREFIX + name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = Arrays.asList(labelNames);
+        }
+
+        T series(String[] labelValues, Supplier<T> newSeries) {
+            if (labelValues.length != labelNames.size()) {
+                throw new IllegalArgumentException(name + " has the labels " + labelNames);
+            }
+            return series.computeIfAbsent(Arrays.asList(labelValues), labels -> newSeries.get());
+        }
+
+        void render(StringBuilder text) {
+            if (series.isEmpty()) {
+                return;
+            }
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+
+            List<List<String>> labelValues = new ArrayList<>(series.keySet());
+            labelValues.sort((one, other) -> String.join("\u0000", one).compareTo(String.join("\u0000", other)));
+            for (List<String> values : labelValues) {
+                renderSeries(text, values, series.get(values));
+            }
+        }
+
+        abstract void renderSeries(StringBuilder text, List<String> labelValues, T series);
+
+        void sample(StringBuilder text, String suffix, List<String> labelValues, String extraLabel, String extraValue, double value) {
+            text.append(name).append(suffix);
+            List<String> names = new ArrayList<>(labelNames);
+            List<String> values = new ArrayList<>(labelValues);
+            if (extraLabel != null) {
+                names.add(extraLabel);
+                values.add(extraValue);
+            }
+            if (!names.isEmpty()) {
+                text.append('{');
+                for (int i = 0; i < names.size(); i++) {
+                    if (i > 0) {
+                        text.append(',');
+                    }
+                    text.append(names.get(i)).append("=\"").append(escape(values.get(i))).append('"');
+                }
+                text.append('}');
+            }
+            text.append(' ').append(format(value)).append('\n');
+        }
+
+        private static String escape(String labelValue) {
+            return String.valueOf(labelValue).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        private static String format(double value) {
+            if (Double.isInfinite(value)) {
+                return value > 0 ? "+Inf" : "-Inf";
+            }
+            return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+        }
+    }
+
+    public static class Counter extends Metric<LongAdder> {
+        Counter(String name, String help, String... labelNames) {
+            super(name, help, "counter", labelNames);
+        }
+
+        public void increment(String... labelValues) {
+            series(labelValues, LongAdder::new).increment();
+        }
+
+        @Override
+        void renderSeries(StringBuilder text, List<String> labelValues, LongAdder count) {
+            sample(text, "", labelValues, null, null, count.sum());
+        }
+    }
+
+    public static class Histogram extends Metric<Histogram.Series> {
+        Histogram(String name, String help, String... labelNames) {
+            super(name, help, "histogram", labelNames);
+        }
+
+        public void observe(double seconds, String... labelValues) {
+            Series histogram = series(labelValues, Series::new);
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                if (seconds <= LATENCY_BUCKETS[i]) {
+                    histogram.buckets[i].increment();
+                    break;
+                }
+            }
+            histogram.count.increment();
+            histogram.sum.add(seconds);
+        }
+
+        @Override
+        void renderSeries(StringBuilder text, List<String> labelValues, Series histogram) {
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                sample(text, "_bucket", labelValues, "le", Double.toString(LATENCY_BUCKETS[i]), cumulative);
+            }
+            long count = histogram.count.sum();
+            sample(text, "_bucket", labelValues, "le", "+Inf", count);
+            sample(text, "_sum", labelValues, null, null, histogram.sum.sum());
+            sample(text, "_count", labelValues, null, null, count);
+        }
+
+        static class Series {
+            private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length];
+            private final LongAdder count = new LongAdder();
+            private final DoubleAdder sum = new DoubleAdder();
+
+            Series() {
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new LongAdder();
+                }
+            }
+        }
+    }
+
+    /**
+     * A value read when rendering.
+     */
+    private static class Gauge extends Metric<Double> {
+        Gauge(String name, String help, String... labelNames) {
+            super(name, help, "gauge", labelNames);
+        }
+
+        Gauge(String type, String name, String help, String[] labelNames) {
+            super(name, help, type, labelNames);
+        }
+
+        void set(double value, String... labelValues) {
+            series.put(Arrays.asList(labelValues), value);
+        }
+
+        @Override
+        void renderSeries(StringBuilder text, List<String> labelValues, Double value) {
+            sample(text, "", labelValues, null, null, value);
+        }
+    }
+
+    /**
+     * A counter kept elsewhere in the plugin, read when rendering.
+     */
+    private static class ReadCounter extends Gauge {
+        ReadCounter(String name, String help, String... labelNames) {
+            super("counter", name, help, labelNames);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import org.joda.time.DateTime;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers for a few minutes in which subnets an instance type recently could not be launched for lack of capacity,
+ * so that launches of all clusters try other combinations first instead of failing on the same one again. Subnet ids
+ * are unique across regions and accounts, so a single cache serves all clusters.
+ */
+class NoCapacityCache {
+    static final long NO_CAPACITY_TTL_MILLIS = TimeUnit.MINUTES.toMillis(3);
+
+    private static final NoCapacityCache INSTANCE = new NoCapacityCache();
+
+    private final Map<String, DateTime> noCapacityUntil = new ConcurrentHashMap<>();
+    Clock clock = Clock.DEFAULT;
+
+    static NoCapacityCache instance() {
+        return INSTANCE;
+    }
+
+    void remember(LaunchAttempt attempt) {
+        noCapacityUntil.put(attempt.key(), clock.now().plus(NO_CAPACITY_TTL_MILLIS));
+    }
+
+    boolean hasNoCapacity(LaunchAttempt attempt) {
+        DateTime until = noCapacityUntil.get(attempt.key());
+        if (until == null) {
+            return false;
+        }
+        if (clock.now().isBefore(until)) {
+            return true;
+        }
+        noCapacityUntil.remove(attempt.key(), until);
+        return false;
+    }
+
+    // used by tests
+    void clear() {
+        noCapacityUntil.clear();
+    }
+}
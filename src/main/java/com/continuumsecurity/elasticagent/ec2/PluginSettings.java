@@ -34,6 +34,11 @@ public class PluginSettings {
             .excludeFieldsWithoutExposeAnnotation()
             .create();
 
+    private static final int DEFAULT_INSTANCE_STATE_TTL_SECONDS = 30;
+    // DescribeInstances accepts page sizes between 5 and 1000
+    private static final int MIN_DESCRIBE_PAGE_SIZE = 5;
+    private static final int MAX_DESCRIBE_PAGE_SIZE = 1000;
+
     @Expose
     @SerializedName("go_server_url")
     private String goServerUrl;
@@ -66,6 +71,14 @@ public class PluginSettings {
     @SerializedName("aws_endpoint_url")
     private String awsEndpointUrl;
 
+    @Expose
+    @SerializedName("instance_state_ttl")
+    private String instanceStateTtl;
+
+    @Expose
+    @SerializedName("describe_page_size")
+    private String describePageSize;
+
     private Period autoRegisterPeriod;
 
     public static PluginSettings fromJSON(String json) {
@@ -87,6 +100,8 @@ public class PluginSettings {
         if (awsRegion != null ? !awsRegion.equals(that.awsRegion) : that.awsRegion != null) return false;
         if (awsProfile != null ? !awsProfile.equals(that.awsProfile) : that.awsProfile != null) return false;
         if (awsEndpointUrl != null ? !awsEndpointUrl.equals(that.awsEndpointUrl) : that.awsEndpointUrl != null) return false;
+        if (instanceStateTtl != null ? !instanceStateTtl.equals(that.instanceStateTtl) : that.instanceStateTtl != null) return false;
+        if (describePageSize != null ? !describePageSize.equals(that.describePageSize) : that.describePageSize != null) return false;
         return autoRegisterPeriod != null ? autoRegisterPeriod.equals(that.autoRegisterPeriod) : that.autoRegisterPeriod == null;
     }
 
@@ -100,6 +115,8 @@ public class PluginSettings {
         result = 31 * result + (awsRegion != null ? awsRegion.hashCode() : 0);
         result = 31 * result + (awsProfile != null ? awsProfile.hashCode() : 0);
         result = 31 * result + (awsEndpointUrl != null ? awsEndpointUrl.hashCode() : 0);
+        result = 31 * result + (instanceStateTtl != null ? instanceStateTtl.hashCode() : 0);
+        result = 31 * result + (describePageSize != null ? describePageSize.hashCode() : 0);
         return result;
     }
 
@@ -115,6 +132,8 @@ public class PluginSettings {
         pluginSettingsString += ", awsRegion='" + awsRegion + '\'' +
                 ", awsProfile=" + awsProfile +
                 ", awsEndpointUrl=" + awsEndpointUrl +
+                ", instanceStateTtl=" + instanceStateTtl +
+                ", describePageSize=" + describePageSize +
                 ", autoRegisterPeriod=" + autoRegisterPeriod +
                 '}';
 
@@ -177,6 +196,23 @@ public class PluginSettings {
         return awsEndpointUrl;
     }
 
+    public int getInstanceStateTtlSeconds() {
+        if (isBlank(instanceStateTtl)) {
+            return DEFAULT_INSTANCE_STATE_TTL_SECONDS;
+        }
+        return Integer.parseInt(instanceStateTtl);
+    }
+
+    /**
+     * @return the number of instances fetched per <code>DescribeInstances</code> page
+     */
+    public int getDescribePageSize() {
+        if (isBlank(describePageSize)) {
+            return MAX_DESCRIBE_PAGE_SIZE;
+        }
+        return Math.max(MIN_DESCRIBE_PAGE_SIZE, Math.min(MAX_DESCRIBE_PAGE_SIZE, Integer.parseInt(describePageSize)));
+    }
+
     public void setGoServerUrl(String goServerUrl) {
         this.goServerUrl = goServerUrl;
     }
@@ -200,4 +236,12 @@ public class PluginSettings {
     public void setAwsRegion(String awsRegion) {
         this.awsRegion = awsRegion;
     }
+
+    public void setInstanceStateTtl(String instanceStateTtl) {
+        this.instanceStateTtl = instanceStateTtl;
+    }
+
+    public void setDescribePageSize(String describePageSize) {
+        this.describePageSize = describePageSize;
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.Filter;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+
+import java.util.*;
+
+/**
+ * Finds the spot instances of a cluster that EC2 is reclaiming, from the status of their spot requests. EC2 marks a
+ * request about two minutes before it interrupts the instance, which is checked on every server ping, so that the job
+ * of an interrupted instance can be moved to a new agent instead of waiting for the server to lose contact with it.
+ */
+class SpotInterruptionMonitor {
+    private static final int MAX_VALUES_PER_FILTER = 200;
+    private static final String TERMINATED_BY_USER = "instance-terminated-by-user";
+
+    private SpotInterruptionMonitor() {
+    }
+
+    /**
+     * @return the ids of the given instances that are being, or have been, interrupted
+     */
+    static Set<String> findInterrupted(Collection<String> instanceIds, ClusterProfileProperties clusterProfileProperties) {
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+            List<String> ids = new ArrayList<>(instanceIds);
+
+            Set<String> interrupted = new HashSet<>();
+            for (int from = 0; from < ids.size(); from += MAX_VALUES_PER_FILTER) {
+                List<String> chunk = ids.subList(from, Math.min(from + MAX_VALUES_PER_FILTER, ids.size()));
+                DescribeSpotInstanceRequestsRequest request = DescribeSpotInstanceRequestsRequest.builder()
+                        .filters(Filter.builder().name("instance-id").values(chunk).build())
+                        .build();
+                for (SpotInstanceRequest spotRequest : ec2.describeSpotInstanceRequestsPaginator(request).spotInstanceRequests()) {
+                    if (spotRequest.status() != null && isInterruption(spotRequest.status().code())) {
+                        interrupted.add(spotRequest.instanceId());
+                    }
+                }
+            }
+            return interrupted;
+        }
+    }
+
+    private static boolean isInterruption(String statusCode) {
+        if (statusCode == null || statusCode.equals(TERMINATED_BY_USER)) {
+            return false;
+        }
+        return statusCode.startsWith("marked-for-") || statusCode.startsWith("instance-terminated-");
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import org.joda.time.DateTime;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeSubnetsRequest;
+import software.amazon.awssdk.services.ec2.model.Subnet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.continuumsecurity.elasticagent.ec2.Ec2Plugin.LOG;
+
+/**
+ * Decides in which order the subnets of an elastic profile are tried when launching agents of one cluster. Subnets with
+ * enough free IP addresses come first, then subnets that did not fail a launch in the last
+ * {@link #FAILURE_PENALTY_MILLIS}, then subnets with fewer live agents of the cluster, to spread the agents across
+ * availability zones. Ties are broken randomly.
+ * <p>
+ * Free IP addresses are described at most every {@link #FREE_IPS_TTL_MILLIS} and counted down locally in between.
+ */
+class SubnetScheduler {
+    static final long FREE_IPS_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final long FAILURE_PENALTY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Map<String, AtomicInteger> liveAgents = new ConcurrentHashMap<>();
+    private final Map<String, FreeIps> freeIps = new ConcurrentHashMap<>();
+    private final Map<String, Failures> failures = new ConcurrentHashMap<>();
+    private final AtomicLong launches = new AtomicLong();
+    private final AtomicLong firstAttemptLaunches = new AtomicLong();
+    private final AtomicLong failedLaunches = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    Clock clock = Clock.DEFAULT;
+
+    /**
+     * @return the given subnets, best first for launching the given number of instances
+     */
+    List<String> order(List<String> subnets, int instances, ClusterProfileProperties clusterProfileProperties) {
+        describeFreeIps(subnets, clusterProfileProperties);
+
+        // scored once up front, as failures expire and agents come and go while sorting
+        DateTime now = clock.now();
+        Map<String, Score> scores = new HashMap<>();
+        for (String subnet : subnets) {
+            scores.put(subnet, new Score(hasFreeIps(subnet, instances), recentFailures(subnet, now), liveAgents(subnet)));
+        }
+
+        List<String> ordered = new ArrayList<>(subnets);
+        Collections.shuffle(ordered);
+        // the sort is stable, so subnets that score the same stay in random order
+        ordered.sort(Comparator.comparing(scores::get));
+        return ordered;
+    }
+
+    void agentAdded(String subnet) {
+        if (subnet != null) {
+            liveAgents.computeIfAbsent(subnet, s -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    void agentRemoved(String subnet) {
+        if (subnet != null) {
+            AtomicInteger count = liveAgents.get(subnet);
+            if (count != null) {
+                count.updateAndGet(c -> Math.max(0, c - 1));
+            }
+        }
+    }
+
+    /**
+     * Records a launch attempt that failed in the given subnet.
+     */
+    void failed(String subnet) {
+        DateTime now = clock.now();
+        failures.compute(subnet, (s, recent) -> recent == null || recent.expired(now) ? new Failures(1, now) : new Failures(recent.count + 1, now));
+    }
+
+    /**
+     * Records a launch that succeeded in the given subnet after the given number of failed attempts.
+     */
+    void launched(String subnet, int instances, int failedAttempts) {
+        freeIps.computeIfPresent(subnet, (s, ips) -> ips.minus(instances));
+        launches.incrementAndGet();
+        retries.addAndGet(failedAttempts);
+        if (failedAttempts == 0) {
+            firstAttemptLaunches.incrementAndGet();
+        } else {
+            LOG.info("[Subnet Scheduler] Launched in " + subnet + " after " + failedAttempts + " failed attempts");
+        }
+    }
+
+    /**
+     * Records a launch that failed in every subnet.
+     */
+    void notLaunched(int failedAttempts) {
+        failedLaunches.incrementAndGet();
+        retries.addAndGet(failedAttempts);
+    }
+
+    long launches() {
+        return launches.get();
+    }
+
+    long firstAttemptLaunches() {
+        return firstAttemptLaunches.get();
+    }
+
+    long failedLaunches() {
+        return failedLaunches.get();
+    }
+
+    /**
+     * @return the number of failed attempts per launch, including launches that failed altogether
+     */
+    double retriesPerLaunch() {
+        long allLaunches = launches.get() + failedLaunches.get();
+        return allLaunches == 0 ? 0 : (double) retries.get() / allLaunches;
+    }
+
+    int liveAgents(String subnet) {
+        AtomicInteger count = liveAgents.get(subnet);
+        return count == null ? 0 : count.get();
+    }
+
+    private int recentFailures(String subnet, DateTime now) {
+        Failures recent = failures.get(subnet);
+        return recent == null || recent.expired(now) ? 0 : recent.count;
+    }
+
+    private boolean hasFreeIps(String subnet, int instances) {
+        FreeIps ips = freeIps.get(subnet);
+        // subnets that could not be described are not held back
+        return ips == null || ips.count == null || ips.count >= instances;
+    }
+
+    private void describeFreeIps(List<String> subnets, ClusterProfileProperties clusterProfileProperties) {
+        DateTime now = clock.now();
+        List<String> stale = new ArrayList<>();
+        for (String subnet : subnets) {
+            FreeIps ips = freeIps.get(subnet);
+            if (ips == null || ips.describedAt.plus(FREE_IPS_TTL_MILLIS).isBefore(now)) {
+                stale.add(subnet);
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        Map<String, FreeIps> described = new HashMap<>();
+        for (String subnet : stale) {
+            described.put(subnet, new FreeIps(null, now));
+        }
+        try (Ec2ClientRegistry.Lease lease = Ec2ClientRegistry.instance().acquire(clusterProfileProperties)) {
+            Ec2Client ec2 = lease.client();
+            for (Subnet subnet : ec2.describeSubnets(DescribeSubnetsRequest.builder().subnetIds(stale).build()).subnets()) {
+                described.put(subnet.subnetId(), new FreeIps(subnet.availableIpAddressCount(), now));
+            }
+        } catch (AwsServiceException | SdkClientException e) {
+            // described again once the TTL has passed, all subnets are tried until then
+            LOG.warn("[Subnet Scheduler] Could not describe the free IP addresses of subnets " + stale, e);
+        }
+        freeIps.putAll(described);
+    }
+
+    private static class Score implements Comparable<Score> {
+        private static final Comparator<Score> BEST_FIRST = Comparator.comparing((Score score) -> !score.hasFreeIps)
+                .thenComparingInt(score -> score.recentFailures)
+                .thenComparingInt(score -> score.liveAgents);
+
+        private final boolean hasFreeIps;
+        private final int recentFailures;
+        private final int liveAgents;
+
+        private Score(boolean hasFreeIps, int recentFailures, int liveAgents) {
+            this.hasFreeIps = hasFreeIps;
+            this.recentFailures = recentFailures;
+            this.liveAgents = liveAgents;
+        }
+
+        @Override
+        public int compareTo(Score other) {
+            return BEST_FIRST.compare(this, other);
+        }
+    }
+
+    private static class FreeIps {
+        private final Integer count;
+        private final DateTime describedAt;
+
+        private FreeIps(Integer count, DateTime describedAt) {
+            this.count = count;
+            this.describedAt = describedAt;
+        }
+
+        FreeIps minus(int instances) {
+            return count == null ? this : new FreeIps(Math.max(0, count - instances), describedAt);
+        }
+    }
+
+    private static class Failures {
+        private final int count;
+        private final DateTime lastFailedAt;
+
+        private Failures(int count, DateTime lastFailedAt) {
+            this.count = count;
+            this.lastFailedAt = lastFailedAt;
+        }
+
+        boolean expired(DateTime now) {
+            return !now.isBefore(lastFailedAt.plus(FAILURE_PENALTY_MILLIS));
+        }
+    }
+}
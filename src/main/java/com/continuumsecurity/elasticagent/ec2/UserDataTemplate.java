@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A user data script that is put together once per elastic profile from literal segments and the names of the values
+ * that differ per job. Rendering it only concatenates the segments with the values of a job.
+ */
+class UserDataTemplate {
+    private final String[] literals;
+    private final Value[] values;
+    private final int literalLength;
+    private volatile String constantBase64;
+
+    private UserDataTemplate(List<String> literals, List<Value> values) {
+        this.literals = literals.toArray(new String[0]);
+        this.values = values.toArray(new Value[0]);
+        this.literalLength = literals.stream().mapToInt(String::length).sum();
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param jobValues the values of the job, by name. Missing values leave out their whole segment.
+     */
+    String render(Map<String, String> jobValues) {
+        StringBuilder script = new StringBuilder(literalLength + 128);
+        for (int i = 0; i < values.length; i++) {
+            script.append(literals[i]);
+            values[i].appendTo(script, jobValues.get(values[i].name));
+        }
+        return script.append(literals[values.length]).toString();
+    }
+
+    /**
+     * @return the rendered script, base64 encoded as EC2 expects it. Scripts without per-job values are only encoded
+     * once.
+     */
+    String renderBase64(Map<String, String> jobValues) {
+        if (values.length > 0) {
+            return encode(render(jobValues));
+        }
+        if (constantBase64 == null) {
+            constantBase64 = encode(render(jobValues));
+        }
+        return constantBase64;
+    }
+
+    /**
+     * @return the size of the rendered script in bytes, which EC2 limits before encoding
+     */
+    int size(Map<String, String> jobValues) {
+        return render(jobValues).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static String encode(String script) {
+        return Base64.getEncoder().encodeToString(script.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static class Builder {
+        private final List<String> literals = new ArrayList<>();
+        private final List<Value> values = new ArrayList<>();
+        private StringBuilder literal = new StringBuilder();
+
+        Builder append(String text) {
+            literal.append(text);
+            return this;
+        }
+
+        Builder value(String name) {
+            return optional(name, "", "");
+        }
+
+        /**
+         * Adds a value that is wrapped in the given prefix and suffix, all of which is left out when the job has no
+         * such value.
+         */
+        Builder optional(String name, String prefix, String suffix) {
+            literals.add(literal.toString());
+            values.add(new Value(name, prefix, suffix));
+            literal = new StringBuilder();
+            return this;
+        }
+
+        UserDataTemplate build() {
+            List<String> allLiterals = new ArrayList<>(literals);
+            allLiterals.add(literal.toString());
+            return new UserDataTemplate(allLiterals, values);
+        }
+    }
+
+    private static class Value {
+        private final String name;
+        private final String prefix;
+        private final String suffix;
+
+        private Value(String name, String prefix, String suffix) {
+            this.name = name;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        void appendTo(StringBuilder script, String value) {
+            if (value != null) {
+                script.append(prefix).append(value).append(suffix);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the {@link UserDataTemplate user data templates} of the elastic profiles of each cluster, by a hash of the
+ * settings that go into them. The templates of a cluster are dropped when the cluster profile changes. Edited elastic
+ * profiles leave their old templates behind, so only the {@link #MAX_TEMPLATES} most recently used ones are kept.
+ */
+public class UserDataTemplates {
+    static final String AUTO_REGISTER_KEY = "autoRegisterKey";
+    static final String ENVIRONMENT = "environment";
+    // EC2 limits user data to 16 KB before it is base64 encoded
+    static final int MAX_USER_DATA_BYTES = 16 * 1024;
+    // room left for the values only known at launch time when validating a profile
+    private static final int SERVER_URL_ALLOWANCE = 256;
+    private static final int AUTO_REGISTER_KEY_ALLOWANCE = 64;
+    private static final int ENVIRONMENT_ALLOWANCE = 256;
+    // how long user data waits for the auto-register key tag before giving up, warm instances wait until a job takes them
+    static final int TAG_WAIT_SECONDS = 300;
+    static final int MAX_TEMPLATES = 1000;
+
+    private static final UserDataTemplates INSTANCE = new UserDataTemplates();
+
+    private final ConcurrentMap<String, UserDataTemplate> templates = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TEMPLATES)
+            .<String, UserDataTemplate>build()
+            .asMap();
+
+    public static UserDataTemplates instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the template of user data that writes the auto-register key and environment of the job into
+     * <code>autoregister.properties</code>
+     */
+    UserDataTemplate forJob(Map<String, String> properties, ClusterProfileProperties clusterProfileProperties) {
+        return templates.computeIfAbsent(key("job", properties, clusterProfileProperties),
+                key -> compileForJob(properties, clusterProfileProperties.getGoServerUrl()));
+    }
+
+    /**
+     * @return the template of user data that reads the auto-register key and environment from the instance tags, which
+     * has no per-job values
+     */
+    UserDataTemplate readingTags(Map<String, String> properties, ClusterProfileProperties clusterProfileProperties) {
+        return templates.computeIfAbsent(key("tags", properties, clusterProfileProperties),
+                key -> compileReadingTags(properties, clusterProfileProperties.getGoServerUrl()));
+    }
+
+    /**
+     * Drops the templates of the given cluster profile, e.g. because it changed.
+     */
+    public void invalidate(ClusterProfileProperties clusterProfileProperties) {
+        String prefix = clusterProfileProperties.uuid() + "/";
+        templates.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * @return why the user data of the given elastic profile would be too large for EC2, or <code>null</code> if it
+     * fits. The values only known at launch time are assumed to be as long as they reasonably get.
+     */
+    public static String validateSize(Map<String, String> properties) {
+        String goServerUrl = StringUtils.repeat('x', SERVER_URL_ALLOWANCE);
+        Map<String, String> jobValues = new HashMap<>();
+        jobValues.put(AUTO_REGISTER_KEY, StringUtils.repeat('x', AUTO_REGISTER_KEY_ALLOWANCE));
+        jobValues.put(ENVIRONMENT, StringUtils.repeat('x', ENVIRONMENT_ALLOWANCE));
+
+        int size = compileReadingTags(properties, goServerUrl).size(jobValues);
+        if (!Ec2Instance.isPrebaked(properties)) {
+            size = Math.max(size, compileForJob(properties, goServerUrl).size(jobValues));
+        }
+        if (size > MAX_USER_DATA_BYTES) {
+            return "User data must not exceed " + MAX_USER_DATA_BYTES + " bytes including the agent bootstrap script, but can take up to " + size + " bytes.";
+        }
+        return null;
+    }
+
+    private static UserDataTemplate compileForJob(Map<String, String> properties, String goServerUrl) {
+        String agentWorkDir = agentWorkDir(properties);
+        String configDir = new File(agentWorkDir, "config").getAbsolutePath();
+        String autoRegisterPropertiesFile = new File(configDir, "autoregister.properties").getAbsolutePath();
+
+        return UserDataTemplate.builder()
+                .append("#!/bin/bash\n" +
+                        "sed -ri \"s,http[s]?://localhost:[0-9]+/go," + goServerUrl + ",g\" /usr/share/go-agent/wrapper-config/wrapper-properties.conf\n" +
+                        "mkdir -p " + configDir + "\n" +
+                        "echo \"agent.auto.register.key=")
+                .value(AUTO_REGISTER_KEY)
+                .append("\" > " + autoRegisterPropertiesFile + "\n" +
+                        "echo \"agent.auto.register.hostname=EA_$(ec2-metadata --instance-id | cut -d \" \" -f 2)\" >> " + autoRegisterPropertiesFile + "\n" +
+                        "echo \"agent.auto.register.elasticAgent.agentId=$(ec2-metadata --instance-id | cut -d \" \" -f 2)\" >> " + autoRegisterPropertiesFile + "\n" +
+                        "echo \"agent.auto.register.elasticAgent.pluginId=" + Constants.PLUGIN_ID + "\" >> " + autoRegisterPropertiesFile + "\n" +
+                        "chown -R go:go /var/log/go-agent/\n" +
+                        "chown -R go:go " + agentWorkDir + "\n" +
+                        "chown -R go:go /usr/share/go-agent/\n")
+                .optional(ENVIRONMENT, "echo \"agent.auto.register.environments=", "\" >> " + autoRegisterPropertiesFile + "\n")
+                .append(customUserData(properties))
+                .append("systemctl start go-agent.service\n")
+                .build();
+    }
+
+    private static UserDataTemplate compileReadingTags(Map<String, String> properties, String goServerUrl) {
+        // pre-baked AMIs read the tags themselves
+        if (Ec2Instance.isPrebaked(properties)) {
+            return UserDataTemplate.builder()
+                    .append(StringUtils.defaultString(properties.get("ec2_user_data")))
+                    .build();
+        }
+
+        String agentWorkDir = agentWorkDir(properties);
+        String configDir = new File(agentWorkDir, "config").getAbsolutePath();
+        String autoRegisterPropertiesFile = new File(configDir, "autoregister.properties").getAbsolutePath();
+        String giveUp = WarmPool.size(properties) > 0 ? "" :
+                "  if [ $tries -ge " + TAG_WAIT_SECONDS + " ]; then echo \"No " + Ec2Instance.AUTO_REGISTER_KEY_TAG + " instance tag after " + TAG_WAIT_SECONDS + "s, the AMI needs curl and instance tags must be readable from the instance metadata\" >&2; exit 1; fi\n";
+
+        return UserDataTemplate.builder()
+                .append("#!/bin/bash\n" +
+                        "sed -ri \"s,http[s]?://localhost:[0-9]+/go," + goServerUrl + ",g\" /usr/share/go-agent/wrapper-config/wrapper-properties.conf\n" +
+                        "mkdir -p " + configDir + "\n" +
+                        "IMDS_TOKEN=$(curl -s -X PUT \"http://169.254.169.254/latest/api/token\" -H \"X-aws-ec2-metadata-token-ttl-seconds: 21600\")\n" +
+                        "instance_tag() { curl -sf -H \"X-aws-ec2-metadata-token: $IMDS_TOKEN\" \"http://169.254.169.254/latest/meta-data/tags/instance/$1\"; }\n" +
+                        "tries=0\n" +
+                        "until AUTO_REGISTER_KEY=$(instance_tag " + Ec2Instance.AUTO_REGISTER_KEY_TAG + "); do\n" +
+                        "  tries=$((tries + 1))\n" +
+                        giveUp +
+                        "  sleep 1\n" +
+                        "done\n" +
+                        "echo \"agent.auto.register.key=$AUTO_REGISTER_KEY\" > " + autoRegisterPropertiesFile + "\n" +
+                        "echo \"agent.auto.register.hostname=EA_$(ec2-metadata --instance-id | cut -d \" \" -f 2)\" >> " + autoRegisterPropertiesFile + "\n" +
+                        "echo \"agent.auto.register.elasticAgent.agentId=$(ec2-metadata --instance-id | cut -d \" \" -f 2)\" >> " + autoRegisterPropertiesFile + "\n" +
+                        "echo \"agent.auto.register.elasticAgent.pluginId=" + Constants.PLUGIN_ID + "\" >> " + autoRegisterPropertiesFile + "\n" +
+                        "if ENVIRONMENT=$(instance_tag " + Ec2Instance.ENVIRONMENT_TAG + "); then echo \"agent.auto.register.environments=$ENVIRONMENT\" >> " + autoRegisterPropertiesFile + "; fi\n" +
+                        "chown -R go:go /var/log/go-agent/\n" +
+                        "chown -R go:go " + agentWorkDir + "\n" +
+                        "chown -R go:go /usr/share/go-agent/\n")
+                .append(customUserData(properties))
+                .append("systemctl start go-agent.service\n")
+                .build();
+    }
+
+    private static String agentWorkDir(Map<String, String> properties) {
+        return properties.get("go_agent_work_dir") != null ? properties.get("go_agent_work_dir") : "/var/lib/go-agent/";
+    }
+
+    private static String customUserData(Map<String, String> properties) {
+        return properties.get("ec2_user_data") != null ? properties.get("ec2_user_data") + "\n" : "";
+    }
+
+    private static String key(String kind, Map<String, String> properties, ClusterProfileProperties clusterProfileProperties) {
+        String settings = String.join("\0",
+                String.valueOf(properties.get("go_agent_work_dir")),
+                String.valueOf(properties.get("ec2_user_data")),
+                String.valueOf(Ec2Instance.isPrebaked(properties)),
+                String.valueOf(WarmPool.size(properties) > 0),
+                String.valueOf(clusterProfileProperties.getGoServerUrl()));
+        return clusterProfileProperties.uuid() + "/" + kind + "/" + Hashing.sha256().hashString(settings, StandardCharsets.UTF_8);
+    }
+
+    // used by tests
+    void clear() {
+        templates.clear();
+    }
+
+    // used by tests
+    int size() {
+        return templates.size();
+    }
+}
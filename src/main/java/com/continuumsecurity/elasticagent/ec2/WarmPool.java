@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.requests.CreateAgentRequest;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.util.*;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Bookkeeping of the agent instances of a cluster that are not assigned to any job, and wait for one.
+ * <p>
+ * Every elastic profile (together with the environment it is requested for) that sets {@link #SIZE_PROPERTY} gets its
+ * own pool. A pool becomes active with the first create agent request for it, and is kept at its size until no agent
+ * has been requested for it for {@link #IDLE_TTL_PROPERTY} minutes. Its warm instances are then drained.
+ * <p>
+ * Warm instances boot without an auto-register key and wait for one. The instance that a job takes is tagged with the
+ * auto-register key and environment of that job, so that each key is used by a single agent.
+ * <p>
+ * Profiles that set {@link #REUSE_MAX_JOBS_PROPERTY} to more than one job return their agents to the pool once a job
+ * is done. Those are drained when they have not been given another job within {@link #REUSE_IDLE_TTL_PROPERTY} minutes.
+ * Given back agents are registered already, so they are only handed out when the server offers them work, never to
+ * create agent requests, and do not count towards the size of the pool.
+ */
+class WarmPool {
+    static final String SIZE_PROPERTY = "ec2_warm_pool_size";
+    static final String IDLE_TTL_PROPERTY = "ec2_warm_pool_idle_ttl";
+    static final String REUSE_MAX_JOBS_PROPERTY = "ec2_reuse_max_jobs";
+    static final String REUSE_IDLE_TTL_PROPERTY = "ec2_reuse_idle_ttl";
+    static final int DEFAULT_IDLE_TTL_MINUTES = 10;
+
+    private final Map<PoolKey, Pool> pools = new HashMap<>();
+    private final Map<String, WarmInstance> warmInstances = new HashMap<>();
+
+    static int size(Map<String, String> properties) {
+        String size = properties.get(SIZE_PROPERTY);
+        return isBlank(size) ? 0 : Integer.parseInt(size);
+    }
+
+    static Period idleTtl(Map<String, String> properties) {
+        return minutes(properties, IDLE_TTL_PROPERTY);
+    }
+
+    /**
+     * @return the number of jobs an agent of the given profile may run, <code>1</code> unless reuse is enabled
+     */
+    static int reuseMaxJobs(Map<String, String> properties) {
+        String maxJobs = properties.get(REUSE_MAX_JOBS_PROPERTY);
+        return isBlank(maxJobs) ? 1 : Math.max(1, Integer.parseInt(maxJobs));
+    }
+
+    static Period reuseIdleTtl(Map<String, String> properties) {
+        return minutes(properties, REUSE_IDLE_TTL_PROPERTY);
+    }
+
+    private static Period minutes(Map<String, String> properties, String key) {
+        String minutes = properties.get(key);
+        return Period.minutes(isBlank(minutes) ? DEFAULT_IDLE_TTL_MINUTES : Integer.parseInt(minutes));
+    }
+
+    /**
+     * Records that an agent was requested for the pool of the given request, which keeps the pool active.
+     */
+    synchronized void demand(CreateAgentRequest request, DateTime now) {
+        if (size(request.properties()) <= 0) {
+            return;
+        }
+
+        Pool pool = pools.computeIfAbsent(PoolKey.of(request), key -> new Pool());
+        pool.template = request;
+        pool.lastDemandAt = now;
+    }
+
+    /**
+     * Removes a pre-launched warm instance of the pool of the given request. Given back agents are skipped.
+     *
+     * @return the id of the instance, or <code>null</code> if the pool has no pre-launched warm instance
+     */
+    synchronized String take(CreateAgentRequest request) {
+        PoolKey key = PoolKey.of(request);
+        for (Map.Entry<String, WarmInstance> warmInstance : warmInstances.entrySet()) {
+            if (warmInstance.getValue().key.equals(key) && !warmInstance.getValue().isGivenBack()) {
+                warmInstances.remove(warmInstance.getKey());
+                return warmInstance.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the given instance from its pool if it was launched for the given elastic profile. The environment is
+     * not checked, as the server only offers jobs to agents of a matching environment.
+     *
+     * @return <code>true</code> if the instance was a warm instance of that profile
+     */
+    synchronized boolean take(String instanceId, Map<String, String> profileProperties) {
+        WarmInstance warmInstance = warmInstances.get(instanceId);
+        if (warmInstance == null || !warmInstance.key.properties.equals(profileProperties)) {
+            return false;
+        }
+        warmInstances.remove(instanceId);
+        return true;
+    }
+
+    /**
+     * Makes an agent that has finished its job available to the next job of the same profile and environment.
+     */
+    synchronized void giveBack(String instanceId, Map<String, String> profileProperties, String environment, DateTime now) {
+        warmInstances.put(instanceId, new WarmInstance(new PoolKey(profileProperties, environment), now));
+    }
+
+    /**
+     * Returns an instance taken with {@link #take(String, Map)} to its pool, because it could not be assigned after all.
+     *
+     * @param givenBackAt when the agent was given back, or <code>null</code> if it was pre-launched
+     */
+    synchronized void putBack(String instanceId, Map<String, String> profileProperties, String environment, DateTime givenBackAt) {
+        warmInstances.put(instanceId, new WarmInstance(new PoolKey(profileProperties, environment), givenBackAt));
+    }
+
+    /**
+     * Works out how many instances each active pool is missing, and counts them as being launched until
+     * {@link #launched} is called for them. Pools that have been idle for longer than their TTL are dropped.
+     */
+    synchronized List<Replenishment> replenishments(DateTime now) {
+        List<Replenishment> replenishments = new ArrayList<>();
+        Iterator<Map.Entry<PoolKey, Pool>> iterator = pools.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<PoolKey, Pool> entry = iterator.next();
+            Pool pool = entry.getValue();
+            if (pool.isIdle(now)) {
+                if (pool.launching == 0) {
+                    iterator.remove();
+                }
+                continue;
+            }
+
+            int missing = size(pool.template.properties()) - available(entry.getKey()) - pool.launching;
+            if (missing > 0) {
+                pool.launching += missing;
+                replenishments.add(new Replenishment(pool.template, missing));
+            }
+        }
+        return replenishments;
+    }
+
+    /**
+     * Completes a {@link Replenishment}, with the instances that could actually be launched for it.
+     */
+    synchronized void launched(Replenishment replenishment, Collection<String> instanceIds) {
+        PoolKey key = PoolKey.of(replenishment.template);
+        Pool pool = pools.get(key);
+        if (pool != null) {
+            pool.launching -= replenishment.count;
+        }
+        for (String instanceId : instanceIds) {
+            warmInstances.put(instanceId, new WarmInstance(key, null));
+        }
+    }
+
+    synchronized boolean isWarm(String instanceId) {
+        return warmInstances.containsKey(instanceId);
+    }
+
+    /**
+     * Removes the given warm instance if it has been idle for longer than its TTL, so that it can be drained.
+     * Pre-launched instances are idle as long as their pool, given back agents since they were given back.
+     *
+     * @return <code>true</code> if the instance was removed
+     */
+    synchronized boolean removeIfIdle(String instanceId, DateTime now) {
+        WarmInstance warmInstance = warmInstances.get(instanceId);
+        if (warmInstance == null) {
+            return false;
+        }
+
+        boolean idle;
+        if (warmInstance.isGivenBack()) {
+            idle = now.isAfter(warmInstance.givenBackAt.plus(reuseIdleTtl(warmInstance.key.properties)));
+        } else {
+            Pool pool = pools.get(warmInstance.key);
+            idle = pool == null || pool.isIdle(now);
+        }
+
+        if (idle) {
+            warmInstances.remove(instanceId);
+        }
+        return idle;
+    }
+
+    synchronized void remove(Collection<String> instanceIds) {
+        warmInstances.keySet().removeAll(instanceIds);
+    }
+
+    private int available(PoolKey key) {
+        int available = 0;
+        for (WarmInstance warmInstance : warmInstances.values()) {
+            if (warmInstance.key.equals(key) && !warmInstance.isGivenBack()) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    static class Replenishment {
+        private final CreateAgentRequest template;
+        private final int count;
+
+        private Replenishment(CreateAgentRequest template, int count) {
+            this.template = template;
+            this.count = count;
+        }
+
+        CreateAgentRequest template() {
+            return template;
+        }
+
+        int count() {
+            return count;
+        }
+    }
+
+    private static class Pool {
+        private CreateAgentRequest template;
+        private DateTime lastDemandAt;
+        private int launching;
+
+        private boolean isIdle(DateTime now) {
+            return now.isAfter(lastDemandAt.plus(idleTtl(template.properties())));
+        }
+    }
+
+    private static class WarmInstance {
+        private final PoolKey key;
+        private final DateTime givenBackAt;
+
+        private WarmInstance(PoolKey key, DateTime givenBackAt) {
+            this.key = key;
+            this.givenBackAt = givenBackAt;
+        }
+
+        private boolean isGivenBack() {
+            return givenBackAt != null;
+        }
+    }
+
+    private static class PoolKey {
+        private final Map<String, String> properties;
+        private final String environment;
+
+        private PoolKey(Map<String, String> properties, String environment) {
+            this.properties = properties;
+            this.environment = environment;
+        }
+
+        static PoolKey of(CreateAgentRequest request) {
+            return new PoolKey(request.properties(), request.environment());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PoolKey that = (PoolKey) o;
+            return properties.equals(that.properties) && Objects.equals(environment, that.environment);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(properties, environment);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2.executors;
+
+import com.continuumsecurity.elasticagent.ec2.*;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The agents known to the server, listed once per server ping and afterwards kept up to date locally with the agents
+ * the ping disables and deletes, instead of listing them again.
+ */
+class AgentSnapshot {
+    private final PluginRequest pluginRequest;
+    private final Map<String, Agent> agents = new LinkedHashMap<>();
+    private int serverApiCalls;
+
+    private AgentSnapshot(PluginRequest pluginRequest) {
+        this.pluginRequest = pluginRequest;
+    }
+
+    static AgentSnapshot take(PluginRequest pluginRequest) throws ServerRequestFailedException {
+        AgentSnapshot snapshot = new AgentSnapshot(pluginRequest);
+        for (Agent agent : pluginRequest.listAgents().agents()) {
+            snapshot.agents.put(agent.elasticAgentId(), agent);
+        }
+        snapshot.serverApiCalls++;
+        return snapshot;
+    }
+
+    /**
+     * @return the agents of the instances of a cluster. The agents that belong to no cluster at all are only given to
+     * the first of all clusters, so that the concurrent cleanups of the clusters do not all disable and delete them.
+     */
+    synchronized Agents forCluster(Ec2AgentInstances clusterInstances, Collection<Ec2AgentInstances> allClusterInstances) {
+        boolean ownsUnknownAgents = !allClusterInstances.isEmpty() && allClusterInstances.iterator().next() == clusterInstances;
+        Agents clusterAgents = new Agents();
+        for (Agent agent : agents.values()) {
+            if (clusterInstances.find(agent.elasticAgentId()) != null || ownsUnknownAgents && !belongsToAnyCluster(agent, allClusterInstances)) {
+                clusterAgents.add(agent);
+            }
+        }
+        return clusterAgents;
+    }
+
+    /**
+     * @return the agents whose instance is not known to any cluster
+     */
+    synchronized Agents withoutCluster(Collection<Ec2AgentInstances> allClusterInstances) {
+        Agents unknownAgents = new Agents();
+        for (Agent agent : agents.values()) {
+            if (!belongsToAnyCluster(agent, allClusterInstances)) {
+                unknownAgents.add(agent);
+            }
+        }
+        return unknownAgents;
+    }
+
+    void disable(Collection<Agent> toBeDisabled) throws ServerRequestFailedException {
+        if (toBeDisabled.isEmpty()) {
+            return;
+        }
+
+        pluginRequest.disableAgents(toBeDisabled);
+        synchronized (this) {
+            serverApiCalls++;
+            for (Agent agent : toBeDisabled) {
+                agents.computeIfPresent(agent.elasticAgentId(), (id, known) ->
+                        new Agent(id, known.agentState(), known.buildState(), Agent.ConfigState.Disabled));
+            }
+        }
+    }
+
+    void delete(Collection<Agent> toBeDeleted) throws ServerRequestFailedException {
+        if (toBeDeleted.isEmpty()) {
+            return;
+        }
+
+        pluginRequest.deleteAgents(toBeDeleted);
+        synchronized (this) {
+            serverApiCalls++;
+            for (Agent agent : toBeDeleted) {
+                agents.remove(agent.elasticAgentId());
+            }
+        }
+    }
+
+    /**
+     * @return the number of requests made to the server for this snapshot, including the one listing the agents
+     */
+    synchronized int serverApiCalls() {
+        return serverApiCalls;
+    }
+
+    private static boolean belongsToAnyCluster(Agent agent, Collection<Ec2AgentInstances> allClusterInstances) {
+        for (Ec2AgentInstances clusterInstances : allClusterInstances) {
+            if (clusterInstances.find(agent.elasticAgentId()) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2.executors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Bounded worker pool running the server ping cleanup of each cluster concurrently, so that a slow or throttled
+ * region only delays the cleanup of its own clusters.
+ * <p>
+ * A cluster is cleaned up by at most one task at a time: while the cleanup from an earlier ping still hangs, the
+ * cluster is skipped instead of piling up more tasks behind it.
+ */
+class ClusterCleanupExecutor {
+    static final int CLEANUP_THREADS = 8;
+    static final int MAX_QUEUED_CLEANUPS = 100;
+    static final long CLEANUP_TIMEOUT_SECONDS = 45;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            CLEANUP_THREADS, CLEANUP_THREADS,
+            60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_CLEANUPS),
+            new ThreadFactoryBuilder().setNameFormat("ec2-cluster-cleanup-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    private static final Set<String> CLUSTERS_BEING_CLEANED_UP = ConcurrentHashMap.newKeySet();
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the running cleanup, or <code>null</code> if the cluster is still being cleaned up or too many cleanups
+     * are queued already
+     */
+    static Future<?> submit(String clusterId, Callable<Void> cleanup) {
+        if (!CLUSTERS_BEING_CLEANED_UP.add(clusterId)) {
+            return null;
+        }
+
+        try {
+            return EXECUTOR.submit(() -> {
+                try {
+                    return cleanup.call();
+                } finally {
+                    CLUSTERS_BEING_CLEANED_UP.remove(clusterId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            CLUSTERS_BEING_CLEANED_UP.remove(clusterId);
+            return null;
+        }
+    }
+
+    /**
+     * Gives up on a cleanup that took too long. A cleanup that has not started yet is dropped, a running one is
+     * interrupted and keeps its cluster busy until it actually ends.
+     */
+    static void abandon(String clusterId, Future<?> cleanup) {
+        if (EXECUTOR.remove((Runnable) cleanup)) {
+            CLUSTERS_BEING_CLEANED_UP.remove(clusterId);
+        }
+        cleanup.cancel(true);
+    }
+}
@@ -18,7 +18,10 @@ package com.continuumsecurity.elasticagent.ec2.executors;
 
 import com.continuumsecurity.elasticagent.ec2.ClusterProfileProperties;
 import com.continuumsecurity.elasticagent.ec2.Ec2AgentInstances;
+import com.continuumsecurity.elasticagent.ec2.Ec2ClientRegistry;
+import com.continuumsecurity.elasticagent.ec2.InstanceStatePoller;
 import com.continuumsecurity.elasticagent.ec2.RequestExecutor;
+import com.continuumsecurity.elasticagent.ec2.UserDataTemplates;
 import com.continuumsecurity.elasticagent.ec2.requests.ClusterProfileChangedRequest;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
@@ -63,6 +66,13 @@ public class ClusterProfileChangedRequestExecutor implements RequestExecutor {
         // terminate all agent instances from a cluster
 
         allClusterInstances.remove(clusterToDelete);
+        if (clusterInstancesToDelete == null) {
+            clusterInstancesToDelete = new Ec2AgentInstances();
+        }
+        clusterInstancesToDelete.deleteJournal(request.clusterProperties());
+        InstanceStatePoller.instance().unwatch(request.clusterProperties());
+        UserDataTemplates.instance().invalidate(request.clusterProperties());
+        Ec2ClientRegistry.instance().evict(request.clusterProperties());
     }
 
     private void handleUpdate(ClusterProfileChangedRequest request, Map<String, Ec2AgentInstances> allClusterInstances) {
@@ -73,6 +83,17 @@ public class ClusterProfileChangedRequestExecutor implements RequestExecutor {
 
         // terminate from old cluster and create instances on new cluster
 
-        allClusterInstances.put(newCluster.uuid(), new Ec2AgentInstances());
+        Ec2AgentInstances newClusterInstances = new Ec2AgentInstances();
+        newClusterInstances.takeOverJournal(oldClusterInstances, oldCluster, newCluster);
+        allClusterInstances.put(newCluster.uuid(), newClusterInstances);
+        InstanceStatePoller.instance().unwatch(oldCluster);
+        UserDataTemplates.instance().invalidate(oldCluster);
+
+        // keep a client shared with the updated cluster alive, otherwise close it so changed credentials are picked up
+        Ec2ClientRegistry registry = Ec2ClientRegistry.instance();
+        if (registry.sharesClient(oldCluster, newCluster)) {
+            registry.acquire(newCluster).close();
+        }
+        registry.evict(oldCluster);
     }
 }
@@ -52,7 +52,7 @@ public class CreateAgentRequestExecutor implements RequestExecutor {
         consoleLogAppender.accept(String.format("Received request to create an instance for %s at %s", request.jobIdentifier().getRepresentation(), new DateTime().toString("yyyy-MM-dd HH:mm:ss ZZ")));
 
         try {
-            agentInstances.create(request, pluginRequest, consoleLogAppender);
+            agentInstances.createAsync(request, pluginRequest, consoleLogAppender);
         } catch (Exception e) {
             consoleLogAppender.accept(String.format("Failed while creating instance: %s", e.getMessage()));
             throw e;
@@ -37,6 +37,8 @@ public class GetClusterProfileMetadataExecutor implements RequestExecutor {
     public static final Metadata AWS_REGION = new Metadata("aws_region", true, false);
     public static final Metadata AWS_PROFILE = new Metadata("aws_profile", false, false);
     public static final Metadata AWS_ENDPOINT_URL = new AWSEndpointURLMetadata("aws_endpoint_url", false, false);
+    public static final Metadata INSTANCE_STATE_TTL = new NumberMetadata("instance_state_ttl", false);
+    public static final Metadata DESCRIBE_PAGE_SIZE = new NumberMetadata("describe_page_size", false);
 
     public static final List<Metadata> CLUSTER_PROFILE_FIELDS = new ArrayList<>();
 
@@ -49,6 +51,8 @@ public class GetClusterProfileMetadataExecutor implements RequestExecutor {
         CLUSTER_PROFILE_FIELDS.add(AWS_REGION);
         CLUSTER_PROFILE_FIELDS.add(AWS_PROFILE);
         CLUSTER_PROFILE_FIELDS.add(AWS_ENDPOINT_URL);
+        CLUSTER_PROFILE_FIELDS.add(INSTANCE_STATE_TTL);
+        CLUSTER_PROFILE_FIELDS.add(DESCRIBE_PAGE_SIZE);
     }
 
     @Override
@@ -38,6 +38,14 @@ public class GetProfileMetadataExecutor implements RequestExecutor {
     private static final Metadata EC2_USER_DATA = new Metadata("ec2_user_data", false, false);
     private static final Metadata EC2_INSTANCE_PROFILE = new Metadata("ec2_instance_profile", false, false);
     private static final Metadata GO_AGENT_WORK_DIR = new Metadata("go_agent_work_dir", false, false);
+    private static final Metadata EC2_WARM_POOL_SIZE = new NumberMetadata("ec2_warm_pool_size", false);
+    private static final Metadata EC2_WARM_POOL_IDLE_TTL = new NumberMetadata("ec2_warm_pool_idle_ttl", false);
+    private static final Metadata EC2_REUSE_MAX_JOBS = new NumberMetadata("ec2_reuse_max_jobs", false);
+    private static final Metadata EC2_REUSE_IDLE_TTL = new NumberMetadata("ec2_reuse_idle_ttl", false);
+    private static final Metadata EC2_SPOT = new BooleanMetadata("ec2_spot", false);
+    private static final Metadata EC2_LAUNCH_TEMPLATE = new LaunchTemplateNameMetadata("ec2_launch_template", false);
+    private static final Metadata EC2_PREBAKED = new BooleanMetadata("ec2_prebaked", false);
+    private static final Metadata EC2_TAGS = new TagsMetadata("ec2_tags", false);
 
     static final List<Metadata> FIELDS = new ArrayList<>();
 
@@ -50,6 +58,14 @@ public class GetProfileMetadataExecutor implements RequestExecutor {
         FIELDS.add(EC2_USER_DATA);
         FIELDS.add(EC2_INSTANCE_PROFILE);
         FIELDS.add(GO_AGENT_WORK_DIR);
+        FIELDS.add(EC2_WARM_POOL_SIZE);
+        FIELDS.add(EC2_WARM_POOL_IDLE_TTL);
+        FIELDS.add(EC2_REUSE_MAX_JOBS);
+        FIELDS.add(EC2_REUSE_IDLE_TTL);
+        FIELDS.add(EC2_SPOT);
+        FIELDS.add(EC2_LAUNCH_TEMPLATE);
+        FIELDS.add(EC2_PREBAKED);
+        FIELDS.add(EC2_TAGS);
     }
 
     @Override
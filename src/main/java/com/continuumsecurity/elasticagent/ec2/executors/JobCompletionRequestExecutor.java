@@ -44,6 +44,11 @@ public class JobCompletionRequestExecutor implements RequestExecutor {
         ClusterProfileProperties clusterProfileProperties = jobCompletionRequest.getClusterProfileProperties();
         String elasticAgentId = jobCompletionRequest.getElasticAgentId();
         Agent agent = new Agent(elasticAgentId);
+        if (agentInstances.release(elasticAgentId, jobCompletionRequest.getProperties())) {
+            LOG.info("[Job Completion] Keeping elastic agent with id {} for other jobs after job completion {} in cluster {}.", elasticAgentId, jobCompletionRequest.jobIdentifier(), clusterProfileProperties);
+            return DefaultGoPluginApiResponse.success("");
+        }
+
         LOG.info("[Job Completion] Terminating elastic agent with id {} on job completion {} in cluster {}.", agent.elasticAgentId(), jobCompletionRequest.jobIdentifier(), clusterProfileProperties);
         List<Agent> agents = Arrays.asList(agent);
         pluginRequest.disableAgents(agents);
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2.executors;
+
+import java.util.regex.Pattern;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+public class LaunchTemplateNameMetadata extends Metadata {
+    private static final Pattern LAUNCH_TEMPLATE_NAME = Pattern.compile("[a-zA-Z0-9().\\-/_]{3,128}");
+
+    public LaunchTemplateNameMetadata(String key, boolean required) {
+        super(key, required, false);
+    }
+
+    @Override
+    protected String doValidate(String input) {
+        if (isRequired() || !isBlank(input)) {
+            if (isBlank(input) || !LAUNCH_TEMPLATE_NAME.matcher(input).matches()) {
+                return this.getKey() + " must be 3 to 128 letters, digits or ( ) . - / _ characters.";
+            }
+        }
+        return null;
+    }
+}
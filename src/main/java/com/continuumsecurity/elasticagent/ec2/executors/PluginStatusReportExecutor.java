@@ -21,6 +21,7 @@ package com.continuumsecurity.elasticagent.ec2.executors;
 import com.continuumsecurity.elasticagent.ec2.AgentInstances;
 import com.continuumsecurity.elasticagent.ec2.ClusterProfileProperties;
 import com.continuumsecurity.elasticagent.ec2.Ec2AgentInstances;
+import com.continuumsecurity.elasticagent.ec2.Metrics;
 import com.continuumsecurity.elasticagent.ec2.RequestExecutor;
 import com.continuumsecurity.elasticagent.ec2.models.StatusReport;
 import com.continuumsecurity.elasticagent.ec2.requests.PluginStatusReportRequest;
@@ -31,6 +32,7 @@ import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -61,6 +63,10 @@ public class PluginStatusReportExecutor implements RequestExecutor {
             reports.add(viewBuilder.build(viewBuilder.getTemplate("status-report.template.ftlh"), statusReport));
         }
 
+        // the metrics of all clusters, in a form that can be scraped from the report
+        reports.add(viewBuilder.build(viewBuilder.getTemplate("metrics.template.ftlh"),
+                Collections.singletonMap("metrics", Metrics.render(allClusterInstances))));
+
         // aggregate reports for different cluster into one
         JsonObject responseJSON = new JsonObject();
         responseJSON.addProperty("view", reports.stream().collect(Collectors.joining("<hr/>")));
@@ -24,6 +24,11 @@ import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import static com.continuumsecurity.elasticagent.ec2.Ec2Plugin.LOG;
 
@@ -32,76 +37,178 @@ public class ServerPingRequestExecutor implements RequestExecutor {
     private final ServerPingRequest serverPingRequest;
     private final Map<String, Ec2AgentInstances> clusterSpecificAgentInstances;
     private final PluginRequest pluginRequest;
+    private final long cleanupTimeoutMillis;
 
     public ServerPingRequestExecutor(ServerPingRequest serverPingRequest, Map<String, Ec2AgentInstances> clusterSpecificAgentInstances, PluginRequest pluginRequest) {
+        this(serverPingRequest, clusterSpecificAgentInstances, pluginRequest, TimeUnit.SECONDS.toMillis(ClusterCleanupExecutor.CLEANUP_TIMEOUT_SECONDS));
+    }
+
+    ServerPingRequestExecutor(ServerPingRequest serverPingRequest, Map<String, Ec2AgentInstances> clusterSpecificAgentInstances, PluginRequest pluginRequest, long cleanupTimeoutMillis) {
         this.serverPingRequest = serverPingRequest;
         this.clusterSpecificAgentInstances = clusterSpecificAgentInstances;
         this.pluginRequest = pluginRequest;
+        this.cleanupTimeoutMillis = cleanupTimeoutMillis;
     }
 
     @Override
     public GoPluginApiResponse execute() throws Exception {
-        Set<Agent> possiblyMissingAgents = new HashSet<>();
         List<ClusterProfileProperties> allClusterProfileProperties = serverPingRequest.allClusterProfileProperties();
+        List<Ec2AgentInstances> allClusterInstances = new ArrayList<>();
+        for (ClusterProfileProperties clusterProfileProperties : allClusterProfileProperties) {
+            Ec2AgentInstances ec2AgentInstances = clusterSpecificAgentInstances.get(clusterProfileProperties.uuid());
+            if (ec2AgentInstances != null) {
+                allClusterInstances.add(ec2AgentInstances);
+            }
+        }
 
+        AgentSnapshot agents = AgentSnapshot.take(pluginRequest);
+        Map<ClusterProfileProperties, Future<?>> cleanups = new LinkedHashMap<>();
         for (ClusterProfileProperties clusterProfileProperties : allClusterProfileProperties) {
-            performCleanupForACluster(clusterProfileProperties, clusterSpecificAgentInstances.get(clusterProfileProperties.uuid()), possiblyMissingAgents);
+            Ec2AgentInstances ec2AgentInstances = clusterSpecificAgentInstances.get(clusterProfileProperties.uuid());
+            cleanups.put(clusterProfileProperties, ClusterCleanupExecutor.submit(clusterProfileProperties.uuid(), () -> {
+                performCleanupForACluster(clusterProfileProperties, ec2AgentInstances, agents, allClusterInstances);
+                return null;
+            }));
         }
 
-        refreshInstancesAgainToCheckForPossiblyMissingAgents(allClusterProfileProperties, possiblyMissingAgents);
+        if (awaitCleanups(cleanups)) {
+            checkForMissingAgents(allClusterProfileProperties, agents.withoutCluster(allClusterInstances), agents);
+        } else {
+            // an agent of a cluster that was not cleaned up may just not be known yet, so nothing is deleted as missing
+            LOG.warn("[Server Ping] Not all clusters were cleaned up, not checking for missing agents until the next ping");
+        }
+        LOG.info("[Server Ping] Made " + agents.serverApiCalls() + " requests to the server for " + allClusterProfileProperties.size() + " clusters");
         return DefaultGoPluginApiResponse.success("");
     }
 
-    private void performCleanupForACluster(ClusterProfileProperties clusterProfileProperties, Ec2AgentInstances ec2AgentInstances, Set<Agent> possiblyMissingAgents) throws Exception {
-        Agents allAgents = pluginRequest.listAgents();
+    /**
+     * @return <code>true</code> if the cleanups of all clusters completed
+     */
+    private boolean awaitCleanups(Map<ClusterProfileProperties, Future<?>> cleanups) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + cleanupTimeoutMillis;
+        boolean allCompleted = true;
+        for (Map.Entry<ClusterProfileProperties, Future<?>> cleanup : cleanups.entrySet()) {
+            String clusterId = cleanup.getKey().uuid();
+            Future<?> future = cleanup.getValue();
+            if (future == null) {
+                LOG.warn("[Server Ping] Skipping cleanup of cluster " + clusterId + ", its cleanup from an earlier ping is still running");
+                allCompleted = false;
+                continue;
+            }
 
-        for (Agent agent : allAgents.agents()) {
-            if (ec2AgentInstances.find(agent.elasticAgentId()) == null) {
-                possiblyMissingAgents.add(agent);
-            } else {
-                possiblyMissingAgents.remove(agent);
+            try {
+                future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                LOG.error("[Server Ping] Cleanup of cluster " + clusterId + " failed", e.getCause());
+                allCompleted = false;
+            } catch (TimeoutException e) {
+                LOG.warn("[Server Ping] Cleanup of cluster " + clusterId + " did not complete within " + cleanupTimeoutMillis + "ms, giving up on it");
+                ClusterCleanupExecutor.abandon(clusterId, future);
+                allCompleted = false;
             }
         }
+        return allCompleted;
+    }
+
+    private void performCleanupForACluster(ClusterProfileProperties clusterProfileProperties, Ec2AgentInstances ec2AgentInstances, AgentSnapshot agents, List<Ec2AgentInstances> allClusterInstances) throws Exception {
+        handleSpotInterruptions(clusterProfileProperties, ec2AgentInstances, agents, allClusterInstances);
+
+        Agents clusterAgents = agents.forCluster(ec2AgentInstances, allClusterInstances);
+        ec2AgentInstances.agentsListed(clusterAgents);
+
+        Agents agentsToDisable = ec2AgentInstances.instancesCreatedAfterTimeout(clusterProfileProperties, clusterAgents);
+        agents.disable(agentsToDisable.findInstancesToDisable());
 
-        Agents agentsToDisable = ec2AgentInstances.instancesCreatedAfterTimeout(clusterProfileProperties, allAgents);
-        disableIdleAgents(agentsToDisable);
+        clusterAgents = agents.forCluster(ec2AgentInstances, allClusterInstances);
+        terminateDisabledAgents(clusterAgents, clusterProfileProperties, ec2AgentInstances, agents);
 
-        allAgents = pluginRequest.listAgents();
-        terminateDisabledAgents(allAgents, clusterProfileProperties, ec2AgentInstances);
+        ec2AgentInstances.terminateUnregisteredInstances(clusterProfileProperties, agents.forCluster(ec2AgentInstances, allClusterInstances));
+        ec2AgentInstances.replenishWarmPool();
+    }
+
+    /**
+     * Disables the agents of interrupted spot instances, so that no further jobs are assigned to them. Their instances
+     * are forgotten, so the jobs they ran get a new agent when the server asks for one again.
+     */
+    private void handleSpotInterruptions(ClusterProfileProperties clusterProfileProperties, Ec2AgentInstances ec2AgentInstances, AgentSnapshot agents, List<Ec2AgentInstances> allClusterInstances) throws Exception {
+        Agents clusterAgents = agents.forCluster(ec2AgentInstances, allClusterInstances);
+        List<Ec2Instance> interrupted;
+        try {
+            interrupted = ec2AgentInstances.removeInterruptedSpotInstances(clusterProfileProperties);
+        } catch (Exception e) {
+            LOG.warn("[Server Ping] Could not check for interrupted spot instances of cluster " + clusterProfileProperties.uuid(), e);
+            return;
+        }
+        if (interrupted.isEmpty()) {
+            return;
+        }
 
-        ec2AgentInstances.terminateUnregisteredInstances(clusterProfileProperties, allAgents);
+        Set<String> interruptedIds = new HashSet<>();
+        for (Ec2Instance instance : interrupted) {
+            interruptedIds.add(instance.id());
+            LOG.warn("[Server Ping] Spot instance " + instance.id() + " is being interrupted by EC2");
+            if (instance.getJobIdentifier() != null) {
+                pluginRequest.appendToConsoleLog(instance.getJobIdentifier(), "Spot instance " + instance.id() + " is being interrupted by EC2, the job will be rescheduled on a new agent");
+            }
+        }
+        agents.disable(clusterAgents.agents().stream()
+                .filter(agent -> interruptedIds.contains(agent.elasticAgentId()))
+                .collect(Collectors.toList()));
     }
 
-    private void refreshInstancesAgainToCheckForPossiblyMissingAgents(List<ClusterProfileProperties> allClusterProfileProperties, Set<Agent> possiblyMissingAgents) throws Exception {
-        Ec2AgentInstances ec2AgentInstances = new Ec2AgentInstances();
+    private void checkForMissingAgents(List<ClusterProfileProperties> allClusterProfileProperties, Agents possiblyMissingAgents, AgentSnapshot agents) throws Exception {
+        Set<String> missingAgentIds = possiblyMissingAgents.agentIds();
+        if (missingAgentIds.isEmpty()) {
+            return;
+        }
+
+        // clusters with the same credentials and region see the same instances, so they are asked only once
+        List<ClusterProfileProperties> distinctAccounts = new ArrayList<>();
         for (ClusterProfileProperties clusterProfileProperties : allClusterProfileProperties) {
-            ec2AgentInstances.refreshAll(clusterProfileProperties);
+            if (distinctAccounts.stream().noneMatch(account -> Ec2ClientRegistry.instance().sharesClient(account, clusterProfileProperties))) {
+                distinctAccounts.add(clusterProfileProperties);
+            }
+        }
+
+        for (ClusterProfileProperties account : distinctAccounts) {
+            if (missingAgentIds.isEmpty()) {
+                break;
+            }
+            try {
+                missingAgentIds.removeAll(Ec2Instance.findExisting(missingAgentIds, account));
+            } catch (Exception e) {
+                LOG.warn("[Server Ping] Could not look up possibly missing agents in region " + account.getAwsRegion() + ", not checking for missing agents until the next ping", e);
+                return;
+            }
         }
 
         Agents missingAgents = new Agents();
-        for (Agent possiblyMissingAgent : possiblyMissingAgents) {
-            if (!ec2AgentInstances.hasInstance(possiblyMissingAgent.elasticAgentId())) {
+        for (Agent possiblyMissingAgent : possiblyMissingAgents.agents()) {
+            if (missingAgentIds.contains(possiblyMissingAgent.elasticAgentId())) {
                 LOG.warn("[Server Ping] Was expecting an instance " + possiblyMissingAgent.elasticAgentId() + ", but it was missing!");
                 missingAgents.add(possiblyMissingAgent);
             }
         }
 
-        pluginRequest.disableAgents(missingAgents.agents());
-        pluginRequest.deleteAgents(missingAgents.agents());
+        agents.disable(missingAgents.agents());
+        agents.delete(missingAgents.agents());
     }
 
-    private void disableIdleAgents(Agents agents) throws ServerRequestFailedException {
-        pluginRequest.disableAgents(agents.findInstancesToDisable());
-    }
-
-    private void terminateDisabledAgents(Agents agents, ClusterProfileProperties clusterProfileProperties, Ec2AgentInstances ec2AgentInstances) throws Exception {
-        Collection<Agent> toBeDeleted = agents.findInstancesToTerminate();
-
-        for (Agent agent : toBeDeleted) {
-            ec2AgentInstances.terminate(agent.elasticAgentId(), clusterProfileProperties);
+    private void terminateDisabledAgents(Agents clusterAgents, ClusterProfileProperties clusterProfileProperties, Ec2AgentInstances ec2AgentInstances, AgentSnapshot agents) throws Exception {
+        Collection<Agent> toBeTerminated = clusterAgents.findInstancesToTerminate();
+        if (toBeTerminated.isEmpty()) {
+            return;
         }
 
-        pluginRequest.deleteAgents(toBeDeleted);
+        Set<String> notTerminated = ec2AgentInstances.terminateAll(
+                toBeTerminated.stream().map(Agent::elasticAgentId).collect(Collectors.toList()),
+                clusterProfileProperties);
+
+        // agents whose instance is still running are retried on the next ping
+        List<Agent> toBeDeleted = toBeTerminated.stream()
+                .filter(agent -> !notTerminated.contains(agent.elasticAgentId()))
+                .collect(Collectors.toList());
+        agents.delete(toBeDeleted);
     }
 
 }
@@ -46,7 +46,13 @@ public class ShouldAssignWorkRequestExecutor implements RequestExecutor {
             return DefaultGoPluginApiResponse.success("false");
         }
 
-        if (instance.getJobIdentifier().equals(request.jobIdentifier())) {
+        if (request.jobIdentifier().equals(instance.getJobIdentifier())) {
+            agentInstances.workAssigned(instance, request.jobIdentifier());
+            return DefaultGoPluginApiResponse.success("true");
+        }
+
+        if (instance.getJobIdentifier() == null && agentInstances.assign(instance, request.jobIdentifier(), request.profileProperties(), request.getClusterProfileProperties())) {
+            agentInstances.workAssigned(instance, request.jobIdentifier());
             return DefaultGoPluginApiResponse.success("true");
         }
 
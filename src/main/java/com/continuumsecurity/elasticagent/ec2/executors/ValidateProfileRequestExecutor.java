@@ -19,6 +19,7 @@
 package com.continuumsecurity.elasticagent.ec2.executors;
 
 import com.continuumsecurity.elasticagent.ec2.RequestExecutor;
+import com.continuumsecurity.elasticagent.ec2.UserDataTemplates;
 import com.continuumsecurity.elasticagent.ec2.requests.ValidateProfileRequest;
 import com.google.gson.Gson;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
@@ -50,6 +51,14 @@ public class ValidateProfileRequestExecutor implements RequestExecutor {
             }
         }
 
+        String userDataSizeError = UserDataTemplates.validateSize(request.getProperties());
+        if (userDataSizeError != null) {
+            LinkedHashMap<String, String> validationError = new LinkedHashMap<>();
+            validationError.put("key", "ec2_user_data");
+            validationError.put("message", userDataSizeError);
+            result.add(validationError);
+        }
+
 
         Set<String> set = new HashSet<>(request.getProperties().keySet());
         set.removeAll(knownFields);
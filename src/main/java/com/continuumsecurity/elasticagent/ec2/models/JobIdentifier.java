@@ -57,6 +57,8 @@ public class JobIdentifier {
 
     private String representation;
 
+    private transient String key;
+
     public JobIdentifier(Long jobId) {
         this.jobId = jobId;
     }
@@ -109,6 +111,22 @@ public class JobIdentifier {
         return representation;
     }
 
+    /**
+     * @return a string that is equal for two job identifiers exactly when they are {@link #equals equal}, computed
+     * once so that it can be used as a cheap map key
+     */
+    public String key() {
+        if (key == null) {
+            StringBuilder builder = new StringBuilder(64);
+            for (Object field : new Object[]{jobId, pipelineName, pipelineCounter, pipelineLabel, stageName, stageCounter, jobName}) {
+                // NUL does not appear in GoCD names, and SOH marks a missing field so that it differs from "null"
+                builder.append(field == null ? "\001" : field.toString()).append('\0');
+            }
+            key = builder.toString();
+        }
+        return key;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2.models;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * Percentiles of the time jobs of one elastic profile spent in one stage of getting an agent, in seconds.
+ */
+public class JobLatencyReport {
+
+    @Expose
+    private final String profile;
+    @Expose
+    private final String stage;
+    @Expose
+    private final int jobs;
+    @Expose
+    private final long p50;
+    @Expose
+    private final long p95;
+    @Expose
+    private final long p99;
+
+    public JobLatencyReport(String profile, String stage, int jobs, long p50, long p95, long p99) {
+        this.profile = profile;
+        this.stage = stage;
+        this.jobs = jobs;
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public int getJobs() {
+        return jobs;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP95() {
+        return p95;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+}
@@ -20,6 +20,7 @@ package com.continuumsecurity.elasticagent.ec2.models;
 
 import com.google.gson.annotations.Expose;
 
+import java.util.Collections;
 import java.util.List;
 
 import com.continuumsecurity.elasticagent.ec2.Constants;
@@ -30,11 +31,18 @@ public class StatusReport {
     private final int numberInstances;
     @Expose
     private final List<InstanceStatusReport> instanceStatusReportList;
+    @Expose
+    private final List<JobLatencyReport> jobLatencyReportList;
     private final String pluginId;
 
     public StatusReport(int numberInstances, List<InstanceStatusReport> instanceStatusReportList) {
+        this(numberInstances, instanceStatusReportList, Collections.emptyList());
+    }
+
+    public StatusReport(int numberInstances, List<InstanceStatusReport> instanceStatusReportList, List<JobLatencyReport> jobLatencyReportList) {
         this.numberInstances = numberInstances;
         this.instanceStatusReportList = instanceStatusReportList;
+        this.jobLatencyReportList = jobLatencyReportList;
         this.pluginId = Constants.PLUGIN_ID;
     }
 
@@ -46,6 +54,10 @@ public class StatusReport {
         return instanceStatusReportList;
     }
 
+    public List<JobLatencyReport> getJobLatencyReportList() {
+        return jobLatencyReportList;
+    }
+
     public String getPluginId() {
         return pluginId;
     }
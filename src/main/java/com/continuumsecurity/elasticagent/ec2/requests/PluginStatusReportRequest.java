@@ -18,19 +18,67 @@
 
 package com.continuumsecurity.elasticagent.ec2.requests;
 
+import com.continuumsecurity.elasticagent.ec2.ClusterProfileProperties;
 import com.continuumsecurity.elasticagent.ec2.Ec2AgentInstances;
 import com.continuumsecurity.elasticagent.ec2.RequestExecutor;
 import com.continuumsecurity.elasticagent.ec2.executors.PluginStatusReportExecutor;
 import com.continuumsecurity.elasticagent.ec2.views.ViewBuilder;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+
+public class PluginStatusReportRequest {
+    private static final Gson GSON = new GsonBuilder().excludeFieldsWithoutExposeAnnotation()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .create();
+
+    @Expose
+    @SerializedName("all_cluster_profiles_properties")
+    private List<ClusterProfileProperties> allClusterProfileProperties;
+
+    public PluginStatusReportRequest() {
+    }
+
+    public PluginStatusReportRequest(List<ClusterProfileProperties> allClusterProfileProperties) {
+        this.allClusterProfileProperties = allClusterProfileProperties;
+    }
 
-public class PluginStatusReportRequest extends ServerPingRequest {
     public static PluginStatusReportRequest fromJSON(String json) {
-        return (PluginStatusReportRequest) ServerPingRequest.fromJSON(json);
+        return GSON.fromJson(json, PluginStatusReportRequest.class);
+    }
+
+    public List<ClusterProfileProperties> allClusterProfileProperties() {
+        return allClusterProfileProperties == null ? Collections.emptyList() : allClusterProfileProperties;
     }
 
     public RequestExecutor executor(Map<String, Ec2AgentInstances> clusterSpecificAgentInstances, ViewBuilder instance) {
         return new PluginStatusReportExecutor(this, clusterSpecificAgentInstances, instance);
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PluginStatusReportRequest that = (PluginStatusReportRequest) o;
+        return Objects.equals(allClusterProfileProperties, that.allClusterProfileProperties);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(allClusterProfileProperties);
+    }
+
+    @Override
+    public String toString() {
+        return "PluginStatusReportRequest{" +
+                "allClusterProfileProperties=" + allClusterProfileProperties +
+                '}';
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.google.common.base.Ticker;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+
+public class AdaptiveTokenBucketTest {
+    private FakeTicker ticker;
+    private AdaptiveTokenBucket bucket;
+
+    @BeforeEach
+    public void setUp() {
+        ticker = new FakeTicker();
+        bucket = new AdaptiveTokenBucket(2, 10, ticker);
+    }
+
+    @Test
+    public void shouldHandOutTheBurstWithoutWaiting() {
+        assertThat(bucket.reserve(), is(0L));
+        assertThat(bucket.reserve(), is(0L));
+    }
+
+    @Test
+    public void shouldMakeCallersWaitForTokensOnceTheBucketIsEmpty() {
+        bucket.reserve();
+        bucket.reserve();
+
+        assertThat(bucket.reserve(), is(TimeUnit.MILLISECONDS.toNanos(100)));
+        assertThat(bucket.reserve(), is(TimeUnit.MILLISECONDS.toNanos(200)));
+
+        // the waiting callers have taken the tokens refilled meanwhile
+        ticker.advance(TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(bucket.reserve(), is(TimeUnit.MILLISECONDS.toNanos(100)));
+    }
+
+    @Test
+    public void shouldNotHandOutTokensThatCallersWouldWaitTooLongFor() {
+        AdaptiveTokenBucket slowBucket = new AdaptiveTokenBucket(1, 1, ticker);
+        long maxWaitSeconds = TimeUnit.NANOSECONDS.toSeconds(AdaptiveTokenBucket.MAX_WAIT_NANOS);
+        for (int i = 0; i <= maxWaitSeconds; i++) {
+            assertThat(slowBucket.reserve(), is(TimeUnit.SECONDS.toNanos(i)));
+        }
+
+        // the debt does not grow any further
+        assertThat(slowBucket.reserve(), is(-1L));
+        assertThat(slowBucket.reserve(), is(-1L));
+
+        ticker.advance(TimeUnit.SECONDS.toNanos(1));
+        assertThat(slowBucket.reserve(), is(AdaptiveTokenBucket.MAX_WAIT_NANOS));
+    }
+
+    @Test
+    public void shouldHalveTheRateAtMostOncePerIntervalWhenThrottled() {
+        bucket.throttled();
+        bucket.throttled();
+        assertThat(bucket.rate(), closeTo(5, 0.001));
+        assertThat(bucket.throttles(), is(2L));
+
+        ticker.advance(AdaptiveTokenBucket.DECREASE_INTERVAL_NANOS);
+        bucket.throttled();
+        assertThat(bucket.rate(), closeTo(2.5, 0.001));
+    }
+
+    @Test
+    public void shouldNotSlowDownBelowTheMinimumRate() {
+        for (int i = 0; i < 10; i++) {
+            bucket.throttled();
+            ticker.advance(AdaptiveTokenBucket.DECREASE_INTERVAL_NANOS);
+        }
+
+        assertThat(bucket.rate(), closeTo(AdaptiveTokenBucket.MIN_RATE, 0.001));
+    }
+
+    @Test
+    public void shouldRecoverTheRateAdditivelyUpToTheConfiguredRate() {
+        bucket.throttled();
+
+        for (int i = 0; i < 10; i++) {
+            bucket.succeeded();
+        }
+        assertThat(bucket.rate(), closeTo(6, 0.001));
+
+        for (int i = 0; i < 100; i++) {
+            bucket.succeeded();
+        }
+        assertThat(bucket.rate(), closeTo(10, 0.001));
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long nanos) {
+            this.nanos += nanos;
+        }
+    }
+}
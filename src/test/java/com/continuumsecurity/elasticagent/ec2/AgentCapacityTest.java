@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class AgentCapacityTest {
+
+    @Test
+    public void shouldNotReserveMoreSlotsThanAllowed() {
+        AgentCapacity capacity = new AgentCapacity();
+
+        assertThat(capacity.tryReserve(2), is(true));
+        assertThat(capacity.tryReserve(2), is(true));
+        assertThat(capacity.tryReserve(2), is(false));
+        assertThat(capacity.used(), is(2));
+        assertThat(capacity.pending(), is(2));
+    }
+
+    @Test
+    public void shouldKeepCommittedSlotsAndFreeRolledBackOnes() {
+        AgentCapacity capacity = new AgentCapacity();
+        capacity.tryReserve(2);
+        capacity.tryReserve(2);
+
+        capacity.commit();
+        capacity.rollback();
+
+        assertThat(capacity.used(), is(1));
+        assertThat(capacity.pending(), is(0));
+        assertThat(capacity.tryReserve(2), is(true));
+    }
+
+    @Test
+    public void shouldCountOccupiedSlotsAgainstTheLimitUntilReleased() {
+        AgentCapacity capacity = new AgentCapacity();
+        capacity.occupy();
+        capacity.occupy();
+        capacity.occupy();
+
+        assertThat(capacity.tryReserve(2), is(false));
+
+        capacity.release(2);
+        assertThat(capacity.tryReserve(2), is(true));
+        assertThat(capacity.used(), is(2));
+    }
+
+    @Test
+    public void shouldReserveExactlyUpToTheLimitUnderContention() throws Exception {
+        AgentCapacity capacity = new AgentCapacity();
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger reserved = new AtomicInteger();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int attempt = 0; attempt < 1000; attempt++) {
+                    if (capacity.tryReserve(100)) {
+                        reserved.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertThat(reserved.get(), is(100));
+        assertThat(capacity.used(), is(100));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.http.SdkHttpFullResponse;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.RunInstancesRequest;
+
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.*;
+
+public class ApiSchedulerTest {
+    private AdaptiveTokenBucket describeCalls;
+    private AdaptiveTokenBucket mutatingCalls;
+    private ApiScheduler scheduler;
+
+    @BeforeEach
+    public void setUp() {
+        describeCalls = mock(AdaptiveTokenBucket.class);
+        mutatingCalls = mock(AdaptiveTokenBucket.class);
+        scheduler = new ApiScheduler("eu-west-1/key", describeCalls, mutatingCalls);
+    }
+
+    @Test
+    public void shouldTakeATokenFromTheBucketOfTheCall() throws Exception {
+        scheduler.beforeTransmission(beforeTransmission(DescribeInstancesRequest.builder().build()), new ExecutionAttributes());
+        verify(describeCalls).acquire();
+        verifyZeroInteractions(mutatingCalls);
+
+        scheduler.beforeTransmission(beforeTransmission(RunInstancesRequest.builder().build()), new ExecutionAttributes());
+        verify(mutatingCalls).acquire();
+    }
+
+    @Test
+    public void shouldFailFastWhenTheCallWouldWaitTooLongForItsToken() throws Exception {
+        doThrow(new TimeoutException()).when(mutatingCalls).acquire();
+
+        ApiScheduler.QueueTimeoutException e = assertThrows(ApiScheduler.QueueTimeoutException.class,
+                () -> scheduler.beforeTransmission(beforeTransmission(RunInstancesRequest.builder().build()), new ExecutionAttributes()));
+
+        assertThat(ApiScheduler.isThrottling(e), is(true));
+    }
+
+    @Test
+    public void shouldSlowDownTheBucketOfAThrottledCall() {
+        scheduler.afterTransmission(afterTransmission(RunInstancesRequest.builder().build(), 503), new ExecutionAttributes());
+
+        verify(mutatingCalls).throttled();
+        verify(mutatingCalls, never()).succeeded();
+        verifyZeroInteractions(describeCalls);
+    }
+
+    @Test
+    public void shouldSpeedUpTheBucketOfASuccessfulCall() {
+        scheduler.afterTransmission(afterTransmission(DescribeInstancesRequest.builder().build(), 200), new ExecutionAttributes());
+        scheduler.afterTransmission(afterTransmission(DescribeInstancesRequest.builder().build(), 400), new ExecutionAttributes());
+
+        verify(describeCalls, times(1)).succeeded();
+        verify(describeCalls, never()).throttled();
+    }
+
+    @Test
+    public void shouldRecogniseRequestLimitExceededAsThrottling() {
+        Ec2Exception throttled = (Ec2Exception) Ec2Exception.builder()
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("RequestLimitExceeded").build())
+                .statusCode(503)
+                .build();
+        Ec2Exception noCapacity = (Ec2Exception) Ec2Exception.builder()
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("InsufficientInstanceCapacity").build())
+                .statusCode(500)
+                .build();
+
+        assertThat(ApiScheduler.isThrottling(throttled), is(true));
+        assertThat(ApiScheduler.isThrottling(noCapacity), is(false));
+    }
+
+    private Context.BeforeTransmission beforeTransmission(SdkRequest request) {
+        Context.BeforeTransmission context = mock(Context.BeforeTransmission.class);
+        when(context.request()).thenReturn(request);
+        return context;
+    }
+
+    private Context.AfterTransmission afterTransmission(SdkRequest request, int status) {
+        Context.AfterTransmission context = mock(Context.AfterTransmission.class);
+        when(context.request()).thenReturn(request);
+        when(context.httpResponse()).thenReturn(SdkHttpFullResponse.builder().statusCode(status).build());
+        return context;
+    }
+}
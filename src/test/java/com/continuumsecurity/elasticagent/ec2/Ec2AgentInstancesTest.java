@@ -0,0 +1,697 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import com.continuumsecurity.elasticagent.ec2.models.StatusReport;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import com.continuumsecurity.elasticagent.ec2.requests.CreateAgentRequest;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.*;
+import software.amazon.awssdk.services.ec2.paginators.DescribeInstancesIterable;
+import software.amazon.awssdk.services.ec2.paginators.DescribeSpotInstanceRequestsIterable;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class Ec2AgentInstancesTest {
+    private static final List<String> SPOT_INSTANCES = Arrays.asList("i-2", "i-4");
+
+    private ClusterProfileProperties clusterProfileProperties;
+    private ClusterProfileProperties singleAgentClusterProfileProperties;
+    private Ec2Client ec2;
+    private File journalDirectory;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        journalDirectory = Files.createTempDirectory("journal").toFile();
+        clusterProfileProperties = new ClusterProfileProperties();
+        clusterProfileProperties.setGoServerUrl(Properties.SERVER_URL);
+        clusterProfileProperties.setMaxElasticAgents("10");
+        clusterProfileProperties.setAwsRegion("eu-west-1");
+        clusterProfileProperties.setDescribePageSize("2");
+
+        ec2 = mock(Ec2Client.class);
+        when(ec2.describeInstancesPaginator(any(DescribeInstancesRequest.class)))
+                .thenAnswer(invocation -> new DescribeInstancesIterable(ec2, invocation.getArgument(0)));
+        when(ec2.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(invocation -> {
+            DescribeInstancesRequest request = invocation.getArgument(0);
+            if (request.nextToken() == null) {
+                return page("page-2", "i-1", "i-2");
+            }
+            if (request.nextToken().equals("page-2")) {
+                return page("page-3", "i-3", "i-4");
+            }
+            return page(null, "i-5");
+        });
+        when(ec2.describeSubnets(any(DescribeSubnetsRequest.class))).thenAnswer(invocation -> {
+            DescribeSubnetsRequest request = invocation.getArgument(0);
+            List<Subnet> subnets = new ArrayList<>();
+            for (String subnetId : request.subnetIds()) {
+                subnets.add(Subnet.builder().subnetId(subnetId).availableIpAddressCount(100).build());
+            }
+            return DescribeSubnetsResponse.builder().subnets(subnets).build();
+        });
+        Ec2ClientRegistry.instance().register(clusterProfileProperties, ec2);
+
+        singleAgentClusterProfileProperties = new ClusterProfileProperties();
+        singleAgentClusterProfileProperties.setGoServerUrl(Properties.SERVER_URL);
+        singleAgentClusterProfileProperties.setMaxElasticAgents("1");
+        singleAgentClusterProfileProperties.setAwsRegion("eu-west-1");
+        Ec2ClientRegistry.instance().register(singleAgentClusterProfileProperties, ec2);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        NoCapacityCache.instance().clear();
+        Ec2ClientRegistry.instance().evict(clusterProfileProperties);
+        Ec2ClientRegistry.instance().evict(singleAgentClusterProfileProperties);
+        FileUtils.deleteDirectory(journalDirectory);
+    }
+
+    @Test
+    public void shouldRefreshInstancesFromAllPages() throws Exception {
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+
+        agentInstances.refreshAll(clusterProfileProperties);
+
+        for (String instanceId : new String[]{"i-1", "i-2", "i-3", "i-4", "i-5"}) {
+            assertThat(agentInstances.hasInstance(instanceId), is(true));
+        }
+
+        ArgumentCaptor<DescribeInstancesRequest> requests = ArgumentCaptor.forClass(DescribeInstancesRequest.class);
+        verify(ec2, times(3)).describeInstances(requests.capture());
+        List<Integer> pageSizes = new ArrayList<>();
+        for (DescribeInstancesRequest request : requests.getAllValues()) {
+            pageSizes.add(request.maxResults());
+        }
+        assertThat(pageSizes, everyItem(is(5)));
+    }
+
+    @Test
+    public void shouldReportInstancesFromAllPages() throws Exception {
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+
+        StatusReport statusReport = agentInstances.getStatusReport(clusterProfileProperties);
+
+        assertThat(statusReport.getNumberInstances(), is(5));
+        assertThat(statusReport.getInstanceStatusReportList().size(), is(5));
+    }
+
+    @Test
+    public void shouldFindInstancesByTheJobTheyRun() throws Exception {
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        agentInstances.refreshAll(clusterProfileProperties);
+
+        // a copy, as decoded from a request
+        JobIdentifier jobIdentifier = JobIdentifier.fromJson(jobIdentifier("i-3").toJson());
+
+        assertThat(agentInstances.find(jobIdentifier).id(), is("i-3"));
+        assertThat(agentInstances.find(jobIdentifier("i-6")), is(nullValue()));
+    }
+
+    @Test
+    public void shouldNotFindTerminatedInstancesByTheirJob() throws Exception {
+        when(ec2.terminateInstances(any(TerminateInstancesRequest.class))).thenReturn(TerminateInstancesResponse.builder()
+                .terminatingInstances(InstanceStateChange.builder().instanceId("i-3").build())
+                .build());
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        agentInstances.refreshAll(clusterProfileProperties);
+
+        agentInstances.terminateAll(Collections.singletonList("i-3"), clusterProfileProperties);
+
+        assertThat(agentInstances.find(jobIdentifier("i-3")), is(nullValue()));
+        assertThat(agentInstances.find(jobIdentifier("i-4")).id(), is("i-4"));
+    }
+
+    @Test
+    public void shouldNotFindAgentsKeptForReuseByTheirCompletedJob() throws Exception {
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        agentInstances.refreshAll(clusterProfileProperties);
+        Map<String, String> profileProperties = new HashMap<>();
+        profileProperties.put(WarmPool.REUSE_MAX_JOBS_PROPERTY, "3");
+
+        assertThat(agentInstances.release("i-3", profileProperties), is(true));
+
+        assertThat(agentInstances.find(jobIdentifier("i-3")), is(nullValue()));
+    }
+
+    @Test
+    public void shouldNotAssignAGivenBackAgentThatWasAssignedMeanwhile() throws Exception {
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        agentInstances.refreshAll(clusterProfileProperties);
+        Map<String, String> profileProperties = new HashMap<>();
+        profileProperties.put(WarmPool.REUSE_MAX_JOBS_PROPERTY, "3");
+        assertThat(agentInstances.release("i-3", profileProperties), is(true));
+        Ec2Instance agent = agentInstances.find("i-3");
+        agent.assignTo(jobIdentifier("i-6"), new DateTime());
+
+        assertThat(agentInstances.assign(agent, jobIdentifier("i-7"), profileProperties, clusterProfileProperties), is(false));
+
+        assertThat(agentInstances.isWarm("i-3"), is(true));
+        assertThat(agentInstances.find(jobIdentifier("i-7")), is(nullValue()));
+        verify(ec2, never()).createTags(any(CreateTagsRequest.class));
+    }
+
+    @Test
+    public void shouldLookUpOnlyTheGivenInstancesInChunks() {
+        when(ec2.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(invocation -> {
+            DescribeInstancesRequest request = invocation.getArgument(0);
+            List<String> existing = new ArrayList<>();
+            for (Filter filter : request.filters()) {
+                if (filter.name().equals("instance-id")) {
+                    filter.values().stream().filter(id -> !id.startsWith("i-gone")).forEach(existing::add);
+                }
+            }
+            return page(null, existing.toArray(new String[0]));
+        });
+        List<String> instanceIds = new ArrayList<>();
+        for (int i = 0; i < 240; i++) {
+            instanceIds.add("i-" + i);
+        }
+        instanceIds.add("i-gone-1");
+        instanceIds.add("i-gone-2");
+
+        Set<String> existing = Ec2Instance.findExisting(instanceIds, clusterProfileProperties);
+
+        assertThat(existing.size(), is(240));
+        assertThat(existing.contains("i-gone-1"), is(false));
+        ArgumentCaptor<DescribeInstancesRequest> requests = ArgumentCaptor.forClass(DescribeInstancesRequest.class);
+        verify(ec2, times(2)).describeInstances(requests.capture());
+        for (DescribeInstancesRequest request : requests.getAllValues()) {
+            assertThat(request.filters().stream().anyMatch(filter -> filter.name().equals("tag:type")), is(true));
+        }
+    }
+
+    @Test
+    public void shouldRestoreJournaledInstancesThatStillExist() throws Exception {
+        Map<String, String> profileProperties = new HashMap<>();
+        profileProperties.put("ec2_ami", "ami-123");
+        profileProperties.put("ec2_user_data", "echo hello");
+        InstanceJournal journal = new InstanceJournal(journalDirectory, clusterProfileProperties.uuid());
+        journal.replay();
+        journal.launched(Arrays.asList(
+                new Ec2Instance("i-1", new Date(), profileProperties, jobIdentifier("i-1")),
+                new Ec2Instance("i-gone", new Date(), profileProperties, jobIdentifier("i-gone"))));
+        journal.close();
+        when(ec2.describeInstances(any(DescribeInstancesRequest.class))).thenReturn(page(null, "i-1"));
+
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        agentInstances.refreshAll(clusterProfileProperties);
+
+        assertThat(agentInstances.find("i-1").properties().get("ec2_user_data"), is("echo hello"));
+        assertThat(agentInstances.find(jobIdentifier("i-1")).id(), is("i-1"));
+        assertThat(agentInstances.hasInstance("i-gone"), is(false));
+        assertThat(agentInstances.capacity().used(), is(1));
+
+        ArgumentCaptor<DescribeInstancesRequest> requests = ArgumentCaptor.forClass(DescribeInstancesRequest.class);
+        verify(ec2, atLeastOnce()).describeInstances(requests.capture());
+        assertThat(requests.getAllValues().get(0).filters().stream().anyMatch(filter -> filter.name().equals("instance-id")), is(true));
+    }
+
+    @Test
+    public void shouldJournalRefreshedAndTerminatedInstances() throws Exception {
+        when(ec2.terminateInstances(any(TerminateInstancesRequest.class))).thenReturn(TerminateInstancesResponse.builder()
+                .terminatingInstances(InstanceStateChange.builder().instanceId("i-3").build())
+                .build());
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        agentInstances.refreshAll(clusterProfileProperties);
+
+        agentInstances.terminateAll(Collections.singletonList("i-3"), clusterProfileProperties);
+
+        List<String> journaled = new ArrayList<>();
+        for (Ec2Instance instance : new InstanceJournal(journalDirectory, clusterProfileProperties.uuid()).replay()) {
+            journaled.add(instance.id());
+        }
+        assertThat(journaled, contains("i-1", "i-2", "i-4", "i-5"));
+    }
+
+    @Test
+    public void shouldRemoveInterruptedSpotInstances() throws Exception {
+        when(ec2.describeSpotInstanceRequestsPaginator(any(DescribeSpotInstanceRequestsRequest.class)))
+                .thenAnswer(invocation -> new DescribeSpotInstanceRequestsIterable(ec2, invocation.getArgument(0)));
+        when(ec2.describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class))).thenReturn(DescribeSpotInstanceRequestsResponse.builder()
+                .spotInstanceRequests(
+                        SpotInstanceRequest.builder().instanceId("i-2").status(SpotInstanceStatus.builder().code("marked-for-termination").build()).build(),
+                        SpotInstanceRequest.builder().instanceId("i-4").status(SpotInstanceStatus.builder().code("fulfilled").build()).build())
+                .build());
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        agentInstances.refreshAll(clusterProfileProperties);
+
+        List<Ec2Instance> interrupted = agentInstances.removeInterruptedSpotInstances(clusterProfileProperties);
+
+        assertThat(interrupted.size(), is(1));
+        assertThat(interrupted.get(0).getJobIdentifier(), is(jobIdentifier("i-2")));
+        assertThat(agentInstances.hasInstance("i-2"), is(false));
+        assertThat(agentInstances.find(jobIdentifier("i-2")), is(nullValue()));
+        assertThat(agentInstances.hasInstance("i-4"), is(true));
+
+        // only the spot instances are looked up
+        ArgumentCaptor<DescribeSpotInstanceRequestsRequest> request = ArgumentCaptor.forClass(DescribeSpotInstanceRequestsRequest.class);
+        verify(ec2).describeSpotInstanceRequests(request.capture());
+        assertThat(request.getValue().filters().get(0).values(), containsInAnyOrder("i-2", "i-4"));
+    }
+
+    @Test
+    public void shouldFallBackToOnDemandWhenThereIsNoSpotCapacity() {
+        List<RunInstancesRequest> launches = new ArrayList<>();
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            RunInstancesRequest request = invocation.getArgument(0);
+            launches.add(request);
+            if (request.instanceMarketOptions() != null) {
+                throw Ec2Exception.builder()
+                        .awsErrorDetails(AwsErrorDetails.builder().errorCode("InsufficientInstanceCapacity").build())
+                        .build();
+            }
+            return RunInstancesResponse.builder()
+                    .instances(Instance.builder().instanceId("i-6").subnetId(request.subnetId()).launchTime(Instant.now()).build())
+                    .build();
+        });
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", "t2.micro");
+        properties.put("ec2_sg", "sg-1");
+        properties.put("ec2_subnets", "subnet-1,subnet-2");
+        properties.put("ec2_spot", "true");
+        CreateAgentRequest request = new CreateAgentRequest("key", null, properties, jobIdentifier("i-6"), new HashMap<>());
+
+        Ec2Instance instance = Ec2Instance.create(request, clusterProfileProperties, text -> {
+        });
+
+        assertThat(instance.id(), is("i-6"));
+        assertThat(launches.size(), is(3));
+        assertThat(launches.get(0).instanceMarketOptions().marketType(), is(MarketType.SPOT));
+        assertThat(launches.get(1).instanceMarketOptions().marketType(), is(MarketType.SPOT));
+        assertThat(launches.get(2).instanceMarketOptions(), is(nullValue()));
+    }
+
+    @Test
+    public void shouldFallBackToTheNextInstanceTypeWhenThereIsNoCapacity() {
+        List<RunInstancesRequest> launches = new ArrayList<>();
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            RunInstancesRequest request = invocation.getArgument(0);
+            launches.add(request);
+            if (request.instanceTypeAsString().equals("m5.large")) {
+                throw Ec2Exception.builder()
+                        .awsErrorDetails(AwsErrorDetails.builder().errorCode("InsufficientInstanceCapacity").build())
+                        .build();
+            }
+            return RunInstancesResponse.builder()
+                    .instances(Instance.builder().instanceId("i-6").subnetId(request.subnetId()).launchTime(Instant.now()).build())
+                    .build();
+        });
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", "m5.large,m5a.large");
+        properties.put("ec2_sg", "sg-1");
+        properties.put("ec2_subnets", "subnet-1");
+        CreateAgentRequest request = new CreateAgentRequest("key", null, properties, jobIdentifier("i-6"), new HashMap<>());
+        List<String> consoleLog = new ArrayList<>();
+
+        Ec2Instance.create(request, clusterProfileProperties, consoleLog::add);
+        Ec2Instance.create(request, clusterProfileProperties, consoleLog::add);
+
+        // the second launch skips the type that had no capacity
+        assertThat(launches.stream().map(RunInstancesRequest::instanceTypeAsString).collect(Collectors.toList()),
+                contains("m5.large", "m5a.large", "m5a.large"));
+        assertThat(consoleLog.get(consoleLog.size() - 1), is("Successfully created new instance i-6 (m5a.large in subnet-1)"));
+    }
+
+    @Test
+    public void shouldHoldCapacityWhileLaunchingAndRollItBackWhenTheLaunchFails() throws Exception {
+        CountDownLatch launching = new CountDownLatch(1);
+        CountDownLatch failLaunch = new CountDownLatch(1);
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            launching.countDown();
+            failLaunch.await();
+            throw Ec2Exception.builder()
+                    .awsErrorDetails(AwsErrorDetails.builder().errorCode("Unsupported").build())
+                    .build();
+        });
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+
+        Future<Ec2Instance> launch = agentInstances.createAsync(createAgentRequest("i-6", singleAgentClusterProfileProperties), pluginRequest, text -> {
+        });
+        assertThat(launching.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(agentInstances.capacity().used(), is(1));
+        assertThat(agentInstances.capacity().pending(), is(1));
+
+        // the launch in progress holds the only slot of the cluster
+        Future<Ec2Instance> rejected = agentInstances.createAsync(createAgentRequest("i-7", singleAgentClusterProfileProperties), pluginRequest, text -> {
+        });
+        assertThat(rejected.isDone(), is(true));
+        assertThat(rejected.get(), is(nullValue()));
+        verify(pluginRequest).addServerHealthMessage(argThat(messages -> messages.size() == 1 && messages.get(0).get("message").contains("maximum permissible limit")));
+
+        failLaunch.countDown();
+        assertThat(launch.get(10, TimeUnit.SECONDS), is(nullValue()));
+        assertThat(agentInstances.capacity().used(), is(0));
+        assertThat(agentInstances.capacity().pending(), is(0));
+    }
+
+    @Test
+    public void shouldNotLaunchASecondAgentForAJobThatIsBeingLaunched() throws Exception {
+        CountDownLatch launching = new CountDownLatch(1);
+        CountDownLatch finishLaunch = new CountDownLatch(1);
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            launching.countDown();
+            finishLaunch.await();
+            return launched("i-6");
+        });
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+
+        Future<Ec2Instance> launch = agentInstances.createAsync(createAgentRequest("i-6", clusterProfileProperties), pluginRequest, text -> {
+        });
+        assertThat(launching.await(10, TimeUnit.SECONDS), is(true));
+
+        List<String> consoleLog = new CopyOnWriteArrayList<>();
+        Future<Ec2Instance> duplicate = agentInstances.createAsync(createAgentRequest("i-6", clusterProfileProperties), pluginRequest, consoleLog::add);
+        assertThat(duplicate.isDone(), is(true));
+        assertThat(duplicate.get(), is(nullValue()));
+        assertThat(consoleLog, hasItem(startsWith("Agent not created as an ec2-agent is already being launched for the job")));
+
+        finishLaunch.countDown();
+        assertThat(launch.get(10, TimeUnit.SECONDS).id(), is("i-6"));
+        verify(ec2, times(1)).runInstances(any(RunInstancesRequest.class));
+        assertThat(agentInstances.capacity().used(), is(1));
+        assertThat(agentInstances.capacity().pending(), is(0));
+    }
+
+    @Test
+    public void shouldReleaseTheReservationWhenTheLaunchQueueIsFull() throws Exception {
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenReturn(launched("i-6"));
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        List<String> consoleLog = new CopyOnWriteArrayList<>();
+
+        CountDownLatch queueFull = new CountDownLatch(1);
+        try {
+            while (true) {
+                try {
+                    LaunchExecutor.instance().execute(() -> {
+                        try {
+                            queueFull.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+
+            Future<Ec2Instance> rejected = agentInstances.createAsync(createAgentRequest("i-6", clusterProfileProperties), pluginRequest, consoleLog::add);
+
+            assertThat(rejected.get(), is(nullValue()));
+            assertThat(consoleLog, hasItem(startsWith("Too many instances are being launched already.")));
+            assertThat(agentInstances.capacity().used(), is(0));
+            assertThat(agentInstances.capacity().pending(), is(0));
+        } finally {
+            queueFull.countDown();
+        }
+
+        // the job is not considered to be launching anymore
+        Future<Ec2Instance> retried = agentInstances.createAsync(createAgentRequest("i-6", clusterProfileProperties), pluginRequest, consoleLog::add);
+        assertThat(retried.get(10, TimeUnit.SECONDS).id(), is("i-6"));
+    }
+
+    @Test
+    public void shouldForgetTheJobWhenItsLaunchFails() throws Exception {
+        when(ec2.runInstances(any(RunInstancesRequest.class)))
+                .thenThrow(new IllegalStateException("boom"))
+                .thenReturn(launched("i-6"));
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        List<String> consoleLog = new CopyOnWriteArrayList<>();
+
+        Future<Ec2Instance> failed = agentInstances.createAsync(createAgentRequest("i-6", clusterProfileProperties), pluginRequest, consoleLog::add);
+
+        ExecutionException thrown = assertThrows(ExecutionException.class, () -> failed.get(10, TimeUnit.SECONDS));
+        assertThat(thrown.getCause(), is(instanceOf(IllegalStateException.class)));
+        assertThat(consoleLog, hasItem("Failed while creating instance: boom"));
+        assertThat(agentInstances.capacity().used(), is(0));
+        assertThat(agentInstances.capacity().pending(), is(0));
+
+        Future<Ec2Instance> retried = agentInstances.createAsync(createAgentRequest("i-6", clusterProfileProperties), pluginRequest, consoleLog::add);
+        assertThat(retried.get(10, TimeUnit.SECONDS).id(), is("i-6"));
+        verify(ec2, times(2)).runInstances(any(RunInstancesRequest.class));
+    }
+
+    @Test
+    public void shouldTagVolumesAndNetworkInterfacesWithTheSameTagsOnEveryAttempt() {
+        List<RunInstancesRequest> launches = new ArrayList<>();
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            RunInstancesRequest request = invocation.getArgument(0);
+            launches.add(request);
+            if (launches.size() == 1) {
+                throw Ec2Exception.builder()
+                        .awsErrorDetails(AwsErrorDetails.builder().errorCode("InsufficientInstanceCapacity").build())
+                        .build();
+            }
+            return RunInstancesResponse.builder()
+                    .instances(Instance.builder().instanceId("i-6").subnetId(request.subnetId()).launchTime(Instant.now()).build())
+                    .build();
+        });
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", "c5.large,c5a.large");
+        properties.put("ec2_sg", "sg-1");
+        properties.put("ec2_subnets", "subnet-1");
+        properties.put("ec2_tags", "team=platform\ncost-center=42");
+        CreateAgentRequest request = new CreateAgentRequest("key", "prod", properties, jobIdentifier("i-6"), new HashMap<>());
+
+        Ec2Instance.create(request, clusterProfileProperties, text -> {
+        });
+
+        assertThat(launches.size(), is(2));
+        assertThat(launches.get(1).tagSpecifications(), is(launches.get(0).tagSpecifications()));
+        List<TagSpecification> tagSpecifications = launches.get(1).tagSpecifications();
+        assertThat(tagSpecifications.stream().map(TagSpecification::resourceType).collect(Collectors.toList()),
+                contains(ResourceType.INSTANCE, ResourceType.VOLUME, ResourceType.NETWORK_INTERFACE));
+        for (TagSpecification tagSpecification : tagSpecifications) {
+            assertThat(tagSpecification.tags(), hasItem(Tag.builder().key("team").value("platform").build()));
+            assertThat(tagSpecification.tags(), hasItem(Tag.builder().key("jobName").value("job-i-6").build()));
+            assertThat(tagSpecification.tags(), hasItem(Tag.builder().key(Ec2Instance.ENVIRONMENT_TAG).value("prod").build()));
+        }
+    }
+
+    @Test
+    public void shouldTagEachWarmInstanceWithTheKeyOfTheJobThatTakesIt() throws Exception {
+        List<RunInstancesRequest> launches = new CopyOnWriteArrayList<>();
+        AtomicInteger instanceIds = new AtomicInteger();
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            RunInstancesRequest request = invocation.getArgument(0);
+            launches.add(request);
+            List<Instance> instances = new ArrayList<>();
+            for (int i = 0; i < request.maxCount(); i++) {
+                instances.add(Instance.builder().instanceId("i-" + instanceIds.incrementAndGet()).subnetId("subnet-1").launchTime(Instant.now()).build());
+            }
+            return RunInstancesResponse.builder().instances(instances).build();
+        });
+        Map<String, String> registrationKeys = new ConcurrentHashMap<>();
+        when(ec2.createTags(any(CreateTagsRequest.class))).thenAnswer(invocation -> {
+            CreateTagsRequest request = invocation.getArgument(0);
+            for (Tag tag : request.tags()) {
+                if (tag.key().equals(Ec2Instance.AUTO_REGISTER_KEY_TAG)) {
+                    assertThat(registrationKeys.put(request.resources().get(0), tag.value()), is(nullValue()));
+                }
+            }
+            return CreateTagsResponse.builder().build();
+        });
+        Ec2AgentInstances agentInstances = new Ec2AgentInstances(journalDirectory);
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+
+        Ec2Instance first = agentInstances.create(warmPoolRequest("key-A", "i-A"), pluginRequest, text -> {
+        });
+        assertThat(first.id(), is("i-1"));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!(agentInstances.isWarm("i-2") && agentInstances.isWarm("i-3")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Ec2Instance second = agentInstances.create(warmPoolRequest("key-B", "i-B"), pluginRequest, text -> {
+        });
+        Ec2Instance third = agentInstances.create(warmPoolRequest("key-C", "i-C"), pluginRequest, text -> {
+        });
+
+        assertThat(Arrays.asList(second.id(), third.id()), containsInAnyOrder("i-2", "i-3"));
+        assertThat(registrationKeys.get(second.id()), is("key-B"));
+        assertThat(registrationKeys.get(third.id()), is("key-C"));
+        List<RunInstancesRequest> warmLaunches = launches.stream()
+                .filter(launch -> launch.tagSpecifications().stream().anyMatch(tagSpecification -> tagSpecification.tags().contains(Tag.builder().key("Name").value("GoCD EA warm").build())))
+                .collect(Collectors.toList());
+        assertThat(warmLaunches.isEmpty(), is(false));
+        for (RunInstancesRequest warmLaunch : warmLaunches) {
+            for (TagSpecification tagSpecification : warmLaunch.tagSpecifications()) {
+                assertThat(tagSpecification.tags().stream().map(Tag::key).collect(Collectors.toList()), everyItem(not(Ec2Instance.AUTO_REGISTER_KEY_TAG)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldTagTheVolumesAndNetworkInterfacesOfBatchedInstancesWithTheirJob() {
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenReturn(RunInstancesResponse.builder()
+                .instances(Instance.builder().instanceId("i-6").subnetId("subnet-1").launchTime(Instant.now())
+                        .blockDeviceMappings(InstanceBlockDeviceMapping.builder().ebs(EbsInstanceBlockDevice.builder().volumeId("vol-6").build()).build())
+                        .networkInterfaces(InstanceNetworkInterface.builder().networkInterfaceId("eni-6").build())
+                        .build())
+                .build());
+        List<CreateTagsRequest> tagged = new CopyOnWriteArrayList<>();
+        when(ec2.createTags(any(CreateTagsRequest.class))).thenAnswer(invocation -> {
+            tagged.add(invocation.getArgument(0));
+            return CreateTagsResponse.builder().build();
+        });
+        CreateAgentRequest request = createAgentRequest("i-6", clusterProfileProperties);
+        request.properties().put("ec2_prebaked", "true");
+
+        List<Ec2Instance> created = Ec2Instance.createAll(Collections.singletonList(request), clusterProfileProperties, new SubnetScheduler());
+
+        assertThat(created.get(0).id(), is("i-6"));
+        assertThat(tagged.get(0).resources(), contains("i-6", "vol-6", "eni-6"));
+        assertThat(tagged.get(0).tags(), hasItem(Tag.builder().key("jobName").value("job-i-6").build()));
+        assertThat(tagged.get(1).resources(), contains("i-6"));
+        assertThat(tagged.get(1).tags(), contains(Tag.builder().key(Ec2Instance.AUTO_REGISTER_KEY_TAG).value("key").build()));
+    }
+
+    @Test
+    public void shouldOnlyTagInstancesOfPrebakedAmisWithTheirRegistration() {
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenReturn(RunInstancesResponse.builder()
+                .instances(Instance.builder().instanceId("i-6").subnetId("subnet-1").launchTime(Instant.now()).build())
+                .build());
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", "m5.large");
+        properties.put("ec2_sg", "sg-1");
+        properties.put("ec2_subnets", "subnet-1");
+        properties.put("ec2_prebaked", "true");
+        CreateAgentRequest request = new CreateAgentRequest("key", "prod", properties, jobIdentifier("i-6"), new HashMap<>());
+
+        Ec2Instance.create(request, clusterProfileProperties, text -> {
+        });
+
+        ArgumentCaptor<RunInstancesRequest> launch = ArgumentCaptor.forClass(RunInstancesRequest.class);
+        verify(ec2).runInstances(launch.capture());
+        assertThat(launch.getValue().userData(), is(nullValue()));
+        assertThat(launch.getValue().metadataOptions().instanceMetadataTags(), is(InstanceMetadataTagsState.ENABLED));
+        assertThat(launch.getValue().tagSpecifications().get(0).tags(), hasItem(Tag.builder().key(Ec2Instance.AUTO_REGISTER_KEY_TAG).value("key").build()));
+        assertThat(launch.getValue().tagSpecifications().get(0).tags(), hasItem(Tag.builder().key(Ec2Instance.ENVIRONMENT_TAG).value("prod").build()));
+    }
+
+    @Test
+    public void shouldOnlyPassTheCustomUserDataToPrebakedAmis() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_prebaked", "true");
+        properties.put("ec2_user_data", "echo hello");
+
+        assertThat(Ec2Instance.userDataReadingTags(properties, clusterProfileProperties), is("echo hello"));
+
+        properties.remove("ec2_user_data");
+        assertThat(Ec2Instance.userDataReadingTags(properties, clusterProfileProperties), is(""));
+    }
+
+    private CreateAgentRequest createAgentRequest(String instanceId, ClusterProfileProperties clusterProfileProperties) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", "m5.large");
+        properties.put("ec2_sg", "sg-1");
+        properties.put("ec2_subnets", "subnet-1");
+        return new CreateAgentRequest("key", null, properties, jobIdentifier(instanceId), clusterProfileProperties);
+    }
+
+    private CreateAgentRequest warmPoolRequest(String autoRegisterKey, String instanceId) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", "m5.large");
+        properties.put("ec2_sg", "sg-1");
+        properties.put("ec2_subnets", "subnet-1");
+        properties.put(WarmPool.SIZE_PROPERTY, "2");
+        return new CreateAgentRequest(autoRegisterKey, null, properties, jobIdentifier(instanceId), clusterProfileProperties);
+    }
+
+    private RunInstancesResponse launched(String instanceId) {
+        return RunInstancesResponse.builder()
+                .instances(Instance.builder().instanceId(instanceId).subnetId("subnet-1").launchTime(Instant.now()).build())
+                .build();
+    }
+
+    private JobIdentifier jobIdentifier(String instanceId) {
+        return new JobIdentifier("up42", 1L, "label", "stage", "1", "job-" + instanceId, (long) instanceId.hashCode());
+    }
+
+    private DescribeInstancesResponse page(String nextToken, String... instanceIds) {
+        List<Instance> instances = new ArrayList<>();
+        for (String instanceId : instanceIds) {
+            instances.add(Instance.builder()
+                    .instanceId(instanceId)
+                    .imageId("ami-123")
+                    .instanceType(InstanceType.T2_MICRO)
+                    .launchTime(Instant.now())
+                    .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                    .instanceLifecycle(SPOT_INSTANCES.contains(instanceId) ? InstanceLifecycleType.SPOT : null)
+                    .tags(Tag.builder().key("type").value(Constants.ELASTIC_AGENT_TAG).build(),
+                            Tag.builder().key("JsonJobIdentifier").value(jobIdentifier(instanceId).toJson()).build())
+                    .build());
+        }
+        return DescribeInstancesResponse.builder()
+                .reservations(Reservation.builder().instances(instances).build())
+                .nextToken(nextToken)
+                .build();
+    }
+}
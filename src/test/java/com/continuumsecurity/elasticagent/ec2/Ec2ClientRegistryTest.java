@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class Ec2ClientRegistryTest {
+
+    private Ec2ClientRegistry registry;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new Ec2ClientRegistry();
+    }
+
+    @Test
+    public void shouldShareClientBetweenClustersWithSameCredentials() {
+        ClusterProfileProperties cluster = clusterProfile("eu-west-1", "10");
+        ClusterProfileProperties otherCluster = clusterProfile("eu-west-1", "20");
+
+        try (Ec2ClientRegistry.Lease lease = registry.acquire(cluster);
+             Ec2ClientRegistry.Lease otherLease = registry.acquire(otherCluster);
+             Ec2ClientRegistry.Lease sameLease = registry.acquire(cluster)) {
+            assertThat(otherLease.client(), is(sameInstance(lease.client())));
+            assertThat(sameLease.client(), is(sameInstance(lease.client())));
+        }
+        assertThat(registry.size(), is(1));
+        assertThat(registry.misses(), is(1L));
+        assertThat(registry.hits(), is(2L));
+    }
+
+    @Test
+    public void shouldCreateSeparateClientsPerRegion() {
+        try (Ec2ClientRegistry.Lease lease = registry.acquire(clusterProfile("eu-west-1", "10"));
+             Ec2ClientRegistry.Lease otherLease = registry.acquire(clusterProfile("us-east-1", "10"))) {
+            assertThat(otherLease.client(), is(not(sameInstance(lease.client()))));
+        }
+        assertThat(registry.size(), is(2));
+        assertThat(registry.misses(), is(2L));
+    }
+
+    @Test
+    public void shouldOnlyCloseClientWhenLastClusterUsingItIsEvicted() {
+        ClusterProfileProperties cluster = clusterProfile("eu-west-1", "10");
+        ClusterProfileProperties otherCluster = clusterProfile("eu-west-1", "20");
+        registry.acquire(cluster).close();
+        registry.acquire(otherCluster).close();
+
+        registry.evict(cluster);
+        assertThat(registry.size(), is(1));
+
+        registry.evict(otherCluster);
+        assertThat(registry.size(), is(0));
+    }
+
+    @Test
+    public void shouldNotCloseAnEvictedClientWhileItIsLeased() {
+        ClusterProfileProperties cluster = clusterProfile("eu-west-1", "10");
+        Ec2Client client = mock(Ec2Client.class);
+        registry.register(cluster, client);
+
+        Ec2ClientRegistry.Lease lease = registry.acquire(cluster);
+        registry.evict(cluster);
+
+        verify(client, never()).close();
+        assertThat(lease.client(), is(sameInstance(client)));
+
+        lease.close();
+        lease.close();
+        verify(client, times(1)).close();
+    }
+
+    @Test
+    public void shouldLeaseANewClientAfterTheOldOneWasEvicted() {
+        ClusterProfileProperties cluster = clusterProfile("eu-west-1", "10");
+        Ec2Client client = mock(Ec2Client.class);
+        registry.register(cluster, client);
+        registry.evict(cluster);
+
+        try (Ec2ClientRegistry.Lease lease = registry.acquire(cluster)) {
+            assertThat(lease.client(), is(not(sameInstance(client))));
+        }
+    }
+
+    @Test
+    public void shouldShareTheSchedulerOfAnAccountBetweenClientsWithDifferentSecrets() {
+        ClusterProfileProperties cluster = clusterProfile("eu-west-1", "10");
+        ClusterProfileProperties rotatedSecret = clusterProfile("eu-west-1", "10");
+        rotatedSecret.setAwsSecretAccessKey("rotated-secret-key");
+
+        registry.acquire(cluster).close();
+        registry.acquire(rotatedSecret).close();
+        assertThat(registry.size(), is(2));
+        assertThat(registry.apiSchedulers(), hasSize(1));
+
+        registry.evict(cluster);
+        assertThat(registry.apiSchedulers(), hasSize(1));
+        registry.evict(rotatedSecret);
+        assertThat(registry.apiSchedulers(), is(empty()));
+    }
+
+    private ClusterProfileProperties clusterProfile(String region, String maxElasticAgents) {
+        ClusterProfileProperties clusterProfileProperties = new ClusterProfileProperties();
+        clusterProfileProperties.setGoServerUrl(Properties.SERVER_URL);
+        clusterProfileProperties.setMaxElasticAgents(maxElasticAgents);
+        clusterProfileProperties.setAwsAccessKeyId("access-key");
+        clusterProfileProperties.setAwsSecretAccessKey("secret-key");
+        clusterProfileProperties.setAwsRegion(region);
+        return clusterProfileProperties;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class InstanceJournalTest {
+
+    private File directory;
+    private File journalFile;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("instance-journal").toFile();
+        journalFile = new File(directory, "cluster.journal");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void shouldRestoreLiveInstancesWithTheirProfileProperties() throws Exception {
+        InstanceJournal journal = open();
+        journal.launched(Arrays.asList(instance("i-1", null), instance("i-2", null)));
+        JobIdentifier jobIdentifier = new JobIdentifier("up42", 1L, "label", "stage", "1", "job", 1L);
+        journal.assigned("i-1", jobIdentifier);
+        journal.terminated(Collections.singletonList("i-2"));
+
+        List<Ec2Instance> restored = open().replay();
+
+        assertThat(restored, hasSize(1));
+        Ec2Instance instance = restored.get(0);
+        assertThat(instance.id(), is("i-1"));
+        assertThat(instance.properties().get("ec2_user_data"), is("echo hello"));
+        assertThat(instance.environment(), is("dev"));
+        assertThat(instance.createdAt().getMillis(), is(1000L));
+        assertThat(instance.getJobIdentifier(), is(jobIdentifier));
+    }
+
+    @Test
+    public void shouldSkipTheRecordTornByACrash() throws Exception {
+        InstanceJournal journal = open();
+        journal.launched(Collections.singletonList(instance("i-1", null)));
+        // the server died halfway through writing the next record, without closing the journal
+        Files.write(journalFile.toPath(), "{\"op\":\"launched\",\"id\":\"i-2\",\"crea".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        InstanceJournal reopened = open();
+        assertThat(ids(reopened.replay()), contains("i-1"));
+
+        // records written after the restart are not glued to the torn one
+        reopened.launched(Collections.singletonList(instance("i-3", null)));
+        assertThat(ids(open().replay()), contains("i-1", "i-3"));
+    }
+
+    @Test
+    public void shouldKeepTheJournalWhenCrashingWhileCompacting() throws Exception {
+        InstanceJournal journal = open();
+        journal.launched(Arrays.asList(instance("i-1", null), instance("i-2", null)));
+        File compactionFile = new File(directory, "cluster.journal.compacting");
+        FileUtils.writeStringToFile(compactionFile, "{\"op\":\"launched\",\"id\":\"i-1\"", StandardCharsets.UTF_8);
+
+        assertThat(ids(open().replay()), contains("i-1", "i-2"));
+        assertThat(compactionFile.exists(), is(false));
+    }
+
+    @Test
+    public void shouldCompactOnceMostRecordsAreObsolete() throws Exception {
+        InstanceJournal journal = open();
+        journal.launched(Collections.singletonList(instance("i-keep", null)));
+        List<Ec2Instance> launched = new ArrayList<>();
+        for (int i = 0; i < InstanceJournal.MIN_RECORDS_BEFORE_COMPACTION / 2 + 1; i++) {
+            launched.add(instance("i-" + i, null));
+        }
+        journal.launched(launched);
+        journal.terminated(ids(launched));
+
+        assertThat(journal.records(), is(lessThan(InstanceJournal.MIN_RECORDS_BEFORE_COMPACTION)));
+        assertThat(FileUtils.readLines(journalFile, StandardCharsets.UTF_8).size(), is(journal.records()));
+        assertThat(ids(open().replay()), contains("i-keep"));
+    }
+
+    @Test
+    public void shouldNotJournalKnownInstancesAgain() throws Exception {
+        InstanceJournal journal = open();
+        journal.launched(Collections.singletonList(instance("i-1", null)));
+        journal.launched(Arrays.asList(instance("i-1", null), instance("i-2", null)));
+
+        assertThat(journal.records(), is(2));
+    }
+
+    @Test
+    public void shouldMoveTheJournalToTheNewIdOfTheCluster() throws Exception {
+        InstanceJournal journal = open();
+        journal.launched(Collections.singletonList(instance("i-1", null)));
+        journal.close();
+
+        InstanceJournal.move(directory, "cluster", "changed-cluster");
+
+        assertThat(journalFile.exists(), is(false));
+        InstanceJournal moved = new InstanceJournal(directory, "changed-cluster");
+        assertThat(ids(moved.replay()), contains("i-1"));
+    }
+
+    @Test
+    public void shouldDeleteTheJournalOfADeletedCluster() throws Exception {
+        InstanceJournal journal = open();
+        journal.launched(Collections.singletonList(instance("i-1", null)));
+        journal.close();
+
+        InstanceJournal.delete(directory, "cluster");
+
+        assertThat(journalFile.exists(), is(false));
+        assertThat(open().replay(), is(empty()));
+    }
+
+    private InstanceJournal open() throws Exception {
+        InstanceJournal journal = new InstanceJournal(directory, "cluster");
+        journal.replay();
+        return journal;
+    }
+
+    private Ec2Instance instance(String id, JobIdentifier jobIdentifier) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_user_data", "echo hello");
+        return new Ec2Instance(id, new Date(1000), properties, "dev", jobIdentifier);
+    }
+
+    private List<String> ids(List<Ec2Instance> instances) {
+        List<String> ids = new ArrayList<>();
+        for (Ec2Instance instance : instances) {
+            ids.add(instance.id());
+        }
+        return ids;
+    }
+}
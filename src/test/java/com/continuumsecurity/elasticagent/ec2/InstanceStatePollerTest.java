@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
+import software.amazon.awssdk.services.ec2.paginators.DescribeInstancesIterable;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class InstanceStatePollerTest {
+    private ClusterProfileProperties clusterProfileProperties;
+    private Ec2Client ec2;
+    private InstanceStatePoller poller;
+    private Ec2AgentInstances agentInstances;
+
+    @BeforeEach
+    public void setUp() {
+        clusterProfileProperties = new ClusterProfileProperties();
+        clusterProfileProperties.setAwsRegion("eu-west-1");
+        clusterProfileProperties.setInstanceStateTtl("30");
+
+        ec2 = mock(Ec2Client.class);
+        when(ec2.describeInstancesPaginator(any(DescribeInstancesRequest.class)))
+                .thenAnswer(invocation -> new DescribeInstancesIterable(ec2, invocation.getArgument(0)));
+        when(ec2.describeInstances(any(DescribeInstancesRequest.class))).thenReturn(DescribeInstancesResponse.builder().build());
+        Ec2ClientRegistry.instance().register(clusterProfileProperties, ec2);
+
+        poller = new InstanceStatePoller();
+        agentInstances = new Ec2AgentInstances(null);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Ec2ClientRegistry.instance().evict(clusterProfileProperties);
+    }
+
+    @Test
+    public void shouldDescribeClustersWithPendingInstances() {
+        agentInstances.capacity().tryReserve(10);
+        poller.watch(clusterProfileProperties, agentInstances);
+
+        poller.poll(System.currentTimeMillis());
+        // the cache is fresh now
+        poller.poll(System.currentTimeMillis());
+
+        verify(ec2, times(1)).describeInstances(any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    public void shouldNotDescribeClustersWithoutInstances() {
+        poller.watch(clusterProfileProperties, agentInstances);
+
+        poller.poll(System.currentTimeMillis());
+
+        verify(ec2, never()).describeInstances(any(DescribeInstancesRequest.class));
+        assertThat(poller.isWatching(clusterProfileProperties), is(true));
+    }
+
+    @Test
+    public void shouldStopWatchingClustersThatWereIdleForLongerThanTheirTtl() {
+        poller.watch(clusterProfileProperties, agentInstances);
+
+        poller.poll(System.currentTimeMillis() + 31_000);
+
+        assertThat(poller.isWatching(clusterProfileProperties), is(false));
+    }
+
+    @Test
+    public void shouldKeepWatchingIdleClustersWithInstances() {
+        agentInstances.capacity().tryReserve(10);
+        poller.watch(clusterProfileProperties, agentInstances);
+
+        poller.poll(System.currentTimeMillis() + 31_000);
+
+        assertThat(poller.isWatching(clusterProfileProperties), is(true));
+    }
+}
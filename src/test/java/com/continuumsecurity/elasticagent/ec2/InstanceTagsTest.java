@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import com.continuumsecurity.elasticagent.ec2.requests.CreateAgentRequest;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.ec2.model.CreateTagsRequest;
+import software.amazon.awssdk.services.ec2.model.Tag;
+import software.amazon.awssdk.services.ec2.model.TagSpecification;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class InstanceTagsTest {
+
+    @Test
+    public void shouldParseOneTagPerLine() {
+        Map<String, String> tags = InstanceTags.parse("team=platform\r\n\n cost-center = 42 \nempty=");
+
+        assertThat(tags.keySet(), contains("team", "cost-center", "empty"));
+        assertThat(tags.get("cost-center"), is("42"));
+        assertThat(tags.get("empty"), is(""));
+        assertThat(InstanceTags.validate(null), is(nullValue()));
+    }
+
+    @Test
+    public void shouldRejectInvalidTags() {
+        assertThat(InstanceTags.validate("team"), is("Tag 'team' must be of the form key=value."));
+        assertThat(InstanceTags.validate("=platform"), is("Tag key '' must be 1 to 128 characters."));
+        assertThat(InstanceTags.validate("aws:team=platform"), is("Tag key 'aws:team' is reserved."));
+        assertThat(InstanceTags.validate("JsonJobIdentifier={}"), is("Tag key 'JsonJobIdentifier' is reserved."));
+        assertThat(InstanceTags.validate("team=a\nteam=b"), is("Tag 'team' is given more than once."));
+
+        String tooMany = IntStream.rangeClosed(0, InstanceTags.MAX_CUSTOM_TAGS)
+                .mapToObj(i -> "tag" + i + "=" + i)
+                .collect(Collectors.joining("\n"));
+        assertThat(InstanceTags.validate(tooMany), is("At most 38 tags can be given."));
+    }
+
+    @Test
+    public void shouldKeepTheAutoRegisterKeyOnTheInstance() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(InstanceTags.CUSTOM_TAGS_PROPERTY, "team=platform");
+        JobIdentifier jobIdentifier = new JobIdentifier("up42", 1L, "label", "stage", "1", "job", 2L);
+        CreateAgentRequest request = new CreateAgentRequest("key", "prod", properties, jobIdentifier, new HashMap<>());
+
+        InstanceTags tags = InstanceTags.builder().custom(properties).job(jobIdentifier).registration(request).build();
+
+        Tag autoRegisterKey = Tag.builder().key(Ec2Instance.AUTO_REGISTER_KEY_TAG).value("key").build();
+        assertThat(tags.tags(), hasItems(autoRegisterKey, Tag.builder().key("team").value("platform").build(),
+                Tag.builder().key("Name").value("GoCD EA up42-1-stage-job").build()));
+        assertThat(tags.specifications().get(0).tags(), is(tags.tags()));
+        for (TagSpecification attachment : tags.specifications().subList(1, 3)) {
+            assertThat(attachment.tags(), not(hasItem(autoRegisterKey)));
+            assertThat(attachment.tags().size(), is(tags.tags().size() - 1));
+        }
+    }
+
+    @Test
+    public void shouldTagTheVolumesAndNetworkInterfacesOfARunningInstanceWithoutTheAutoRegisterKey() {
+        Map<String, String> properties = new HashMap<>();
+        JobIdentifier jobIdentifier = new JobIdentifier("up42", 1L, "label", "stage", "1", "job", 2L);
+        CreateAgentRequest request = new CreateAgentRequest("key", "prod", properties, jobIdentifier, new HashMap<>());
+        InstanceTags tags = InstanceTags.builder().job(jobIdentifier).registration(request).build();
+
+        List<CreateTagsRequest> requests = tags.createTagsRequests("i-1", Arrays.asList("vol-1", "eni-1"));
+
+        assertThat(requests, hasSize(2));
+        assertThat(requests.get(0).resources(), contains("i-1", "vol-1", "eni-1"));
+        assertThat(requests.get(0).tags(), hasItem(Tag.builder().key("jobName").value("job").build()));
+        assertThat(requests.get(0).tags(), hasItem(Tag.builder().key(Ec2Instance.ENVIRONMENT_TAG).value("prod").build()));
+        assertThat(requests.get(1).resources(), contains("i-1"));
+        assertThat(requests.get(1).tags(), contains(Tag.builder().key(Ec2Instance.AUTO_REGISTER_KEY_TAG).value("key").build()));
+
+        assertThat(InstanceTags.builder().job(jobIdentifier).build().createTagsRequests("i-1", Collections.emptyList()), hasSize(1));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import com.continuumsecurity.elasticagent.ec2.models.JobLatencyReport;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+
+public class JobLatenciesTest {
+    private static final long SECOND = 1000;
+
+    private final JobLatencies latencies = new JobLatencies(3);
+
+    @Test
+    public void shouldReportTheTimeSpentInEachStage() {
+        latencies.createRequested(job(1), profile("m5.large"), 0);
+        latencies.launched(job(1), 2 * SECOND);
+        latencies.listed(job(1), 62 * SECOND);
+        latencies.assigned(job(1), 65 * SECOND);
+
+        List<JobLatencyReport> report = latencies.report();
+
+        assertThat(report.stream().map(JobLatencyReport::getStage).collect(Collectors.toList()), contains("Launch", "Boot", "Assign", "Total"));
+        assertThat(report.get(0).getP50(), is(2L));
+        assertThat(report.get(1).getP50(), is(60L));
+        assertThat(report.get(2).getP50(), is(3L));
+        assertThat(report.get(3).getP99(), is(65L));
+        assertThat(report.get(3).getProfile(), startsWith("ami-123 (m5.large) "));
+    }
+
+    @Test
+    public void shouldOnlyRememberTheFirstTimeOfEachStep() {
+        latencies.createRequested(job(1), profile("m5.large"), 0);
+        latencies.createRequested(job(1), profile("m5.large"), 30 * SECOND);
+        latencies.assigned(job(1), 40 * SECOND);
+        latencies.assigned(job(1), 50 * SECOND);
+
+        JobLatencyReport total = stage(latencies.report(), "Total");
+
+        assertThat(total.getP50(), is(40L));
+        assertThat(total.getJobs(), is(1));
+    }
+
+    @Test
+    public void shouldCountAnAgentAssignedBeforeItWasListedAsListedWhenAssigned() {
+        latencies.createRequested(job(1), profile("m5.large"), 0);
+        latencies.launched(job(1), 5 * SECOND);
+        latencies.assigned(job(1), 45 * SECOND);
+        latencies.listed(job(1), 60 * SECOND);
+
+        List<JobLatencyReport> report = latencies.report();
+
+        assertThat(stage(report, "Boot").getP50(), is(40L));
+        assertThat(stage(report, "Assign").getP50(), is(0L));
+    }
+
+    @Test
+    public void shouldForgetTheOldestJobsOnceFull() {
+        for (int i = 1; i <= 4; i++) {
+            latencies.createRequested(job(i), profile("m5.large"), 0);
+            latencies.assigned(job(i), i * 10 * SECOND);
+        }
+
+        JobLatencyReport total = stage(latencies.report(), "Total");
+
+        assertThat(total.getJobs(), is(3));
+        assertThat(total.getP50(), is(30L));
+    }
+
+    @Test
+    public void shouldReportEachProfileSeparately() {
+        latencies.createRequested(job(1), profile("m5.large"), 0);
+        latencies.assigned(job(1), 10 * SECOND);
+        latencies.createRequested(job(2), profile("c5.xlarge"), 0);
+        latencies.assigned(job(2), 20 * SECOND);
+
+        List<JobLatencyReport> report = latencies.report();
+
+        assertThat(report.stream().map(JobLatencyReport::getProfile).collect(Collectors.toList()),
+                contains(startsWith("ami-123 (c5.xlarge) "), startsWith("ami-123 (c5.xlarge) "), startsWith("ami-123 (m5.large) "), startsWith("ami-123 (m5.large) ")));
+    }
+
+    @Test
+    public void shouldReportProfilesWithTheSameAmiAndInstanceTypesSeparately() {
+        Map<String, String> subnet1 = profile("m5.large");
+        subnet1.put("ec2_subnets", "subnet-1");
+        Map<String, String> subnet2 = profile("m5.large");
+        subnet2.put("ec2_subnets", "subnet-2");
+        latencies.createRequested(job(1), subnet1, 0);
+        latencies.assigned(job(1), 10 * SECOND);
+        latencies.createRequested(job(2), subnet2, 0);
+        latencies.assigned(job(2), 20 * SECOND);
+        latencies.createRequested(job(3), new HashMap<>(subnet1), 0);
+        latencies.assigned(job(3), 30 * SECOND);
+
+        List<JobLatencyReport> totals = latencies.report().stream()
+                .filter(latency -> latency.getStage().equals("Total"))
+                .collect(Collectors.toList());
+
+        assertThat(totals.size(), is(2));
+        assertThat(totals.stream().map(JobLatencyReport::getJobs).collect(Collectors.toList()), containsInAnyOrder(2, 1));
+    }
+
+    @Test
+    public void shouldTakeNearestRankPercentiles() {
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+
+        assertThat(JobLatencies.percentile(sorted, 50), is(50L));
+        assertThat(JobLatencies.percentile(sorted, 95), is(95L));
+        assertThat(JobLatencies.percentile(sorted, 99), is(99L));
+        assertThat(JobLatencies.percentile(new long[]{7}, 99), is(7L));
+    }
+
+    private static JobLatencyReport stage(List<JobLatencyReport> report, String stage) {
+        return report.stream().filter(latency -> latency.getStage().equals(stage)).findFirst().orElse(null);
+    }
+
+    private static JobIdentifier job(int id) {
+        return new JobIdentifier("up42", 1L, "label", "stage", "1", "job" + id, (long) id);
+    }
+
+    private static Map<String, String> profile(String instanceType) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", instanceType);
+        return properties;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+public class LaunchAttemptTest {
+    private Clock.TestClock clock;
+    private Map<String, String> properties;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new Clock.TestClock(new DateTime(2019, 1, 1, 0, 0));
+        NoCapacityCache.instance().clock = clock;
+        properties = new HashMap<>();
+        properties.put("ec2_instance_type", "m5.large, m5a.large");
+        properties.put("ec2_subnets", "subnet-1,subnet-2");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        NoCapacityCache.instance().clear();
+        NoCapacityCache.instance().clock = Clock.DEFAULT;
+    }
+
+    @Test
+    public void shouldTryEachInstanceTypeInAllSubnetsInTheGivenOrder() {
+        List<LaunchAttempt> attempts = LaunchAttempt.plan(properties, Arrays.asList("subnet-2", "subnet-1"));
+
+        assertThat(attempts.stream().map(LaunchAttempt::instanceType).collect(Collectors.toList()),
+                contains("m5.large", "m5.large", "m5a.large", "m5a.large"));
+        assertThat(attempts.stream().map(LaunchAttempt::subnet).collect(Collectors.toList()),
+                contains("subnet-2", "subnet-1", "subnet-2", "subnet-1"));
+        assertThat(attempts.stream().anyMatch(LaunchAttempt::isSpot), is(false));
+    }
+
+    @Test
+    public void shouldTrySpotBeforeOnDemand() {
+        properties.put("ec2_spot", "true");
+
+        List<LaunchAttempt> attempts = plan();
+
+        assertThat(attempts.stream().map(LaunchAttempt::isSpot).collect(Collectors.toList()),
+                contains(true, true, true, true, false, false, false, false));
+    }
+
+    @Test
+    public void shouldTryCombinationsWithoutCapacityLastUntilTheyExpire() {
+        properties.put("ec2_subnets", "subnet-1");
+        LaunchAttempt first = plan().get(0);
+
+        boolean noSpot = first.failed(error("InsufficientInstanceCapacity"));
+
+        assertThat(noSpot, is(false));
+        assertThat(types(plan()), contains("m5a.large", "m5.large"));
+
+        clock.set(clock.now().plus(NoCapacityCache.NO_CAPACITY_TTL_MILLIS));
+        assertThat(types(plan()), contains("m5.large", "m5a.large"));
+    }
+
+    @Test
+    public void shouldNotRememberOtherErrors() {
+        properties.put("ec2_subnets", "subnet-1");
+
+        plan().get(0).failed(error("InvalidParameterValue"));
+
+        assertThat(types(plan()), contains("m5.large", "m5a.large"));
+    }
+
+    @Test
+    public void shouldGiveUpOnSpotWhenTheSpotLimitIsReached() {
+        properties.put("ec2_spot", "true");
+        List<LaunchAttempt> attempts = plan();
+
+        assertThat(attempts.get(0).failed(error("MaxSpotInstanceCountExceeded")), is(true));
+        assertThat(attempts.get(4).failed(error("MaxSpotInstanceCountExceeded")), is(false));
+    }
+
+    private List<LaunchAttempt> plan() {
+        return LaunchAttempt.plan(properties, LaunchAttempt.subnets(properties));
+    }
+
+    private static List<String> types(List<LaunchAttempt> attempts) {
+        return attempts.stream().map(LaunchAttempt::instanceType).collect(Collectors.toList());
+    }
+
+    private static Ec2Exception error(String errorCode) {
+        return (Ec2Exception) Ec2Exception.builder()
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode(errorCode).build())
+                .build();
+    }
+}
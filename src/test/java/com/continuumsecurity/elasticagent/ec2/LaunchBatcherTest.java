@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import com.continuumsecurity.elasticagent.ec2.requests.CreateAgentRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class LaunchBatcherTest {
+    private ClusterProfileProperties clusterProfileProperties;
+    private Ec2Client ec2;
+    private ExecutorService executor;
+    private List<RunInstancesRequest> launches;
+    private AtomicInteger launched;
+
+    @BeforeEach
+    public void setUp() {
+        clusterProfileProperties = new ClusterProfileProperties();
+        clusterProfileProperties.setGoServerUrl(Properties.SERVER_URL);
+        clusterProfileProperties.setAwsRegion("eu-west-1");
+        executor = Executors.newCachedThreadPool();
+        launches = new CopyOnWriteArrayList<>();
+        launched = new AtomicInteger();
+
+        ec2 = mock(Ec2Client.class);
+        when(ec2.describeSubnets(any(DescribeSubnetsRequest.class))).thenReturn(DescribeSubnetsResponse.builder()
+                .subnets(Subnet.builder().subnetId("subnet-1").availableIpAddressCount(100).build())
+                .build());
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            RunInstancesRequest request = invocation.getArgument(0);
+            launches.add(request);
+            return response(request.maxCount());
+        });
+        Ec2ClientRegistry.instance().register(clusterProfileProperties, ec2);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+        Ec2ClientRegistry.instance().evict(clusterProfileProperties);
+    }
+
+    @Test
+    public void shouldLaunchProfilesWithoutTagReadingUserDataOneByOne() throws Exception {
+        LaunchBatcher batcher = new LaunchBatcher(new SubnetScheduler(), 60_000);
+        Map<String, String> properties = properties();
+        properties.remove(Ec2Instance.PREBAKED_PROPERTY);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            Future<Ec2Instance> first = executor.submit(() -> batcher.launch(request(properties, 1), clusterProfileProperties, text -> {
+            }));
+            Future<Ec2Instance> second = executor.submit(() -> batcher.launch(request(properties, 2), clusterProfileProperties, text -> {
+            }));
+            assertThat(first.get(), is(notNullValue()));
+            assertThat(second.get(), is(notNullValue()));
+        });
+
+        assertThat(launches.size(), is(2));
+        for (RunInstancesRequest launch : launches) {
+            assertThat(launch.maxCount(), is(1));
+        }
+    }
+
+    @Test
+    public void shouldNotWaitForABatchWhenNothingElseIsBeingLaunched() {
+        LaunchBatcher batcher = new LaunchBatcher(new SubnetScheduler(), 60_000);
+
+        Ec2Instance instance = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> batcher.launch(request(properties(), 1), clusterProfileProperties, text -> {
+                }));
+
+        assertThat(instance, is(notNullValue()));
+        assertThat(launches.size(), is(1));
+    }
+
+    @Test
+    public void shouldFailAllRequestsOfABatchWhenItsLaunchFails() throws Exception {
+        CountDownLatch firstLaunch = new CountDownLatch(1);
+        reset(ec2);
+        when(ec2.describeSubnets(any(DescribeSubnetsRequest.class))).thenReturn(DescribeSubnetsResponse.builder()
+                .subnets(Subnet.builder().subnetId("subnet-1").availableIpAddressCount(100).build())
+                .build());
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            RunInstancesRequest request = invocation.getArgument(0);
+            if (launched.getAndIncrement() == 0) {
+                firstLaunch.await();
+                return response(request.maxCount());
+            }
+            throw new LinkageError("boom");
+        });
+        LaunchBatcher batcher = new LaunchBatcher(new SubnetScheduler(), 500);
+        Map<String, String> properties = properties();
+
+        // keeps the shape being launched, so that the next requests are batched
+        Future<Ec2Instance> first = executor.submit(() -> batcher.launch(request(properties, 1), clusterProfileProperties, text -> {
+        }));
+        while (launched.get() == 0) {
+            Thread.sleep(10);
+        }
+        List<Future<Ec2Instance>> batch = new ArrayList<>();
+        for (long jobId = 2; jobId <= 3; jobId++) {
+            long id = jobId;
+            batch.add(executor.submit(() -> batcher.launch(request(properties, id), clusterProfileProperties, text -> {
+            })));
+        }
+
+        for (Future<Ec2Instance> future : batch) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), is(instanceOf(LinkageError.class)));
+                continue;
+            }
+            throw new AssertionError("launch should have failed");
+        }
+
+        firstLaunch.countDown();
+        assertThat(first.get(10, TimeUnit.SECONDS), is(notNullValue()));
+    }
+
+    @Test
+    public void shouldOnlyBatchRequestsOfEqualElasticProfiles() {
+        Map<String, String> properties = properties();
+        Map<String, String> otherProperties = properties();
+        otherProperties.put("ec2_reuse_max_jobs", "5");
+
+        assertThat(LaunchBatcher.LaunchShape.of(request(properties, 1)), is(LaunchBatcher.LaunchShape.of(request(properties(), 2))));
+        assertThat(LaunchBatcher.LaunchShape.of(request(otherProperties, 1)), is(not(LaunchBatcher.LaunchShape.of(request(properties, 2)))));
+    }
+
+    private Map<String, String> properties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", "m5.large");
+        properties.put("ec2_sg", "sg-1");
+        properties.put("ec2_subnets", "subnet-1");
+        properties.put(Ec2Instance.PREBAKED_PROPERTY, "true");
+        return properties;
+    }
+
+    private CreateAgentRequest request(Map<String, String> properties, long jobId) {
+        JobIdentifier jobIdentifier = new JobIdentifier("up42", 1L, "label", "stage", "1", "job-" + jobId, jobId);
+        return new CreateAgentRequest("key-" + jobId, null, properties, jobIdentifier, new HashMap<>());
+    }
+
+    private RunInstancesResponse response(int count) {
+        List<Instance> instances = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            instances.add(Instance.builder()
+                    .instanceId("i-" + launched.get() + "-" + i)
+                    .subnetId("subnet-1")
+                    .launchTime(Instant.now())
+                    .build());
+        }
+        return RunInstancesResponse.builder().instances(instances).build();
+    }
+}
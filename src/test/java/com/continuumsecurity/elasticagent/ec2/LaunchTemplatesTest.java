@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import com.continuumsecurity.elasticagent.ec2.requests.CreateAgentRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.*;
+import software.amazon.awssdk.services.ec2.paginators.DescribeLaunchTemplateVersionsIterable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class LaunchTemplatesTest {
+    private ClusterProfileProperties clusterProfileProperties;
+    private Ec2Client ec2;
+    private List<LaunchTemplateVersion> versions;
+    private List<Tag> templateTags;
+    private Map<String, String> properties;
+
+    @BeforeEach
+    public void setUp() {
+        clusterProfileProperties = new ClusterProfileProperties();
+        clusterProfileProperties.setGoServerUrl(Properties.SERVER_URL);
+        clusterProfileProperties.setAwsRegion("eu-west-1");
+
+        versions = new ArrayList<>();
+        templateTags = new ArrayList<>();
+        ec2 = mock(Ec2Client.class);
+        when(ec2.describeLaunchTemplateVersionsPaginator(any(DescribeLaunchTemplateVersionsRequest.class)))
+                .thenAnswer(invocation -> new DescribeLaunchTemplateVersionsIterable(ec2, invocation.getArgument(0)));
+        when(ec2.describeLaunchTemplateVersions(any(DescribeLaunchTemplateVersionsRequest.class))).thenAnswer(invocation -> {
+            if (versions.isEmpty()) {
+                throw Ec2Exception.builder()
+                        .awsErrorDetails(AwsErrorDetails.builder().errorCode("InvalidLaunchTemplateName.NotFoundException").build())
+                        .build();
+            }
+            return DescribeLaunchTemplateVersionsResponse.builder().launchTemplateVersions(versions).build();
+        });
+        when(ec2.createLaunchTemplate(any(CreateLaunchTemplateRequest.class))).thenAnswer(invocation -> {
+            CreateLaunchTemplateRequest request = invocation.getArgument(0);
+            versions.add(LaunchTemplateVersion.builder().versionNumber(1L).versionDescription(request.versionDescription()).build());
+            templateTags.addAll(request.tagSpecifications().get(0).tags());
+            return CreateLaunchTemplateResponse.builder()
+                    .launchTemplate(LaunchTemplate.builder().launchTemplateName(request.launchTemplateName()).latestVersionNumber(1L).build())
+                    .build();
+        });
+        when(ec2.describeLaunchTemplates(any(DescribeLaunchTemplatesRequest.class))).thenAnswer(invocation -> DescribeLaunchTemplatesResponse.builder()
+                .launchTemplates(LaunchTemplate.builder().launchTemplateName("gocd-agents").tags(templateTags).build())
+                .build());
+        when(ec2.createLaunchTemplateVersion(any(CreateLaunchTemplateVersionRequest.class))).thenAnswer(invocation -> {
+            CreateLaunchTemplateVersionRequest request = invocation.getArgument(0);
+            LaunchTemplateVersion version = LaunchTemplateVersion.builder()
+                    .versionNumber((long) versions.size() + 1)
+                    .versionDescription(request.versionDescription())
+                    .build();
+            versions.add(version);
+            return CreateLaunchTemplateVersionResponse.builder().launchTemplateVersion(version).build();
+        });
+        Ec2ClientRegistry.instance().register(clusterProfileProperties, ec2);
+
+        properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", "t2.micro");
+        properties.put("ec2_sg", "sg-1, sg-2");
+        properties.put("ec2_subnets", "subnet-1");
+        properties.put("ec2_launch_template", "gocd-agents");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        LaunchTemplates.instance().clear();
+        Ec2ClientRegistry.instance().evict(clusterProfileProperties);
+    }
+
+    @Test
+    public void shouldNotUseALaunchTemplateUnlessConfigured() {
+        properties.remove("ec2_launch_template");
+
+        assertThat(LaunchTemplates.instance().specificationFor(properties, clusterProfileProperties), is(nullValue()));
+        verifyZeroInteractions(ec2);
+    }
+
+    @Test
+    public void shouldCreateTheLaunchTemplateOnceWhenItDoesNotExist() {
+        LaunchTemplateSpecification first = LaunchTemplates.instance().specificationFor(properties, clusterProfileProperties);
+        LaunchTemplateSpecification second = LaunchTemplates.instance().specificationFor(properties, clusterProfileProperties);
+
+        assertThat(first.launchTemplateName(), is("gocd-agents"));
+        assertThat(first.version(), is("1"));
+        assertThat(second, is(first));
+
+        ArgumentCaptor<CreateLaunchTemplateRequest> request = ArgumentCaptor.forClass(CreateLaunchTemplateRequest.class);
+        verify(ec2, times(1)).createLaunchTemplate(request.capture());
+        RequestLaunchTemplateData data = request.getValue().launchTemplateData();
+        assertThat(data.imageId(), is("ami-123"));
+        assertThat(data.securityGroupIds(), hasItem("sg-2"));
+        assertThat(data.metadataOptions().instanceMetadataTags(), is(LaunchTemplateInstanceMetadataTagsState.ENABLED));
+        verify(ec2, times(1)).describeLaunchTemplateVersions(any(DescribeLaunchTemplateVersionsRequest.class));
+    }
+
+    @Test
+    public void shouldAddAVersionWhenTheProfileChangesAndReuseOldVersions() {
+        LaunchTemplates.instance().specificationFor(properties, clusterProfileProperties);
+
+        properties.put("ec2_ami", "ami-456");
+        assertThat(LaunchTemplates.instance().specificationFor(properties, clusterProfileProperties).version(), is("2"));
+
+        LaunchTemplates.instance().clear();
+        properties.put("ec2_ami", "ami-123");
+        assertThat(LaunchTemplates.instance().specificationFor(properties, clusterProfileProperties).version(), is("1"));
+        verify(ec2, times(1)).createLaunchTemplateVersion(any(CreateLaunchTemplateVersionRequest.class));
+    }
+
+    @Test
+    public void shouldLaunchFromTheDefaultVersionOfATemplateThePluginDoesNotManage() {
+        versions.add(LaunchTemplateVersion.builder().versionNumber(1L).versionDescription("hand made").build());
+        templateTags.add(Tag.builder().key("team").value("platform").build());
+
+        LaunchTemplateSpecification specification = LaunchTemplates.instance().specificationFor(properties, clusterProfileProperties);
+
+        assertThat(specification.launchTemplateName(), is("gocd-agents"));
+        assertThat(specification.version(), is(LaunchTemplates.DEFAULT_VERSION));
+        verify(ec2, never()).createLaunchTemplateVersion(any(CreateLaunchTemplateVersionRequest.class));
+        verify(ec2, never()).createLaunchTemplate(any(CreateLaunchTemplateRequest.class));
+    }
+
+    @Test
+    public void shouldLaunchWithoutTheTemplateWhenItCanNotBeSetUp() {
+        when(ec2.createLaunchTemplate(any(CreateLaunchTemplateRequest.class))).thenThrow(Ec2Exception.builder().message("denied").build());
+
+        assertThat(LaunchTemplates.instance().specificationFor(properties, clusterProfileProperties), is(nullValue()));
+        assertThat(LaunchTemplates.instance().specificationFor(properties, clusterProfileProperties), is(nullValue()));
+        // not tried again right away
+        verify(ec2, times(1)).createLaunchTemplate(any(CreateLaunchTemplateRequest.class));
+    }
+
+    @Test
+    public void shouldOnlySendPerJobSettingsWhenLaunchingFromATemplate() {
+        when(ec2.describeSubnets(any(DescribeSubnetsRequest.class))).thenReturn(DescribeSubnetsResponse.builder().build());
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenReturn(RunInstancesResponse.builder()
+                .instances(Instance.builder().instanceId("i-1").subnetId("subnet-1").launchTime(Instant.now()).build())
+                .build());
+        JobIdentifier jobIdentifier = new JobIdentifier("up42", 1L, "label", "stage", "1", "job", 1L);
+        CreateAgentRequest request = new CreateAgentRequest("key", "prod", properties, jobIdentifier, new HashMap<>());
+
+        Ec2Instance.create(request, clusterProfileProperties, text -> {
+        });
+
+        ArgumentCaptor<RunInstancesRequest> launch = ArgumentCaptor.forClass(RunInstancesRequest.class);
+        verify(ec2).runInstances(launch.capture());
+        assertThat(launch.getValue().launchTemplate().launchTemplateName(), is("gocd-agents"));
+        assertThat(launch.getValue().imageId(), is(nullValue()));
+        assertThat(launch.getValue().userData(), is(nullValue()));
+        assertThat(launch.getValue().subnetId(), is("subnet-1"));
+        assertThat(launch.getValue().tagSpecifications().get(0).tags(), hasItem(Tag.builder().key(Ec2Instance.AUTO_REGISTER_KEY_TAG).value("key").build()));
+        assertThat(launch.getValue().tagSpecifications().get(0).tags(), hasItem(Tag.builder().key(Ec2Instance.ENVIRONMENT_TAG).value("prod").build()));
+    }
+
+    @Test
+    public void shouldSendTheUserDataReadingTagsWhenLaunchingFromATemplateThePluginDoesNotManage() {
+        versions.add(LaunchTemplateVersion.builder().versionNumber(1L).versionDescription("hand made").build());
+        when(ec2.describeSubnets(any(DescribeSubnetsRequest.class))).thenReturn(DescribeSubnetsResponse.builder().build());
+        when(ec2.runInstances(any(RunInstancesRequest.class))).thenReturn(RunInstancesResponse.builder()
+                .instances(Instance.builder().instanceId("i-1").subnetId("subnet-1").launchTime(Instant.now()).build())
+                .build());
+        JobIdentifier jobIdentifier = new JobIdentifier("up42", 1L, "label", "stage", "1", "job", 1L);
+        CreateAgentRequest request = new CreateAgentRequest("key", "prod", properties, jobIdentifier, new HashMap<>());
+
+        Ec2Instance.create(request, clusterProfileProperties, text -> {
+        });
+
+        ArgumentCaptor<RunInstancesRequest> launch = ArgumentCaptor.forClass(RunInstancesRequest.class);
+        verify(ec2).runInstances(launch.capture());
+        assertThat(launch.getValue().launchTemplate().version(), is(LaunchTemplates.DEFAULT_VERSION));
+        assertThat(launch.getValue().userData(), is(UserDataTemplates.instance().readingTags(properties, clusterProfileProperties).renderBase64(new HashMap<>())));
+        assertThat(launch.getValue().metadataOptions().instanceMetadataTags(), is(InstanceMetadataTagsState.ENABLED));
+        assertThat(launch.getValue().tagSpecifications().get(0).tags(), hasItem(Tag.builder().key(Ec2Instance.AUTO_REGISTER_KEY_TAG).value("key").build()));
+    }
+}
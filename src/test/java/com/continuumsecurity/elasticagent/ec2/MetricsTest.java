@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+
+public class MetricsTest {
+
+    @BeforeEach
+    public void setUp() {
+        Metrics.reset();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Metrics.reset();
+    }
+
+    @Test
+    public void shouldRenderHistogramsWithCumulativeBuckets() {
+        Metrics.AWS_CALL_DURATION.observe(0.02, "RunInstances");
+        Metrics.AWS_CALL_DURATION.observe(0.3, "RunInstances");
+        Metrics.AWS_CALL_DURATION.observe(120, "RunInstances");
+
+        String text = Metrics.render(Collections.emptyMap());
+
+        assertThat(text, containsString("# TYPE gocd_ec2_elastic_agent_aws_call_duration_seconds histogram\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_aws_call_duration_seconds_bucket{operation=\"RunInstances\",le=\"0.01\"} 0\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_aws_call_duration_seconds_bucket{operation=\"RunInstances\",le=\"0.025\"} 1\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_aws_call_duration_seconds_bucket{operation=\"RunInstances\",le=\"0.5\"} 2\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_aws_call_duration_seconds_bucket{operation=\"RunInstances\",le=\"60.0\"} 2\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_aws_call_duration_seconds_bucket{operation=\"RunInstances\",le=\"+Inf\"} 3\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_aws_call_duration_seconds_sum{operation=\"RunInstances\"} 120.32\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_aws_call_duration_seconds_count{operation=\"RunInstances\"} 3\n"));
+    }
+
+    @Test
+    public void shouldRenderCountersByLabel() {
+        Metrics.LAUNCH_FAILURES.increment("InsufficientInstanceCapacity");
+        Metrics.LAUNCH_FAILURES.increment("InsufficientInstanceCapacity");
+        Metrics.LAUNCH_FAILURES.increment("Unsupported");
+
+        String text = Metrics.render(Collections.emptyMap());
+
+        assertThat(text, containsString("# TYPE gocd_ec2_elastic_agent_launch_failures_total counter\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_launch_failures_total{code=\"InsufficientInstanceCapacity\"} 2\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_launch_failures_total{code=\"Unsupported\"} 1\n"));
+    }
+
+    @Test
+    public void shouldNotRenderMetricsWithoutSeries() {
+        String text = Metrics.render(Collections.emptyMap());
+
+        assertThat(text, not(containsString("launch_failures_total")));
+        assertThat(text, not(containsString("live_instances")));
+    }
+
+    @Test
+    public void shouldRenderTheInstancesOfEachCluster() {
+        String text = Metrics.render(Collections.singletonMap("cluster-uuid", new Ec2AgentInstances(null)));
+
+        assertThat(text, containsString("gocd_ec2_elastic_agent_live_instances{cluster=\"cluster-uuid\"} 0\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_pending_instances{cluster=\"cluster-uuid\"} 0\n"));
+        assertThat(text, containsString("# TYPE gocd_ec2_elastic_agent_launches_total counter\n"));
+        assertThat(text, containsString("gocd_ec2_elastic_agent_launches_total{cluster=\"cluster-uuid\"} 0\n"));
+    }
+
+    @Test
+    public void shouldEscapeLabelValues() {
+        Metrics.LAUNCH_FAILURES.increment("a \"quoted\\\" code");
+
+        assertThat(Metrics.render(Collections.emptyMap()), containsString("{code=\"a \\\"quoted\\\\\\\" code\"} 1\n"));
+    }
+}
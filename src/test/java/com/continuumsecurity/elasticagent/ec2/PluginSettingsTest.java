@@ -62,4 +62,19 @@ public class PluginSettingsTest {
         assertThat(pluginSettings.toString(), containsString("123456"));
         assertThat(pluginSettings.toString(), not(containsString("awsSecretAccessKey")));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldKeepDescribePageSizeWithinWhatEc2Accepts() {
+        PluginSettings pluginSettings = PluginSettings.fromJSON("{}");
+        assertThat(pluginSettings.getDescribePageSize(), is(1000));
+
+        pluginSettings.setDescribePageSize("200");
+        assertThat(pluginSettings.getDescribePageSize(), is(200));
+
+        pluginSettings.setDescribePageSize("1");
+        assertThat(pluginSettings.getDescribePageSize(), is(5));
+
+        pluginSettings.setDescribePageSize("5000");
+        assertThat(pluginSettings.getDescribePageSize(), is(1000));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeSubnetsRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeSubnetsResponse;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.Subnet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class SubnetSchedulerTest {
+    private static final List<String> SUBNETS = Arrays.asList("subnet-1", "subnet-2", "subnet-3");
+
+    private ClusterProfileProperties clusterProfileProperties;
+    private Ec2Client ec2;
+    private Map<String, Integer> freeIps;
+    private Clock.TestClock clock;
+    private SubnetScheduler scheduler;
+
+    @BeforeEach
+    public void setUp() {
+        clusterProfileProperties = new ClusterProfileProperties();
+        clusterProfileProperties.setAwsRegion("eu-west-1");
+        freeIps = new HashMap<>();
+        for (String subnet : SUBNETS) {
+            freeIps.put(subnet, 100);
+        }
+
+        ec2 = mock(Ec2Client.class);
+        when(ec2.describeSubnets(any(DescribeSubnetsRequest.class))).thenAnswer(invocation -> {
+            DescribeSubnetsRequest request = invocation.getArgument(0);
+            DescribeSubnetsResponse.Builder response = DescribeSubnetsResponse.builder();
+            response.subnets(request.subnetIds().stream()
+                    .map(subnet -> Subnet.builder().subnetId(subnet).availableIpAddressCount(freeIps.get(subnet)).build())
+                    .toArray(Subnet[]::new));
+            return response.build();
+        });
+        Ec2ClientRegistry.instance().register(clusterProfileProperties, ec2);
+
+        clock = new Clock.TestClock(new DateTime(2019, 1, 1, 0, 0));
+        scheduler = new SubnetScheduler();
+        scheduler.clock = clock;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Ec2ClientRegistry.instance().evict(clusterProfileProperties);
+    }
+
+    @Test
+    public void shouldPreferSubnetsWithFewerLiveAgents() {
+        scheduler.agentAdded("subnet-1");
+        scheduler.agentAdded("subnet-1");
+        scheduler.agentAdded("subnet-2");
+
+        assertThat(scheduler.order(SUBNETS, 1, clusterProfileProperties), contains("subnet-3", "subnet-2", "subnet-1"));
+
+        scheduler.agentRemoved("subnet-1");
+        scheduler.agentRemoved("subnet-1");
+        assertThat(scheduler.order(SUBNETS, 1, clusterProfileProperties).get(2), is("subnet-2"));
+    }
+
+    @Test
+    public void shouldTrySubnetsWithoutEnoughFreeIpsLast() {
+        freeIps.put("subnet-1", 0);
+        freeIps.put("subnet-2", 3);
+        scheduler.agentAdded("subnet-3");
+
+        assertThat(scheduler.order(SUBNETS, 5, clusterProfileProperties).get(0), is("subnet-3"));
+        assertThat(scheduler.order(SUBNETS, 1, clusterProfileProperties), contains("subnet-2", "subnet-3", "subnet-1"));
+    }
+
+    @Test
+    public void shouldDescribeFreeIpsOnlyOnceWithinTheTtlAndCountThemDownInBetween() {
+        freeIps.put("subnet-1", 2);
+        scheduler.order(SUBNETS, 1, clusterProfileProperties);
+
+        scheduler.launched("subnet-1", 2, 0);
+
+        assertThat(scheduler.order(SUBNETS, 1, clusterProfileProperties).get(2), is("subnet-1"));
+        verify(ec2, times(1)).describeSubnets(any(DescribeSubnetsRequest.class));
+
+        clock.set(clock.now().plus(SubnetScheduler.FREE_IPS_TTL_MILLIS + 1));
+        scheduler.order(SUBNETS, 1, clusterProfileProperties);
+        verify(ec2, times(2)).describeSubnets(any(DescribeSubnetsRequest.class));
+    }
+
+    @Test
+    public void shouldDownWeightSubnetsThatFailedRecently() {
+        scheduler.agentAdded("subnet-2");
+        scheduler.agentAdded("subnet-3");
+        scheduler.failed("subnet-1");
+
+        assertThat(scheduler.order(SUBNETS, 1, clusterProfileProperties).get(2), is("subnet-1"));
+
+        clock.set(clock.now().plus(SubnetScheduler.FAILURE_PENALTY_MILLIS));
+        assertThat(scheduler.order(SUBNETS, 1, clusterProfileProperties).get(0), is("subnet-1"));
+    }
+
+    @Test
+    public void shouldTryAllSubnetsWhenFreeIpsCanNotBeDescribed() {
+        when(ec2.describeSubnets(any(DescribeSubnetsRequest.class))).thenThrow(Ec2Exception.builder().message("denied").build());
+
+        assertThat(scheduler.order(SUBNETS, 1000, clusterProfileProperties).size(), is(3));
+    }
+
+    @Test
+    public void shouldCountRetriesPerLaunch() {
+        scheduler.launched("subnet-1", 1, 0);
+        scheduler.launched("subnet-2", 1, 2);
+        scheduler.notLaunched(3);
+
+        assertThat(scheduler.launches(), is(2L));
+        assertThat(scheduler.firstAttemptLaunches(), is(1L));
+        assertThat(scheduler.failedLaunches(), is(1L));
+        assertThat(scheduler.retriesPerLaunch(), closeTo(5 / 3.0, 0.001));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class UserDataTemplatesTest {
+    private ClusterProfileProperties clusterProfileProperties;
+    private Map<String, String> properties;
+
+    @BeforeEach
+    public void setUp() {
+        clusterProfileProperties = new ClusterProfileProperties();
+        clusterProfileProperties.setGoServerUrl("https://gocd.example.com/go");
+        properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_user_data", "echo custom");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        UserDataTemplates.instance().clear();
+    }
+
+    @Test
+    public void shouldSubstituteTheValuesOfTheJob() {
+        Map<String, String> jobValues = new HashMap<>();
+        jobValues.put(UserDataTemplates.AUTO_REGISTER_KEY, "secret-key");
+        jobValues.put(UserDataTemplates.ENVIRONMENT, "prod");
+
+        String userData = UserDataTemplates.instance().forJob(properties, clusterProfileProperties).render(jobValues);
+
+        assertThat(userData, startsWith("#!/bin/bash\nsed -ri \"s,http[s]?://localhost:[0-9]+/go,https://gocd.example.com/go,g\""));
+        assertThat(userData, containsString("echo \"agent.auto.register.key=secret-key\" > /var/lib/go-agent/config/autoregister.properties\n"));
+        assertThat(userData, containsString("chown -R go:go /usr/share/go-agent/\n" +
+                "echo \"agent.auto.register.environments=prod\" >> /var/lib/go-agent/config/autoregister.properties\n" +
+                "echo custom\n" +
+                "systemctl start go-agent.service\n"));
+    }
+
+    @Test
+    public void shouldLeaveOutTheEnvironmentOfJobsWithoutOne() {
+        String userData = UserDataTemplates.instance().forJob(properties, clusterProfileProperties)
+                .render(Collections.singletonMap(UserDataTemplates.AUTO_REGISTER_KEY, "secret-key"));
+
+        assertThat(userData, not(containsString("agent.auto.register.environments")));
+        assertThat(userData, endsWith("chown -R go:go /usr/share/go-agent/\necho custom\nsystemctl start go-agent.service\n"));
+    }
+
+    @Test
+    public void shouldCompileTheTemplateOfAProfileOnce() {
+        UserDataTemplate template = UserDataTemplates.instance().forJob(properties, clusterProfileProperties);
+
+        assertThat(UserDataTemplates.instance().forJob(new HashMap<>(properties), clusterProfileProperties), is(sameInstance(template)));
+
+        properties.put("ec2_user_data", "echo changed");
+        assertThat(UserDataTemplates.instance().forJob(properties, clusterProfileProperties), is(not(sameInstance(template))));
+    }
+
+    @Test
+    public void shouldOnlyKeepTheMostRecentlyUsedTemplates() {
+        for (int i = 0; i < 2 * UserDataTemplates.MAX_TEMPLATES; i++) {
+            properties.put("ec2_user_data", "echo " + i);
+            UserDataTemplates.instance().forJob(properties, clusterProfileProperties);
+        }
+
+        assertThat(UserDataTemplates.instance().size(), is(lessThanOrEqualTo(UserDataTemplates.MAX_TEMPLATES)));
+    }
+
+    @Test
+    public void shouldCompileTheTemplatesOfAChangedClusterAgain() {
+        UserDataTemplate template = UserDataTemplates.instance().readingTags(properties, clusterProfileProperties);
+
+        UserDataTemplates.instance().invalidate(clusterProfileProperties);
+
+        assertThat(UserDataTemplates.instance().readingTags(properties, clusterProfileProperties), is(not(sameInstance(template))));
+    }
+
+    @Test
+    public void shouldEncodeUserDataReadingTagsOnce() {
+        UserDataTemplate template = UserDataTemplates.instance().readingTags(properties, clusterProfileProperties);
+
+        String encoded = template.renderBase64(Collections.emptyMap());
+
+        assertThat(template.renderBase64(Collections.emptyMap()), is(sameInstance(encoded)));
+        assertThat(new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8), is(template.render(Collections.emptyMap())));
+        assertThat(template.render(Collections.emptyMap()), containsString("instance_tag " + Ec2Instance.AUTO_REGISTER_KEY_TAG));
+    }
+
+    @Test
+    public void shouldOnlyPassTheCustomUserDataToPrebakedAmis() {
+        properties.put("ec2_prebaked", "true");
+
+        assertThat(UserDataTemplates.instance().readingTags(properties, clusterProfileProperties).render(Collections.emptyMap()), is("echo custom"));
+    }
+
+    @Test
+    public void shouldValidateTheSizeOfTheUserDataIncludingTheBootstrapScript() {
+        properties.put("ec2_user_data", StringUtils.repeat('x', 15 * 1024));
+        assertThat(UserDataTemplates.validateSize(properties), startsWith("User data must not exceed 16384 bytes"));
+
+        // pre-baked AMIs get no bootstrap script
+        properties.put("ec2_prebaked", "true");
+        assertThat(UserDataTemplates.validateSize(properties), is(nullValue()));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2;
+
+import com.continuumsecurity.elasticagent.ec2.models.JobIdentifier;
+import com.continuumsecurity.elasticagent.ec2.requests.CreateAgentRequest;
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class WarmPoolTest {
+
+    private WarmPool warmPool;
+    private DateTime now;
+    private Map<String, String> properties;
+
+    @BeforeEach
+    public void setUp() {
+        warmPool = new WarmPool();
+        now = DateTime.now();
+        properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put(WarmPool.SIZE_PROPERTY, "2");
+        properties.put(WarmPool.IDLE_TTL_PROPERTY, "5");
+    }
+
+    @Test
+    public void shouldNotKeepPoolForProfilesWithoutWarmPoolSize() {
+        properties.remove(WarmPool.SIZE_PROPERTY);
+        warmPool.demand(request("dev", 1), now);
+
+        assertThat(warmPool.replenishments(now), is(empty()));
+    }
+
+    @Test
+    public void shouldOnlyReplenishWhatIsNeitherWarmNorBeingLaunched() {
+        warmPool.demand(request("dev", 1), now);
+
+        List<WarmPool.Replenishment> replenishments = warmPool.replenishments(now);
+        assertThat(replenishments, hasSize(1));
+        assertThat(replenishments.get(0).count(), is(2));
+        assertThat(warmPool.replenishments(now), is(empty()));
+
+        warmPool.launched(replenishments.get(0), Collections.singletonList("i-1"));
+
+        replenishments = warmPool.replenishments(now);
+        assertThat(replenishments, hasSize(1));
+        assertThat(replenishments.get(0).count(), is(1));
+    }
+
+    @Test
+    public void shouldHandOutWarmInstanceOnlyForSameProfileAndEnvironment() {
+        warmPool.demand(request("dev", 1), now);
+        warmPool.launched(warmPool.replenishments(now).get(0), Arrays.asList("i-1", "i-2"));
+
+        assertThat(warmPool.take(request("prod", 2)), is(nullValue()));
+        assertThat(warmPool.take(request("dev", 2)), isOneOf("i-1", "i-2"));
+        assertThat(warmPool.take(request("dev", 3)), isOneOf("i-1", "i-2"));
+        assertThat(warmPool.take(request("dev", 4)), is(nullValue()));
+    }
+
+    @Test
+    public void shouldAssignWarmInstanceToJobOfSameProfile() {
+        warmPool.demand(request("dev", 1), now);
+        warmPool.launched(warmPool.replenishments(now).get(0), Collections.singletonList("i-1"));
+
+        Map<String, String> otherProperties = new HashMap<>(properties);
+        otherProperties.put("ec2_ami", "ami-456");
+
+        assertThat(warmPool.take("i-1", otherProperties), is(false));
+        assertThat(warmPool.take("i-1", properties), is(true));
+        assertThat(warmPool.isWarm("i-1"), is(false));
+    }
+
+    @Test
+    public void shouldDrainPoolOnceIdleForLongerThanItsTtl() {
+        warmPool.demand(request("dev", 1), now);
+        warmPool.launched(warmPool.replenishments(now).get(0), Arrays.asList("i-1", "i-2"));
+
+        assertThat(warmPool.removeIfIdle("i-1", now.plusMinutes(4)), is(false));
+
+        DateTime later = now.plusMinutes(6);
+        assertThat(warmPool.replenishments(later), is(empty()));
+        assertThat(warmPool.removeIfIdle("i-1", later), is(true));
+        assertThat(warmPool.isWarm("i-1"), is(false));
+        assertThat(warmPool.isWarm("i-2"), is(true));
+    }
+
+    @Test
+    public void shouldHandOutGivenBackAgentsUntilTheirReuseIdleTtlExpires() {
+        properties.remove(WarmPool.SIZE_PROPERTY);
+        properties.put(WarmPool.REUSE_MAX_JOBS_PROPERTY, "3");
+        warmPool.giveBack("i-1", properties, "dev", now);
+        warmPool.giveBack("i-2", properties, "dev", now);
+
+        assertThat(warmPool.take("i-1", properties), is(true));
+
+        assertThat(warmPool.removeIfIdle("i-2", now.plusMinutes(9)), is(false));
+        assertThat(warmPool.removeIfIdle("i-2", now.plusMinutes(11)), is(true));
+        assertThat(warmPool.take("i-2", properties), is(false));
+    }
+
+    @Test
+    public void shouldNotHandOutGivenBackAgentsToCreateAgentRequests() {
+        properties.put(WarmPool.REUSE_MAX_JOBS_PROPERTY, "3");
+        warmPool.giveBack("i-1", properties, "dev", now);
+        warmPool.demand(request("dev", 1), now);
+
+        // registered agents never read the auto-register key of another job
+        assertThat(warmPool.take(request("dev", 2)), is(nullValue()));
+        assertThat(warmPool.isWarm("i-1"), is(true));
+
+        // and do not stand in for pre-launched instances
+        assertThat(warmPool.replenishments(now).get(0).count(), is(2));
+    }
+
+    @Test
+    public void shouldOnlyReuseAgentsWhenMoreThanOneJobIsAllowed() {
+        assertThat(WarmPool.reuseMaxJobs(properties), is(1));
+        properties.put(WarmPool.REUSE_MAX_JOBS_PROPERTY, "0");
+        assertThat(WarmPool.reuseMaxJobs(properties), is(1));
+        properties.put(WarmPool.REUSE_MAX_JOBS_PROPERTY, "4");
+        assertThat(WarmPool.reuseMaxJobs(properties), is(4));
+    }
+
+    private CreateAgentRequest request(String environment, long jobId) {
+        JobIdentifier jobIdentifier = new JobIdentifier("up42", 1L, "label", "stage", "1", "job" + jobId, jobId);
+        return new CreateAgentRequest("key", environment, properties, jobIdentifier, new ClusterProfileProperties());
+    }
+}
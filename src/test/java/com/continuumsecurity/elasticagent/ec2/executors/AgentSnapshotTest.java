@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+package com.continuumsecurity.elasticagent.ec2.executors;
+
+import com.continuumsecurity.elasticagent.ec2.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.*;
+
+public class AgentSnapshotTest {
+
+    private PluginRequest pluginRequest;
+    private Ec2AgentInstances cluster1;
+    private Ec2AgentInstances cluster2;
+    private List<Ec2AgentInstances> allClusters;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.listAgents()).thenReturn(new Agents(Arrays.asList(
+                new Agent("i-1", Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled),
+                new Agent("i-2", Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled),
+                new Agent("i-unknown", Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled))));
+
+        cluster1 = mock(Ec2AgentInstances.class);
+        when(cluster1.find("i-1")).thenReturn(mock(Ec2Instance.class));
+        cluster2 = mock(Ec2AgentInstances.class);
+        when(cluster2.find("i-2")).thenReturn(mock(Ec2Instance.class));
+        allClusters = Arrays.asList(cluster1, cluster2);
+    }
+
+    @Test
+    public void shouldPartitionAgentsByCluster() throws Exception {
+        AgentSnapshot snapshot = AgentSnapshot.take(pluginRequest);
+
+        assertThat(snapshot.forCluster(cluster1, allClusters).agentIds(), containsInAnyOrder("i-1", "i-unknown"));
+        // agents of no cluster are only cleaned up by the first cluster
+        assertThat(snapshot.forCluster(cluster2, allClusters).agentIds(), containsInAnyOrder("i-2"));
+        assertThat(snapshot.withoutCluster(allClusters).agentIds(), containsInAnyOrder("i-unknown"));
+    }
+
+    @Test
+    public void shouldPatchDisabledAndDeletedAgentsWithoutListingAgain() throws Exception {
+        AgentSnapshot snapshot = AgentSnapshot.take(pluginRequest);
+        Agent agent = snapshot.forCluster(cluster1, allClusters).agents().stream()
+                .filter(a -> a.elasticAgentId().equals("i-1"))
+                .findFirst().get();
+
+        snapshot.disable(Collections.singletonList(agent));
+        assertThat(snapshot.forCluster(cluster1, allClusters).findInstancesToTerminate().size(), is(1));
+
+        snapshot.delete(Collections.singletonList(agent));
+        assertThat(snapshot.forCluster(cluster1, allClusters).agentIds(), containsInAnyOrder("i-unknown"));
+
+        verify(pluginRequest, times(1)).listAgents();
+        verify(pluginRequest).disableAgents(Collections.singletonList(agent));
+        verify(pluginRequest).deleteAgents(Collections.singletonList(agent));
+        assertThat(snapshot.serverApiCalls(), is(3));
+    }
+
+    @Test
+    public void shouldNotCountRequestsThatAreNotMade() throws Exception {
+        AgentSnapshot snapshot = AgentSnapshot.take(pluginRequest);
+
+        snapshot.disable(Collections.emptyList());
+        snapshot.delete(Collections.emptyList());
+
+        verify(pluginRequest, never()).disableAgents(any());
+        verify(pluginRequest, never()).deleteAgents(any());
+        assertThat(snapshot.serverApiCalls(), is(1));
+    }
+}
@@ -41,7 +41,7 @@ public class CreateAgentRequestExecutorTest {
         PluginRequest pluginRequest = mock(PluginRequest.class);
         new CreateAgentRequestExecutor(request, agentInstances, pluginRequest).execute();
 
-        verify(agentInstances).create(eq(request), eq(pluginRequest), any(ConsoleLogAppender.class));
+        verify(agentInstances).createAsync(eq(request), eq(pluginRequest), any(ConsoleLogAppender.class));
         verify(pluginRequest).appendToConsoleLog(eq(jobIdentifier), contains("Received request to create an instance for"));
     }
 
@@ -54,7 +54,7 @@ public class CreateAgentRequestExecutorTest {
 
         AgentInstances<Ec2Instance> agentInstances = mock(Ec2AgentInstances.class);
         PluginRequest pluginRequest = mock(PluginRequest.class);
-        when(agentInstances.create(eq(request), eq(pluginRequest), any(ConsoleLogAppender.class))).thenThrow(new RuntimeException("Ouch!"));
+        when(agentInstances.createAsync(eq(request), eq(pluginRequest), any(ConsoleLogAppender.class))).thenThrow(new RuntimeException("Ouch!"));
 
         try {
             new CreateAgentRequestExecutor(request, agentInstances, pluginRequest).execute();
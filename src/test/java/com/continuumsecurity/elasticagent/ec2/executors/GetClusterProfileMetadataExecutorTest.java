@@ -80,6 +80,14 @@ public class GetClusterProfileMetadataExecutorTest {
                 "{" +
                 "\"key\":\"aws_endpoint_url\"," +
                 "\"metadata\":{\"required\":false,\"secure\":false}" +
+                "}," +
+                "{" +
+                "\"key\":\"instance_state_ttl\"," +
+                "\"metadata\":{\"required\":false,\"secure\":false}" +
+                "}," +
+                "{" +
+                "\"key\":\"describe_page_size\"," +
+                "\"metadata\":{\"required\":false,\"secure\":false}" +
                 "}" +
                 "]\n";
 
@@ -34,8 +34,10 @@ import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.mockito.Mockito.inOrder;
-import static org.mockito.Mockito.mock;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 public class JobCompletionRequestExecutorTest {
@@ -73,4 +75,21 @@ public class JobCompletionRequestExecutorTest {
         assertEquals(200, response.responseCode());
         assertTrue(response.responseBody().isEmpty());
     }
+
+    @Test
+    public void shouldKeepAgentThatIsReleasedForOtherJobs() throws Exception {
+        JobIdentifier jobIdentifier = new JobIdentifier(100L);
+        ClusterProfileProperties clusterProfileProperties = new ClusterProfileProperties();
+        HashMap<String, String> profileProperties = new HashMap<>();
+        profileProperties.put("ec2_reuse_max_jobs", "5");
+        JobCompletionRequest request = new JobCompletionRequest("agent-id", jobIdentifier, profileProperties, clusterProfileProperties);
+        when(mockAgentInstances.release("agent-id", profileProperties)).thenReturn(true);
+
+        GoPluginApiResponse response = new JobCompletionRequestExecutor(request, mockAgentInstances, mockPluginRequest).execute();
+
+        verify(mockPluginRequest, never()).disableAgents(anyList());
+        verify(mockAgentInstances, never()).terminate(anyString(), any(ClusterProfileProperties.class));
+        verify(mockPluginRequest, never()).deleteAgents(anyList());
+        assertEquals(200, response.responseCode());
+    }
 }
@@ -24,7 +24,9 @@ import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatcher;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
 public class ServerPingRequestExecutorTest extends BaseTest {
@@ -114,4 +116,77 @@ public class ServerPingRequestExecutorTest extends BaseTest {
         ServerPingRequestExecutor serverPingRequestExecutor = new ServerPingRequestExecutor(serverPingRequest, instances, pluginRequest);
         serverPingRequestExecutor.execute();
     }
+
+    @Test
+    public void shouldCleanUpOtherClustersWhileOneHangs() throws Exception {
+        CountDownLatch hung = new CountDownLatch(1);
+        ClusterProfileProperties hangingCluster = createClusterProfiles();
+        ClusterProfileProperties otherCluster = createClusterProfiles();
+        otherCluster.setMaxElasticAgents("42");
+
+        Ec2AgentInstances hangingInstances = clusterWithAgent("i-hanging");
+        when(hangingInstances.instancesCreatedAfterTimeout(any(), any())).thenAnswer(invocation -> {
+            hung.await();
+            return new Agents();
+        });
+        Agent idleAgent = new Agent("i-idle", Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled);
+        Ec2AgentInstances otherInstances = clusterWithAgent("i-idle");
+        when(otherInstances.instancesCreatedAfterTimeout(any(), any())).thenReturn(new Agents(Collections.singletonList(idleAgent)));
+        when(otherInstances.terminateAll(any(), any())).thenReturn(Collections.emptySet());
+
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.listAgents()).thenReturn(new Agents(Arrays.asList(
+                new Agent("i-hanging", Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled), idleAgent)));
+        ServerPingRequest serverPingRequest = mock(ServerPingRequest.class);
+        when(serverPingRequest.allClusterProfileProperties()).thenReturn(Arrays.asList(hangingCluster, otherCluster));
+        Map<String, Ec2AgentInstances> instances = new HashMap<>();
+        instances.put(hangingCluster.uuid(), hangingInstances);
+        instances.put(otherCluster.uuid(), otherInstances);
+
+        try {
+            new ServerPingRequestExecutor(serverPingRequest, instances, pluginRequest, 500).execute();
+        } finally {
+            hung.countDown();
+        }
+
+        verify(pluginRequest).disableAgents(Collections.singletonList(idleAgent));
+        verify(otherInstances).terminateAll(Collections.singletonList("i-idle"), otherCluster);
+        verify(pluginRequest).deleteAgents(Collections.singletonList(new Agent("i-idle", Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Disabled)));
+        // the hanging cluster may own agents that are not known yet, so none are deleted as missing
+        verify(pluginRequest, times(1)).deleteAgents(any());
+    }
+
+    @Test
+    public void shouldCleanUpOtherClustersWhenOneFails() throws Exception {
+        ClusterProfileProperties failingCluster = createClusterProfiles();
+        ClusterProfileProperties otherCluster = createClusterProfiles();
+        otherCluster.setMaxElasticAgents("42");
+
+        Ec2AgentInstances failingInstances = clusterWithAgent("i-failing");
+        when(failingInstances.instancesCreatedAfterTimeout(any(), any())).thenThrow(new RuntimeException("throttled"));
+        Agent idleAgent = new Agent("i-idle", Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled);
+        Ec2AgentInstances otherInstances = clusterWithAgent("i-idle");
+        when(otherInstances.instancesCreatedAfterTimeout(any(), any())).thenReturn(new Agents(Collections.singletonList(idleAgent)));
+        when(otherInstances.terminateAll(any(), any())).thenReturn(Collections.emptySet());
+
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.listAgents()).thenReturn(new Agents(Arrays.asList(
+                new Agent("i-failing", Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled), idleAgent)));
+        ServerPingRequest serverPingRequest = mock(ServerPingRequest.class);
+        when(serverPingRequest.allClusterProfileProperties()).thenReturn(Arrays.asList(failingCluster, otherCluster));
+        Map<String, Ec2AgentInstances> instances = new HashMap<>();
+        instances.put(failingCluster.uuid(), failingInstances);
+        instances.put(otherCluster.uuid(), otherInstances);
+
+        new ServerPingRequestExecutor(serverPingRequest, instances, pluginRequest, 5000).execute();
+
+        verify(pluginRequest).disableAgents(Collections.singletonList(idleAgent));
+        verify(otherInstances).terminateAll(Collections.singletonList("i-idle"), otherCluster);
+    }
+
+    private Ec2AgentInstances clusterWithAgent(String agentId) {
+        Ec2AgentInstances agentInstances = mock(Ec2AgentInstances.class);
+        when(agentInstances.find(agentId)).thenReturn(mock(Ec2Instance.class));
+        return agentInstances;
+    }
 }
@@ -27,12 +27,15 @@ import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.Date;
 import java.util.Map;
 import java.util.UUID;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class ShouldAssignWorkRequestExecutorTest extends BaseTest {
 
@@ -46,7 +49,7 @@ public class ShouldAssignWorkRequestExecutorTest extends BaseTest {
         agentInstances = new Ec2AgentInstances();
     }
 
-    private void createTestInstance() {
+    private void createTestInstance() throws Exception {
         ClusterProfileProperties clusterProfiles = createClusterProfiles();
 
         instance = agentInstances.create(
@@ -79,6 +82,20 @@ public class ShouldAssignWorkRequestExecutorTest extends BaseTest {
 //        assertThat(response.responseBody(), is("false"));
 //    }
 
+    @Test
+    public void shouldAssignWorkToUnassignedInstanceIfItCanBeAssignedToTheJob() {
+        AgentInstances<Ec2Instance> agentInstances = mock(AgentInstances.class);
+        Ec2Instance warmInstance = new Ec2Instance("i-warm", new Date(), properties, null);
+        when(agentInstances.find("i-warm")).thenReturn(warmInstance);
+        when(agentInstances.assign(warmInstance, jobIdentifier, properties, null)).thenReturn(true);
+
+        ShouldAssignWorkRequest request = new ShouldAssignWorkRequest(new Agent("i-warm", null, null, null), jobIdentifier, properties, null);
+        GoPluginApiResponse response = new ShouldAssignWorkRequestExecutor(request, agentInstances).execute();
+        assertThat(response.responseCode(), is(200));
+        assertThat(response.responseBody(), is("true"));
+        verify(agentInstances).workAssigned(warmInstance, jobIdentifier);
+    }
+
     @Test
     public void shouldNotAssignWorkIfInstanceIsNotFound() {
         ShouldAssignWorkRequest request = new ShouldAssignWorkRequest(new Agent("unknown-name", null, null, null), jobIdentifier, properties, null);
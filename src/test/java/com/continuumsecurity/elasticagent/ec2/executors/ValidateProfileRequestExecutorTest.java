@@ -19,11 +19,19 @@
 package com.continuumsecurity.elasticagent.ec2.executors;
 
 import com.continuumsecurity.elasticagent.ec2.requests.ValidateProfileRequest;
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
 import org.junit.jupiter.api.Test;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.skyscreamer.jsonassert.JSONCompareMode;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
 
 public class ValidateProfileRequestExecutorTest {
     @Test
@@ -39,4 +47,37 @@ public class ValidateProfileRequestExecutorTest {
         String json = executor.execute().responseBody();
         JSONAssert.assertEquals("[{\"message\":\"ec2_ami must not be blank.\",\"key\":\"ec2_ami\"},{\"message\":\"ec2_instance_type must not be blank.\",\"key\":\"ec2_instance_type\"},{\"message\":\"ec2_sg must not be blank.\",\"key\":\"ec2_sg\"},{\"message\":\"ec2_subnets must not be blank.\",\"key\":\"ec2_subnets\"},{\"message\":\"ec2_key must not be blank.\",\"key\":\"ec2_key\"}]", json, JSONCompareMode.NON_EXTENSIBLE);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldRejectUserDataThatDoesNotFitTheEc2Limit() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", "t2.micro");
+        properties.put("ec2_sg", "sg-1");
+        properties.put("ec2_subnets", "subnet-1");
+        properties.put("ec2_key", "key");
+        properties.put("ec2_user_data", StringUtils.repeat('x', 16 * 1024));
+
+        ValidateProfileRequestExecutor executor = new ValidateProfileRequestExecutor(new ValidateProfileRequest(properties));
+        JSONArray errors = new JSONArray(executor.execute().responseBody());
+
+        assertThat(errors.length(), is(1));
+        assertThat(errors.getJSONObject(0).getString("key"), is("ec2_user_data"));
+        assertThat(errors.getJSONObject(0).getString("message"), startsWith("User data must not exceed 16384 bytes"));
+    }
+
+    @Test
+    public void shouldAcceptUserDataThatFitsTheEc2Limit() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ec2_ami", "ami-123");
+        properties.put("ec2_instance_type", "t2.micro");
+        properties.put("ec2_sg", "sg-1");
+        properties.put("ec2_subnets", "subnet-1");
+        properties.put("ec2_key", "key");
+        properties.put("ec2_user_data", StringUtils.repeat('x', 12 * 1024));
+
+        ValidateProfileRequestExecutor executor = new ValidateProfileRequestExecutor(new ValidateProfileRequest(properties));
+
+        JSONAssert.assertEquals("[]", executor.execute().responseBody(), JSONCompareMode.NON_EXTENSIBLE);
+    }
+}
@@ -21,6 +21,7 @@ package com.continuumsecurity.elasticagent.ec2.models;
 import org.junit.jupiter.api.Test;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 public class JobIdentifierTest {
@@ -39,4 +40,14 @@ public class JobIdentifierTest {
 
         assertThat(representation, is("up42/1/stage/1/job1"));
     }
+
+    @Test
+    public void shouldHaveSameKeyOnlyForEqualJobIdentifiers() {
+        JobIdentifier jobIdentifier = JobIdentifierMother.get();
+
+        assertThat(JobIdentifier.fromJson(jobIdentifier.toJson()).key(), is(jobIdentifier.key()));
+        assertThat(new JobIdentifier("up42", 1L, "label", "stage", "1", "job1", 2L).key(), is(not(jobIdentifier.key())));
+        assertThat(new JobIdentifier("up42", 1L, null, "stage", "1", "job1", 1L).key(),
+                is(not(new JobIdentifier("up42", 1L, "null", "stage", "1", "job1", 1L).key())));
+    }
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file incorporates changes by @continuumsecurity
+ */
+
+
+package com.continuumsecurity.elasticagent.ec2.requests;
+
+import com.continuumsecurity.elasticagent.ec2.ClusterProfileProperties;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+public class PluginStatusReportRequestTest {
+
+    @Test
+    public void shouldDeserializeFromJSON() {
+        JsonObject clusterJSON = new JsonObject();
+        clusterJSON.addProperty("go_server_url", "https://go-server/go");
+        JsonArray clustersJSON = new JsonArray();
+        clustersJSON.add(clusterJSON);
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.add("all_cluster_profiles_properties", clustersJSON);
+
+        PluginStatusReportRequest request = PluginStatusReportRequest.fromJSON(jsonObject.toString());
+
+        PluginStatusReportRequest expected = new PluginStatusReportRequest(Collections.singletonList(
+                ClusterProfileProperties.fromConfiguration(Collections.singletonMap("go_server_url", "https://go-server/go"))));
+        assertThat(request, is(expected));
+    }
+
+    @Test
+    public void shouldHaveNoClustersWhenNoneAreSent() {
+        assertThat(PluginStatusReportRequest.fromJSON("{}").allClusterProfileProperties(), is(empty()));
+    }
+}